@@ -1,14 +1,33 @@
+import com.linkedin.grails.profiler.AsyncLogWriter
+import com.linkedin.grails.profiler.BinaryTraceAppender
+import com.linkedin.grails.profiler.CallTreeStatsAppender
+import com.linkedin.grails.profiler.CompositeProfilerCondition
 import com.linkedin.grails.profiler.DefaultProfilerLog
 import com.linkedin.grails.profiler.LoggingAppender
+import com.linkedin.grails.profiler.MetricsRegistry
+import com.linkedin.grails.profiler.MetricsServlet
+import com.linkedin.grails.profiler.OtlpSpanAppender
+import com.linkedin.grails.profiler.OtlpSpanExporter
 import com.linkedin.grails.profiler.ParamProfilerCondition
 import com.linkedin.grails.profiler.ProfilerFilter
 import com.linkedin.grails.profiler.ProfilerHandlerInterceptor
+import com.linkedin.grails.profiler.ProfilerConditionBuilder
+import com.linkedin.grails.profiler.ProfilerManager
 import com.linkedin.grails.profiler.ProfilerMethodInterceptor
 import com.linkedin.grails.profiler.ProfilingClosureWrapper
+import com.linkedin.grails.profiler.ProfilingDataSourcePostProcessor
+import com.linkedin.grails.profiler.ProfilingTagWrapper
 import com.linkedin.grails.profiler.RequestBufferedAppender
+import com.linkedin.grails.profiler.SamplingProfilerCondition
+import com.linkedin.grails.profiler.SlowRequestStore
+import com.linkedin.grails.profiler.TraceFileWriter
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
 
 import org.codehaus.groovy.grails.commons.spring.BeanConfiguration
 import org.springframework.aop.framework.ProxyFactoryBean
+import org.springframework.jmx.export.MBeanExporter
 import org.springframework.transaction.interceptor.TransactionProxyFactoryBean
 
 class ProfilerGrailsPlugin {
@@ -37,43 +56,293 @@ long requests, controller actions and service method calls take."""
 	}
 
 	def doWithSpring = {
-		def disableProfiling = application.config.grails.profiler.disable
-		if (disableProfiling) {
+		def profilerConfig = application.config.grails.profiler
+		if (profilerConfig.disable) {
 			return
 		}
 
-		// First set up the appender that logs via Slf4j.
-		loggingAppender(LoggingAppender) { bean ->
-			bean.scope = "prototype"
+		// Optionally, the logging appender can hand each request's trace
+		// to a background thread rather than logging events as they happen.
+		def asyncConfig = profilerConfig.async
+		if (asyncConfig.enabled) {
+			asyncLogWriter(AsyncLogWriter) {
+				if (asyncConfig.queueSize) {
+					queueSize = asyncConfig.queueSize as int
+				}
+				if (asyncConfig.batchSize) {
+					batchSize = asyncConfig.batchSize as int
+				}
+				if (asyncConfig.overflowPolicy) {
+					overflowPolicy = asyncConfig.overflowPolicy.toString()
+				}
+			}
+		}
+
+		// First set up the appender that logs via Slf4j. Like the other
+		// appenders, it is shared by all threads, keeping the state of
+		// each request in a context that the profiler log hands it.
+		loggingAppender(LoggingAppender) {
+			if (asyncConfig.enabled) {
+				asyncWriter = ref("asyncLogWriter")
+			}
 		}
 
 		// This stores logs in a buffer that can be retrieved at
 		// any time. It only works if used within a web request,
 		// but it is safe to use outside of a request - it just
 		// does nothing in that case.
-		bufferedAppender(RequestBufferedAppender)
+		bufferedAppender(RequestBufferedAppender) {
+			if (profilerConfig.bufferedAppender.maxEvents) {
+				maxEvents = profilerConfig.bufferedAppender.maxEvents as int
+			}
+			if (profilerConfig.bufferedAppender.maxSavedBytes) {
+				maxSavedBytes = profilerConfig.bufferedAppender.maxSavedBytes as int
+			}
+		}
+
+		// Merges the call trees of all profiled requests into one set
+		// of statistics per call path. It's thread-safe, so unlike the
+		// logging appender it's a singleton.
+		callTreeStatsAppender(CallTreeStatsAppender)
+
+		def profilerAppenderNames = ["loggingAppender", "bufferedAppender"]
+		if (profilerConfig.callTreeStats) {
+			profilerAppenderNames << "callTreeStatsAppender"
+		}
+
+		// Writes complete request traces to rotating binary files that
+		// can be read back with TraceFileReader.
+		def traceFileConfig = profilerConfig.traceFiles
+		if (traceFileConfig.enabled) {
+			traceFileWriter(TraceFileWriter) {
+				if (traceFileConfig.directory) {
+					directory = traceFileConfig.directory.toString()
+				}
+				if (traceFileConfig.fileSize) {
+					fileSize = traceFileConfig.fileSize as int
+				}
+				if (traceFileConfig.maxFiles) {
+					maxFiles = traceFileConfig.maxFiles as int
+				}
+				if (traceFileConfig.queueSize) {
+					queueSize = traceFileConfig.queueSize as int
+				}
+				if (traceFileConfig.overflowPolicy) {
+					overflowPolicy = traceFileConfig.overflowPolicy.toString()
+				}
+			}
+
+			binaryTraceAppender(BinaryTraceAppender) {
+				traceFileWriter = ref("traceFileWriter")
+			}
+
+			profilerAppenderNames << "binaryTraceAppender"
+		}
+
+		// Exports each profiled request as OpenTelemetry spans, to a
+		// collector's OTLP/HTTP endpoint or to a file, in the background.
+		def otlpConfig = profilerConfig.otlp
+		if (otlpConfig.enabled) {
+			otlpSpanExporter(OtlpSpanExporter) {
+				if (otlpConfig.endpoint) {
+					endpoint = otlpConfig.endpoint.toString()
+				}
+				if (otlpConfig.file) {
+					file = otlpConfig.file.toString()
+				}
+				if (otlpConfig.maxFileSize) {
+					maxFileSize = otlpConfig.maxFileSize as long
+				}
+				if (otlpConfig.serviceName) {
+					serviceName = otlpConfig.serviceName.toString()
+				}
+				if (otlpConfig.queueSize) {
+					queueSize = otlpConfig.queueSize as int
+				}
+				if (otlpConfig.maxQueuedSpans) {
+					maxQueuedSpans = otlpConfig.maxQueuedSpans as int
+				}
+				if (otlpConfig.batchSize) {
+					batchSize = otlpConfig.batchSize as int
+				}
+				if (otlpConfig.flushInterval) {
+					flushInterval = otlpConfig.flushInterval as long
+				}
+				if (otlpConfig.overflowPolicy) {
+					overflowPolicy = otlpConfig.overflowPolicy.toString()
+				}
+			}
+
+			otlpSpanAppender(OtlpSpanAppender) {
+				exporter = ref("otlpSpanExporter")
+				if (otlpConfig.maxSpans) {
+					maxSpans = otlpConfig.maxSpans as int
+				}
+			}
+
+			profilerAppenderNames << "otlpSpanAppender"
+		}
 
 		// This is the condition bean that determines whether
 		// profiling should occur or not. The default bean used
 		// here simply checks the "profiler" request parameter.
-		profilerCondition(ParamProfilerCondition) {
-			paramName = "profiler"
+		// Any conditions configured, such as request headers or URI
+		// patterns, can trigger profiling too. If sampling is
+		// configured, a sample of all requests is profiled as well
+		// as those that ask for it. With JMX, the sampling condition
+		// is always used so that sampling can be switched on at runtime.
+		def samplingConfig = profilerConfig.sampling
+		def jmxConfig = profilerConfig.jmx
+		def useSampling = samplingConfig.rate || samplingConfig.perSecond || jmxConfig.enabled
+		def triggerCondition = profilerConfig.conditions instanceof Closure ?
+				ProfilerConditionBuilder.build(profilerConfig.conditions) : null
+
+		def triggerBeanName = useSampling ? "profilerTriggerCondition" : "profilerCondition"
+		if (useSampling || triggerCondition) {
+			paramProfilerCondition(ParamProfilerCondition) {
+				paramName = "profiler"
+				values = ["on", "1", "true"] as Set
+			}
+
+			if (triggerCondition) {
+				"$triggerBeanName"(CompositeProfilerCondition) {
+					conditions = [ref("paramProfilerCondition"), triggerCondition]
+				}
+			}
+		}
+
+		if (useSampling) {
+			profilerCondition(SamplingProfilerCondition) {
+				forceCondition = ref(triggerCondition ? triggerBeanName : "paramProfilerCondition")
+				if (samplingConfig.rate) {
+					sampleRate = samplingConfig.rate as int
+				}
+				if (samplingConfig.burst) {
+					burst = samplingConfig.burst as int
+				}
+				if (samplingConfig.perSecond) {
+					maxPerSecond = samplingConfig.perSecond as double
+				}
+			}
+		}
+		else if (!triggerCondition) {
+			profilerCondition(ParamProfilerCondition) {
+				paramName = "profiler"
+				values = ["on", "1", "true"] as Set
+			}
+		}
+
+		// Determines whether thread CPU time and allocated bytes are
+		// sampled for a profiled request. Sampling costs a little, so
+		// by default it must be asked for with a request parameter.
+		profilerResourceCondition(ParamProfilerCondition) {
+			paramName = "profilerResources"
 			values = ["on", "1", "true"] as Set
 		}
 
+		// Optionally, keep the full traces of the slowest requests profiled.
+		def slowConfig = profilerConfig.slowRequests
+		if (slowConfig.enabled) {
+			slowRequestStore(SlowRequestStore) {
+				if (slowConfig.capacity) {
+					capacity = slowConfig.capacity as int
+				}
+				if (slowConfig.thresholdMillis) {
+					thresholdMillis = slowConfig.thresholdMillis as long
+				}
+				if (slowConfig.percentile) {
+					percentile = slowConfig.percentile as double
+				}
+				if (slowConfig.windowSeconds) {
+					windowSeconds = slowConfig.windowSeconds as int
+				}
+			}
+		}
+
 		// Now the logger.
 		profilerLog(DefaultProfilerLog) {
-			appenderNames = ["loggingAppender", "bufferedAppender"]
+			appenderNames = profilerAppenderNames
+			resourceCondition = ref("profilerResourceCondition")
+
+			// Record events into a per-thread buffer and only hand
+			// them to the appenders at the end of the request.
+			bufferedRecording = profilerConfig.bufferedRecording ? true : false
+			if (profilerConfig.bufferCapacity) {
+				bufferCapacity = profilerConfig.bufferCapacity as int
+			}
+			if (profilerConfig.contextPoolSize) {
+				contextPoolSize = profilerConfig.contextPoolSize as int
+			}
+			if (slowConfig.enabled) {
+				slowRequestStore = ref("slowRequestStore")
+			}
+		}
+
+		// Optionally, allow the profiler to be reconfigured over JMX.
+		if (jmxConfig.enabled) {
+			profilerManager(ProfilerManager) {
+				profilerLog = ref("profilerLog")
+				samplingCondition = ref("profilerCondition")
+				paramCondition = ref("paramProfilerCondition")
+				callTreeStatsAppender = ref("callTreeStatsAppender")
+				if (asyncConfig.enabled) {
+					asyncLogWriter = ref("asyncLogWriter")
+				}
+				if (otlpConfig.enabled) {
+					otlpSpanExporter = ref("otlpSpanExporter")
+				}
+				if (slowConfig.enabled) {
+					slowRequestStore = ref("slowRequestStore")
+				}
+			}
+
+			def objectName = jmxConfig.objectName ?: "com.linkedin.grails.profiler:type=ProfilerManager"
+			profilerMBeanExporter(MBeanExporter) {
+				beans = [(objectName.toString()): ref("profilerManager")]
+				registrationBehaviorName = "REGISTRATION_REPLACE_EXISTING"
+			}
+		}
+
+		// Optionally, time every action and service method call, profiled
+		// or not, and make the timings available as metrics. The dashboard
+		// also needs the recent timings.
+		def dashboardEnabled = profilerConfig.dashboard.enabled ? true : false
+		def metricsEnabled = profilerConfig.metrics.enabled || dashboardEnabled
+		if (metricsEnabled) {
+			metricsRegistry(MetricsRegistry) {
+				slidingWindows = dashboardEnabled
+			}
 		}
 
 		// Interceptor for profiling service method invocations.
 		profilerMethodInterceptor(ProfilerMethodInterceptor) {
 			profiler = profilerLog
+			if (metricsEnabled) {
+				metrics = ref("metricsRegistry")
+			}
+		}
+
+		// Optionally, time each JDBC statement by wrapping the data
+		// source(s) that actually hand out connections.
+		def jdbcConfig = profilerConfig.jdbc
+		if (jdbcConfig.enabled) {
+			profilingDataSourcePostProcessor(ProfilingDataSourcePostProcessor) {
+				profiler = profilerLog
+				if (jdbcConfig.dataSources) {
+					beanNames = jdbcConfig.dataSources as Set
+				}
+				if (jdbcConfig.repeatedQueryThreshold) {
+					repeatedQueryThreshold = jdbcConfig.repeatedQueryThreshold as int
+				}
+			}
 		}
 
 		// Spring HandlerInterceptor for profiling controllers and views.
 		profilerHandlerInterceptor(ProfilerHandlerInterceptor) {
 			profiler = profilerLog
+			if (metricsEnabled) {
+				metrics = ref("metricsRegistry")
+			}
 		}
 
 		[annotationHandlerMapping, controllerHandlerMappings]*.interceptors << profilerHandlerInterceptor
@@ -125,11 +394,28 @@ long requests, controller actions and service method calls take."""
 			return
 		}
 
+		// Optionally, profile each tag invocation, naming the frames of
+		// rendered templates and applied layouts after the template or layout.
+		if (application.config.grails.profiler.views.enabled) {
+			for (tagLibClass in application.tagLibClasses) {
+				// The profiler's own tag is left alone.
+				if (tagLibClass.clazz.name != "ProfilerTagLib") {
+					processTagLib(ctx, tagLibClass)
+				}
+			}
+		}
+
 		// Get the access control information from the controllers, if there are any.
 		if (!manager?.hasGrailsPlugin("controllers")) {
 			return
 		}
 
+		// Action closures can be left unwrapped, which leaves the controllers'
+		// metaclasses alone. The "Controller" frame is still logged.
+		if (application.config.grails.profiler.wrapActionClosures == false) {
+			return
+		}
+
 		// Process each controller.
 		for (controllerClass in application.controllerClasses) {
 			processController(ctx, controllerClass, log)
@@ -159,27 +445,96 @@ long requests, controller actions and service method calls take."""
 				'url-pattern'("/*")
 			}
 		}
+
+		// Serve the metrics, if they're being collected.
+		def metricsConfig = application.config.grails.profiler.metrics
+		if (metricsConfig.enabled) {
+			def servletDef = webXml.'servlet'
+			servletDef[servletDef.size() - 1] + {
+				'servlet' {
+					'servlet-name'('profilerMetrics')
+					'servlet-class'(MetricsServlet.name)
+				}
+			}
+
+			def servletMapping = webXml.'servlet-mapping'
+			servletMapping[servletMapping.size() - 1] + {
+				'servlet-mapping' {
+					'servlet-name'('profilerMetrics')
+					'url-pattern'(metricsConfig.path ?: "/metrics")
+				}
+			}
+		}
 	}
 
 	/**
 	 * Wraps all a controller's actions with a special profiling closure wrapper.
+	 * Closures are only wrapped while the current request is being profiled,
+	 * so unprofiled requests get the plain closure and allocate nothing extra.
 	 */
 	private void processController(ctx, controllerClass, log) {
 		Class controller = controllerClass.clazz
 
-		controller.metaClass.getProperty = { String propName ->
+		// Look the profiler log up once rather than on every property access.
+		def profilerLog = ctx.profilerLog
+
+		wrapClosureProperties(controller, profilerLog) { closure, propName ->
+			new ProfilingClosureWrapper(controller, closure, profilerLog, propName)
+		}
+	}
+
+	/**
+	 * Wraps all a tag library's tags with a profiling tag wrapper, again only
+	 * while the current request is being profiled.
+	 */
+	private void processTagLib(ctx, tagLibClass) {
+		Class tagLib = tagLibClass.clazz
+		def profilerLog = ctx.profilerLog
+
+		wrapClosureProperties(tagLib, profilerLog) { closure, propName ->
+			new ProfilingTagWrapper(tagLib, closure, profilerLog, propName)
+		}
+	}
+
+	/**
+	 * Overrides <code>getProperty()</code> on the given class's metaclass so
+	 * that closure properties are passed through the given wrapper factory
+	 * while the current request is being profiled. Each meta property is
+	 * looked up once per class and cached, since this runs on every property
+	 * access, profiled or not.
+	 */
+	private void wrapClosureProperties(Class clazz, profilerLog, Closure createWrapper) {
+		// Keyed by the class of the instance, which may be a subclass.
+		ConcurrentMap<Class, ConcurrentMap<String, MetaProperty>> metaProperties =
+				new ConcurrentHashMap<Class, ConcurrentMap<String, MetaProperty>>()
+
+		clazz.metaClass.getProperty = { String propName ->
 			// Get the property.
-			def targetMetaClass = delegate.getClass().metaClass
-			def mp = targetMetaClass.getMetaProperty(propName)
-			if (!mp) {
-				// probably a taglib or other property added via missing property on the metaclass,
-				// delegate to that since it won't be an action closure that we want to profile anyway
-				return targetMetaClass.invokeMissingProperty(delegate, propName, null, true)
+			Class targetClass = delegate.getClass()
+			ConcurrentMap<String, MetaProperty> classProperties = metaProperties.get(targetClass)
+			if (classProperties == null) {
+				classProperties = new ConcurrentHashMap<String, MetaProperty>()
+				ConcurrentMap<String, MetaProperty> existing = metaProperties.putIfAbsent(targetClass, classProperties)
+				if (existing != null) {
+					classProperties = existing
+				}
+			}
+
+			MetaProperty mp = classProperties.get(propName)
+			if (mp == null) {
+				def targetMetaClass = targetClass.metaClass
+				mp = targetMetaClass.getMetaProperty(propName)
+				if (!mp) {
+					// probably a taglib or other property added via missing property on the metaclass,
+					// delegate to that since it won't be a closure that we want to profile anyway
+					return targetMetaClass.invokeMissingProperty(delegate, propName, null, true)
+				}
+				classProperties.put(propName, mp)
 			}
 
 			def result = mp.getProperty(delegate)
-			if (result instanceof Closure) {
-				result = new ProfilingClosureWrapper(controller, result, ctx.profilerLog, propName)
+			if (result instanceof Closure && profilerLog.isProfiling()) {
+				result = createWrapper(result, propName)
 			}
 
 			result
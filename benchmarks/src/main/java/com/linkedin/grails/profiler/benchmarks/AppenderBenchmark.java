@@ -0,0 +1,62 @@
+package com.linkedin.grails.profiler.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import com.linkedin.grails.profiler.CallSite;
+import com.linkedin.grails.profiler.CallSiteRegistry;
+import com.linkedin.grails.profiler.NanoProfilerAppender;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ApplicationContext;
+
+/**
+ * The cost of each shipped appender on its own, for a request made up of
+ * a chain of nested frames. Each request gets a fresh appender from the
+ * context, just as the profiler log does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AppenderBenchmark {
+	@Param({ "loggingAppender", "asyncLoggingAppender", "bufferedAppender", "callTreeStatsAppender" })
+	public String appender;
+
+	@Param({ "1", "8", "32" })
+	public int depth;
+
+	private ApplicationContext context;
+	private CallSite site;
+
+	@Setup
+	public void setUp() {
+		context = Fixtures.createContext();
+		site = CallSiteRegistry.intern(AppenderBenchmark.class, "frame");
+	}
+
+	@Benchmark
+	public void request(WebRequestState webRequest) {
+		webRequest.reset();
+		NanoProfilerAppender target = (NanoProfilerAppender) context.getBean(appender);
+
+		long time = System.nanoTime();
+		for (int i = 0; i < depth; i++) {
+			target.logEntry("uri: /book/list", site, time + i, -1L, -1L);
+		}
+		for (int i = depth - 1; i >= 0; i--) {
+			target.logExit("uri: /book/list", site, time + 2 * depth - i, -1L, -1L);
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package com.linkedin.grails.profiler.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks at increasing thread counts, so that contention in
+ * the shared parts of the profiler (the call site registry, the singleton
+ * appenders, the async log writer) shows up. Results for each thread count
+ * are written to <code>jmh-result-&lt;threads&gt;.json</code>.
+ * <p>
+ * Usage: <code>BenchmarkRunner [benchmark regexp] [thread counts...]</code>,
+ * e.g. <code>BenchmarkRunner ProfilerLog 1 4</code>. By default, all the
+ * benchmarks are run with 1, 2, 4 and 8 threads.
+ */
+public class BenchmarkRunner {
+	private static final int[] DEFAULT_THREADS = { 1, 2, 4, 8 };
+
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage().getName() + ".*";
+
+		int[] threadCounts = DEFAULT_THREADS;
+		if (args.length > 1) {
+			threadCounts = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				threadCounts[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		for (int threads : threadCounts) {
+			Options options = new OptionsBuilder()
+					.include(include)
+					.threads(threads)
+					.resultFormat(ResultFormatType.JSON)
+					.result("jmh-result-" + threads + ".json")
+					.build();
+			new Runner(options).run();
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.linkedin.grails.profiler.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.linkedin.grails.profiler.AsyncLogWriter;
+import com.linkedin.grails.profiler.CallTreeStatsAppender;
+import com.linkedin.grails.profiler.DefaultProfilerLog;
+import com.linkedin.grails.profiler.LoggingAppender;
+import com.linkedin.grails.profiler.RequestBufferedAppender;
+
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.support.StaticApplicationContext;
+
+/**
+ * Builds profiler logs wired up the way the plugin wires them, but from a
+ * plain Spring context.
+ */
+class Fixtures {
+	/**
+	 * Creates an application context holding the appender beans, with the
+	 * same scopes as the plugin gives them.
+	 */
+	static ApplicationContext createContext() {
+		StaticApplicationContext context = new StaticApplicationContext();
+
+		context.registerSingleton("loggingAppender", LoggingAppender.class);
+
+		context.registerSingleton("asyncLogWriter", AsyncLogWriter.class);
+		RootBeanDefinition asyncLoggingAppender = new RootBeanDefinition(LoggingAppender.class);
+		asyncLoggingAppender.getPropertyValues().add("asyncWriter", context.getBean("asyncLogWriter"));
+		context.registerBeanDefinition("asyncLoggingAppender", asyncLoggingAppender);
+
+		context.registerSingleton("bufferedAppender", RequestBufferedAppender.class);
+		context.registerSingleton("callTreeStatsAppender", CallTreeStatsAppender.class);
+		context.refresh();
+		return context;
+	}
+
+	/**
+	 * Creates a profiler log that uses the named appenders.
+	 * @param appenders a comma-separated list of appender bean names, or "none"
+	 * @param buffered whether to use buffered recording
+	 */
+	static DefaultProfilerLog createProfilerLog(String appenders, boolean buffered) {
+		List<String> appenderNames = new ArrayList<String>();
+		if (!appenders.equals("none")) {
+			appenderNames.addAll(Arrays.asList(appenders.split(",")));
+		}
+
+		DefaultProfilerLog profilerLog = new DefaultProfilerLog();
+		profilerLog.setApplicationContext(createContext());
+		profilerLog.setAppenderNames(appenderNames);
+		profilerLog.setBufferedRecording(buffered);
+		return profilerLog;
+	}
+}
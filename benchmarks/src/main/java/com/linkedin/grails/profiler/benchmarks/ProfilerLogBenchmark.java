@@ -0,0 +1,69 @@
+package com.linkedin.grails.profiler.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import com.linkedin.grails.profiler.DefaultProfilerLog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of one profiled "request": starting profiling, entering and
+ * exiting a chain of nested frames, and stopping profiling, which is when
+ * buffered events reach the appenders. With <code>mode=off</code>, only
+ * the frames are logged, with profiling switched off, which is the cost
+ * that every unprofiled request pays.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProfilerLogBenchmark {
+	@Param({ "off", "direct", "buffered" })
+	public String mode;
+
+	@Param({ "1", "8", "32" })
+	public int depth;
+
+	@Param({ "none", "loggingAppender", "bufferedAppender", "loggingAppender,bufferedAppender" })
+	public String appenders;
+
+	private DefaultProfilerLog profilerLog;
+	private boolean profiling;
+
+	@Setup
+	public void setUp() {
+		profilerLog = Fixtures.createProfilerLog(appenders, mode.equals("buffered"));
+		profiling = !mode.equals("off");
+	}
+
+	@Benchmark
+	public void request(WebRequestState webRequest) {
+		if (profiling) {
+			webRequest.reset();
+			profilerLog.startProfiling("uri: /book/list");
+		}
+
+		for (int i = 0; i < depth; i++) {
+			profilerLog.logEntry(ProfilerLogBenchmark.class, "frame");
+		}
+		for (int i = 0; i < depth; i++) {
+			profilerLog.logExit(ProfilerLogBenchmark.class, "frame");
+		}
+
+		if (profiling) {
+			profilerLog.stopProfiling();
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package com.linkedin.grails.profiler.benchmarks;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import com.linkedin.grails.profiler.DefaultProfilerLog;
+import com.linkedin.grails.profiler.MetricsRegistry;
+import com.linkedin.grails.profiler.ProfilerMethodInterceptor;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost that the method interceptor adds to each call of a profiled
+ * service method, with profiling off and with profiling on but no
+ * appenders, so that only the interceptor and the log are measured, and
+ * with and without every call being timed for the metrics.
+ * {@link #baseline()} is the call without the interceptor.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProfilerMethodInterceptorBenchmark {
+	@Param({ "off", "direct", "buffered" })
+	public String mode;
+
+	@Param({ "false", "true" })
+	public boolean metrics;
+
+	private DefaultProfilerLog profilerLog;
+	private ProfilerMethodInterceptor interceptor;
+	private MethodInvocation invocation;
+
+	@Setup
+	public void setUp() throws Exception {
+		profilerLog = Fixtures.createProfilerLog("none", mode.equals("buffered"));
+		interceptor = new ProfilerMethodInterceptor();
+		interceptor.setProfiler(profilerLog);
+		if (metrics) {
+			interceptor.setMetrics(new MetricsRegistry());
+		}
+		invocation = new DirectInvocation(new BookService(), BookService.class.getMethod("count"));
+
+		// Profiling is per thread, and this state is too.
+		if (!mode.equals("off")) {
+			profilerLog.startProfiling("uri: /book/list");
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		profilerLog.stopProfiling();
+	}
+
+	@Benchmark
+	public Object baseline() throws Throwable {
+		return invocation.proceed();
+	}
+
+	@Benchmark
+	public Object intercepted() throws Throwable {
+		Object result = interceptor.invoke(invocation);
+
+		// Stop the buffer from filling up, which would measure dropping
+		// frames rather than recording them.
+		if (mode.equals("buffered")) {
+			profilerLog.flush();
+		}
+		return result;
+	}
+
+	/**
+	 * A minimal stand-in for a profiled Grails service.
+	 */
+	public static class BookService {
+		private int count;
+
+		public int count() {
+			return ++count;
+		}
+	}
+
+	/**
+	 * A method invocation that calls the target directly, without
+	 * reflection, so that it adds as little as possible to the figures.
+	 */
+	private static class DirectInvocation implements MethodInvocation {
+		private final BookService target;
+		private final Method method;
+		private final Object[] arguments = new Object[0];
+
+		DirectInvocation(BookService target, Method method) {
+			this.target = target;
+			this.method = method;
+		}
+
+		public Method getMethod() {
+			return method;
+		}
+
+		public Object[] getArguments() {
+			return arguments;
+		}
+
+		public Object proceed() {
+			return target.count();
+		}
+
+		public Object getThis() {
+			return target;
+		}
+
+		public AccessibleObject getStaticPart() {
+			return method;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.linkedin.grails.profiler.benchmarks;
+
+import groovy.lang.Closure;
+
+import java.util.concurrent.TimeUnit;
+
+import com.linkedin.grails.profiler.DefaultProfilerLog;
+import com.linkedin.grails.profiler.ProfilingClosureWrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost that the closure wrapper adds to each call of a profiled
+ * controller action, with profiling off and with profiling on but no
+ * appenders. {@link #baseline()} calls the action closure directly.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+// Groovy 2.0 needs java.lang opened up on Java 9 and later.
+@Fork(value = 1, jvmArgsAppend = { "-XX:+IgnoreUnrecognizedVMOptions", "--add-opens=java.base/java.lang=ALL-UNNAMED" })
+@State(Scope.Thread)
+public class ProfilingClosureWrapperBenchmark {
+	@Param({ "off", "direct", "buffered" })
+	public String mode;
+
+	private DefaultProfilerLog profilerLog;
+	private Closure<?> action;
+	private Closure<?> wrapper;
+
+	@Setup
+	public void setUp() {
+		profilerLog = Fixtures.createProfilerLog("none", mode.equals("buffered"));
+		action = new ListAction(this);
+		wrapper = new ProfilingClosureWrapper(ProfilingClosureWrapperBenchmark.class, action, profilerLog, "list");
+
+		// Profiling is per thread, and this state is too.
+		if (!mode.equals("off")) {
+			profilerLog.startProfiling("uri: /book/list");
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		profilerLog.stopProfiling();
+	}
+
+	@Benchmark
+	public Object baseline() {
+		return action.call();
+	}
+
+	@Benchmark
+	public Object wrapped() {
+		Object result = wrapper.call();
+
+		// Stop the buffer from filling up, which would measure dropping
+		// frames rather than recording them.
+		if (mode.equals("buffered")) {
+			profilerLog.flush();
+		}
+		return result;
+	}
+
+	/**
+	 * A minimal stand-in for a controller action closure.
+	 */
+	@SuppressWarnings("rawtypes")
+	private static class ListAction extends Closure {
+		private static final long serialVersionUID = 1;
+
+		private int count;
+
+		ListAction(Object owner) {
+			super(owner);
+		}
+
+		public Object doCall() {
+			return ++count;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package com.linkedin.grails.profiler.benchmarks;
+
+import org.codehaus.groovy.grails.web.servlet.mvc.GrailsWebRequest;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.web.context.request.RequestContextHolder;
+
+/**
+ * A fake web request bound to each benchmark thread, for the appenders that
+ * keep their state in the request. Creating a Grails web request outside of
+ * a Grails application is slow, so one is created per thread and its
+ * attributes are cleared between simulated requests instead.
+ */
+@State(Scope.Thread)
+public class WebRequestState {
+	private MockHttpServletRequest request;
+
+	@Setup
+	public void setUp() {
+		MockServletContext servletContext = new MockServletContext();
+		request = new MockHttpServletRequest(servletContext, "GET", "/book/list");
+		RequestContextHolder.setRequestAttributes(
+				new GrailsWebRequest(request, new MockHttpServletResponse(), servletContext));
+	}
+
+	@TearDown
+	public void tearDown() {
+		RequestContextHolder.resetRequestAttributes();
+	}
+
+	/**
+	 * Makes the bound request look like a new one.
+	 */
+	public void reset() {
+		request.clearAttributes();
+	}
+}
@@ -0,0 +1,122 @@
+import com.linkedin.grails.profiler.ChromeTraceWriter
+import com.linkedin.grails.profiler.CollapsedStackWriter
+import com.linkedin.grails.profiler.TraceFormatter
+
+class ProfilerController {
+
+	/** The windows that the dashboard can show, in seconds. */
+	static final Map WINDOWS = [60: "1 minute", 300: "5 minutes", 3600: "1 hour"]
+
+	def grailsApplication
+
+	// Profiles say a lot about the application, so the endpoints must be
+	// switched on explicitly.
+	def beforeInterceptor = {
+		def profilerConfig = grailsApplication.config.grails.profiler
+		if (profilerConfig.disable || !profilerConfig.endpoints.enabled) {
+			response.sendError(404)
+			return false
+		}
+	}
+
+	/**
+	 * Shows the latency of every controller action and service method seen
+	 * over the chosen window, and lists the slow requests kept.
+	 */
+	def index = {
+		def ctx = grailsApplication.mainContext
+		int window = params.int("window") ?: 60
+		if (!WINDOWS.containsKey(window)) {
+			window = 60
+		}
+
+		// The timers have done all the work: this only adds up their slices.
+		def actions = []
+		def services = []
+		if (ctx.containsBean("metricsRegistry")) {
+			def metrics = ctx.metricsRegistry
+			actions = summarise(metrics.actionTimers, window)
+			services = summarise(metrics.serviceTimers, window)
+		}
+
+		def slowRequests = ctx.containsBean("slowRequestStore") ? ctx.slowRequestStore.requests : null
+
+		[windows: WINDOWS, window: window, actions: actions, services: services, slowRequests: slowRequests]
+	}
+
+	/**
+	 * Shows one of the slow requests kept, as text or, with "format=chrome"
+	 * or "format=collapsed", exported for other tools.
+	 */
+	def slowRequest = {
+		def ctx = grailsApplication.mainContext
+		def slowRequest = ctx.containsBean("slowRequestStore") && params.id ?
+				ctx.slowRequestStore.getRequest(params.long("id")) : null
+		if (!slowRequest) {
+			response.sendError(404)
+			return
+		}
+
+		if (params.format == "chrome" || params.format == "collapsed") {
+			def writer
+			if (params.format == "chrome") {
+				response.contentType = "application/json;charset=UTF-8"
+				response.setHeader("Content-Disposition", "attachment; filename=\"slow-request-${slowRequest.id}.json\"")
+				writer = new ChromeTraceWriter(response.writer)
+			}
+			else {
+				response.contentType = "text/plain;charset=UTF-8"
+				writer = new CollapsedStackWriter(response.writer)
+			}
+			slowRequest.trace.accept(writer, slowRequest.recordedAt)
+			writer.finish()
+			return
+		}
+
+		def text = new StringBuilder()
+		slowRequest.trace.accept(new TraceFormatter(text, "  "), slowRequest.recordedAt)
+		[slowRequest: slowRequest, text: text]
+	}
+
+	/**
+	 * Exports the traces kept by the slow request store, slowest first, as
+	 * Chrome Trace Event JSON or, with "format=collapsed", as collapsed stacks.
+	 */
+	def slowRequests = {
+		def ctx = grailsApplication.mainContext
+		if (!ctx.containsBean("slowRequestStore")) {
+			response.sendError(404)
+			return
+		}
+
+		def store = ctx.slowRequestStore
+		if (params.format == "collapsed") {
+			response.contentType = "text/plain;charset=UTF-8"
+			def writer = new CollapsedStackWriter(response.writer)
+			store.exportTraces(writer)
+			writer.finish()
+		}
+		else {
+			response.contentType = "application/json;charset=UTF-8"
+			response.setHeader("Content-Disposition", 'attachment; filename="slow-requests.json"')
+			def writer = new ChromeTraceWriter(response.writer)
+			store.exportTraces(writer)
+			writer.finish()
+		}
+	}
+
+	/**
+	 * Returns the statistics of the given timers over the window, busiest
+	 * (by total time) first, leaving out those that weren't called.
+	 */
+	private List summarise(timers, int window) {
+		def rows = []
+		for (timer in timers) {
+			def snapshot = timer.recent?.getSnapshot(window)
+			if (snapshot?.count) {
+				rows << [owner: timer.owner, name: timer.name, stats: snapshot, errors: timer.errors]
+			}
+		}
+		rows.sort { -(it.stats.count * it.stats.mean) }
+	}
+}
@@ -1,12 +1,44 @@
+import com.linkedin.grails.profiler.ChromeTraceWriter
+import com.linkedin.grails.profiler.CollapsedStackWriter
+import com.linkedin.grails.profiler.DefaultProfilerLog
+import com.linkedin.grails.profiler.ProfilingDataSource
+import com.linkedin.grails.profiler.ViewRequestStats
+
 class ProfilerTagLib {
 
 	def bufferedAppender
+	def profilerLog
 
 	def profilerOutput = { attrs ->
 		if (!bufferedAppender) {
 			return
 		}
 
+		// Make sure any buffered events have reached the appender.
+		if (profilerLog instanceof DefaultProfilerLog) {
+			profilerLog.flush()
+		}
+
+		// The profile can also be exported for other tools, straight to the page.
+		if (attrs.format == "chrome" || attrs.format == "collapsed") {
+			def writer = attrs.format == "chrome" ? new ChromeTraceWriter(out) : new CollapsedStackWriter(out)
+			bufferedAppender.exportTrace(writer)
+			writer.finish()
+			return
+		}
+
 		out << bufferedAppender.output
+
+		// Add the statements executed by this request, if they were profiled.
+		def sqlStats = ProfilingDataSource.requestStats
+		if (sqlStats && !sqlStats.empty) {
+			out << "\nSQL statements:\n" << sqlStats.report
+		}
+
+		// And the templates and layouts rendered so far, if tags were profiled.
+		def viewStats = ViewRequestStats.requestStats
+		if (viewStats && !viewStats.empty) {
+			out << "\nTemplates:\n" << viewStats.report
+		}
 	}
 }
@@ -0,0 +1,54 @@
+package com.linkedin.grails.profiler;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+/**
+ * Base class for conditions that decide from the HTTP request. When one is
+ * asked without being given the request, it looks the request up in
+ * Spring's {@link RequestContextHolder}; outside of a request, it always
+ * returns <code>false</code>.
+ */
+public abstract class AbstractRequestProfilerCondition implements RequestProfilerCondition {
+	/**
+	 * Asks the current request's condition, if there is a current request.
+	 */
+	public boolean doProfiling() {
+		RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+		if (!(requestAttributes instanceof ServletRequestAttributes)) {
+			return false;
+		}
+		return doProfiling(((ServletRequestAttributes) requestAttributes).getRequest());
+	}
+
+	/**
+	 * Asks the given condition about the given request, passing the request
+	 * on if the condition can make use of it.
+	 * @param condition the condition
+	 * @param request the request
+	 * @return <code>true</code> if the request should be profiled
+	 */
+	public static boolean doProfiling(ProfilerCondition condition, HttpServletRequest request) {
+		if (condition instanceof RequestProfilerCondition) {
+			return ((RequestProfilerCondition) condition).doProfiling(request);
+		}
+		return condition.doProfiling();
+	}
+
+	/**
+	 * Returns an unmodifiable copy of the given values, or <code>null</code>
+	 * if there are none.
+	 */
+	static Set<String> copyValues(Collection<String> values) {
+		return values == null || values.isEmpty() ? null :
+				Collections.unmodifiableSet(new HashSet<String>(values));
+	}
+}
@@ -0,0 +1,70 @@
+package com.linkedin.grails.profiler;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free pool of the contexts of a {@link SharedProfilerAppender}.
+ * The pool is a fixed array of slots that contexts are swapped in and out
+ * of with compare-and-set, so taking and returning a context never blocks
+ * and never allocates. Each thread starts looking at a slot picked by its
+ * ID, so a thread usually gets back the context it returned last. When the
+ * pool is empty a new context is created, and when it is full a returned
+ * context is left to the garbage collector, so the pool only ever holds
+ * as many contexts as there were requests profiled at the same time.
+ */
+final class AppenderContextPool {
+	private final SharedProfilerAppender<Object> appender;
+	private final AtomicReferenceArray<Object> slots;
+	private final int mask;
+
+	/**
+	 * @param appender the appender whose contexts are pooled
+	 * @param size the number of slots, rounded up to a power of two
+	 */
+	@SuppressWarnings("unchecked")
+	AppenderContextPool(SharedProfilerAppender<?> appender, int size) {
+		int slotCount = Integer.highestOneBit(Math.max(size, 1) * 2 - 1);
+		this.appender = (SharedProfilerAppender<Object>) appender;
+		slots = new AtomicReferenceArray<Object>(slotCount);
+		mask = slotCount - 1;
+	}
+
+	SharedProfilerAppender<Object> getAppender() {
+		return appender;
+	}
+
+	/**
+	 * Takes a context out of the pool, or creates one if the pool is empty.
+	 */
+	Object acquire() {
+		int start = (int) Thread.currentThread().getId();
+		for (int i = 0; i <= mask; i++) {
+			int slot = (start + i) & mask;
+			Object context = slots.get(slot);
+			if (context != null && slots.compareAndSet(slot, context, null)) {
+				return context;
+			}
+		}
+
+		Object context = appender.createContext();
+		if (context == null) {
+			throw new IllegalStateException("Appender " + appender + " created a null context");
+		}
+		return context;
+	}
+
+	/**
+	 * Resets a context and puts it back in the pool, if there's room.
+	 */
+	void release(Object context) {
+		appender.reset(context);
+
+		int start = (int) Thread.currentThread().getId();
+		for (int i = 0; i <= mask; i++) {
+			int slot = (start + i) & mask;
+			if (slots.get(slot) == null && slots.compareAndSet(slot, null, context)) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package com.linkedin.grails.profiler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Writes finished request traces to the profiler's logger on a background
+ * thread, so that formatting and logging don't add to request latency.
+ * Request threads hand traces over through a bounded queue and never block:
+ * if the queue is full, a trace is dropped according to the overflow policy
+ * and counted. The writer thread takes traces off the queue in batches and
+ * logs each one as a single multi-line INFO message. A trace that can't be
+ * formatted or logged is counted as failed, and the rest are still written.
+ * <p>
+ * This class is thread-safe and should be a singleton.
+ */
+public class AsyncLogWriter implements InitializingBean, DisposableBean {
+	private static final Logger log = LoggerFactory.getLogger(AsyncLogWriter.class);
+
+	/**
+	 * What to do with a trace when the queue is full.
+	 */
+	public enum OverflowPolicy {
+		/** Drop the trace being submitted. */
+		DROP_NEWEST,
+		/** Drop the oldest trace in the queue to make room for the new one. */
+		DROP_OLDEST
+	}
+
+	private int queueSize = 1024;
+	private int batchSize = 64;
+	private String padding = "  ";
+	private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+
+	private BlockingQueue<RequestTrace> queue;
+	private Thread writerThread;
+	private volatile boolean running;
+
+	private final AtomicLong submittedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong writtenCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+
+	/**
+	 * Sets the maximum number of traces waiting to be written. This should
+	 * not be called once the bean has been initialised.
+	 * @param queueSize the queue size
+	 */
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Sets the maximum number of traces written in one go.
+	 * @param batchSize the batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the padding string to use when indenting nested frames.
+	 * @param padding the padding
+	 */
+	public void setPadding(String padding) {
+		this.padding = padding;
+	}
+
+	/**
+	 * Sets what happens to a trace when the queue is full.
+	 * @param overflowPolicy the policy
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Creates the queue and starts the writer thread.
+	 */
+	public void afterPropertiesSet() {
+		queue = new ArrayBlockingQueue<RequestTrace>(queueSize);
+		running = true;
+
+		writerThread = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "profiler-async-log-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Stops the writer thread once it has written whatever is in the queue.
+	 */
+	public void destroy() throws InterruptedException {
+		running = false;
+		if (writerThread != null) {
+			writerThread.interrupt();
+			writerThread.join(5000);
+		}
+	}
+
+	/**
+	 * Queues a finished trace for writing. This never blocks.
+	 * @param trace the trace
+	 * @return <code>true</code> if the trace was queued, <code>false</code> if it was dropped
+	 */
+	public boolean submit(RequestTrace trace) {
+		submittedCount.incrementAndGet();
+		if (queue.offer(trace)) {
+			return true;
+		}
+
+		if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+			// Make room by discarding the oldest trace. Another thread may
+			// take the space first, in which case we give up.
+			if (queue.poll() != null) {
+				droppedCount.incrementAndGet();
+			}
+			if (queue.offer(trace)) {
+				return true;
+			}
+		}
+
+		droppedCount.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * @return the number of traces submitted
+	 */
+	public long getSubmittedCount() {
+		return submittedCount.get();
+	}
+
+	/**
+	 * @return the number of traces dropped because the queue was full
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * @return the number of traces written to the log
+	 */
+	public long getWrittenCount() {
+		return writtenCount.get();
+	}
+
+	/**
+	 * @return the number of traces that couldn't be formatted or logged
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * @return the number of traces waiting to be written
+	 */
+	public int getQueuedCount() {
+		return queue == null ? 0 : queue.size();
+	}
+
+	private void writeLoop() {
+		Logger profilerLog = LoggerFactory.getLogger(LoggingAppender.LOGGER_NAME);
+		List<RequestTrace> batch = new ArrayList<RequestTrace>(batchSize);
+
+		while (running || !queue.isEmpty()) {
+			try {
+				RequestTrace first = queue.poll(1, TimeUnit.SECONDS);
+				if (first == null) {
+					continue;
+				}
+
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+				for (RequestTrace trace : batch) {
+					// A trace that can't be written mustn't take the rest
+					// of the batch with it.
+					try {
+						write(profilerLog, trace);
+					}
+					catch (RuntimeException e) {
+						failedCount.incrementAndGet();
+						log.error("Unable to write profiler trace for [" + trace.getLabel() + "]", e);
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				// Shutting down: loop round to write whatever is left.
+				running = false;
+			}
+			finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private void write(Logger profilerLog, RequestTrace trace) {
+		if (profilerLog.isInfoEnabled()) {
+			String text = TraceFormatter.format(trace, padding);
+			profilerLog.info("Profiled request [" + trace.getLabel() + "]\n" + text);
+		}
+		writtenCount.incrementAndGet();
+	}
+}
@@ -0,0 +1,123 @@
+package com.linkedin.grails.profiler;
+
+/**
+ * Appender that records the events of each request into a
+ * {@link RequestTrace} and, once the request's outermost frame has been
+ * exited, hands the trace to a {@link TraceFileWriter}, which writes it
+ * to binary trace files in the background. The files can be read with {@link TraceFileReader}.
+ * With {@link DefaultProfilerLog}, it is shared by all threads, each
+ * request's trace being kept in a {@link Context}. The
+ * {@link NanoProfilerAppender} methods, for other logs, share a single
+ * context and so aren't thread-safe.
+ */
+public class BinaryTraceAppender implements NanoProfilerAppender, SharedProfilerAppender<BinaryTraceAppender.Context> {
+	private TraceFileWriter traceFileWriter;
+	private int maxTraceEvents = 10000;
+
+	/** The context used by the methods that aren't given one. */
+	private final Context defaultContext = new Context();
+
+	/**
+	 * Sets the writer that finished traces are written with.
+	 * @param traceFileWriter the writer
+	 */
+	public void setTraceFileWriter(TraceFileWriter traceFileWriter) {
+		this.traceFileWriter = traceFileWriter;
+	}
+
+	/**
+	 * Sets the maximum number of events recorded for a request. Further
+	 * frames are dropped.
+	 * @param maxTraceEvents the maximum
+	 */
+	public void setMaxTraceEvents(int maxTraceEvents) {
+		this.maxTraceEvents = maxTraceEvents;
+	}
+
+	/**
+	 * Same as the nanosecond version, but with the entry time in milliseconds.
+	 */
+	public void logEntry(String label, Class<?> clazz, String name, long entryTime) {
+		logEntry(label, CallSiteRegistry.intern(clazz, name), entryTime * 1000000L, -1L, -1L);
+	}
+
+	/**
+	 * Same as the nanosecond version, but with the exit time in milliseconds.
+	 */
+	public void logExit(String label, Class<?> clazz, String name, long exitTime) {
+		logExit(label, CallSiteRegistry.intern(clazz, name), exitTime * 1000000L, -1L, -1L);
+	}
+
+	/**
+	 * Same as the context version, using a context shared by all callers.
+	 */
+	public void logEntry(String label, CallSite site, long entryNanos, long cpuNanos, long allocatedBytes) {
+		addEntry(defaultContext, label, site, entryNanos, cpuNanos, allocatedBytes);
+	}
+
+	/**
+	 * Same as the context version, using a context shared by all callers.
+	 */
+	public void logExit(String label, CallSite site, long exitNanos, long cpuNanos, long allocatedBytes) {
+		addExit(defaultContext, site, exitNanos, cpuNanos, allocatedBytes);
+	}
+
+	/**
+	 * Creates an empty context.
+	 */
+	public Context createContext() {
+		return new Context();
+	}
+
+	/**
+	 * Adds the entry to the current request's trace, starting a new trace if necessary.
+	 */
+	public void logEntry(Context context, String label, Span span) {
+		addEntry(context, label, span.getSite(), span.getStartNanos(), span.getStartCpuNanos(),
+				span.getStartAllocatedBytes());
+	}
+
+	/**
+	 * Adds the exit to the current request's trace, and writes the trace
+	 * out if it is now complete.
+	 */
+	public void logExit(Context context, String label, Span span, long exitNanos, long cpuNanos, long allocatedBytes) {
+		addExit(context, span.getSite(), exitNanos, cpuNanos, allocatedBytes);
+	}
+
+	private void addEntry(Context context, String label, CallSite site, long entryNanos, long cpuNanos,
+			long allocatedBytes) {
+		if (context.trace == null) {
+			context.trace = new RequestTrace(label, maxTraceEvents);
+		}
+		context.trace.addEntry(site, entryNanos, cpuNanos, allocatedBytes);
+	}
+
+	private void addExit(Context context, CallSite site, long exitNanos, long cpuNanos, long allocatedBytes) {
+		RequestTrace trace = context.trace;
+		if (trace == null) {
+			return;
+		}
+
+		trace.addExit(site, exitNanos, cpuNanos, allocatedBytes);
+		if (trace.isComplete()) {
+			traceFileWriter.submit(trace);
+			context.trace = null;
+		}
+	}
+
+	/**
+	 * Forgets any unfinished trace.
+	 */
+	public void reset(Context context) {
+		context.trace = null;
+	}
+
+	/**
+	 * The state of one request.
+	 */
+	public static class Context {
+		/** The trace of the current request. */
+		RequestTrace trace;
+	}
+}
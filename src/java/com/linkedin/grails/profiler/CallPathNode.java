@@ -0,0 +1,108 @@
+package com.linkedin.grails.profiler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A node in a trie of call paths, such as "Web Request > Controller >
+ * BookService.list", holding the latency statistics of every call made
+ * along that path. Children are created on demand and never removed, and
+ * both the lookup of children and the recording of durations are lock-free,
+ * so any number of threads can update the trie at once.
+ */
+public class CallPathNode {
+	private final CallPathNode parent;
+	private final CallSite site;
+	private final int depth;
+	private final ConcurrentMap<CallSite, CallPathNode> children = new ConcurrentHashMap<CallSite, CallPathNode>();
+	private final LatencyHistogram histogram = new LatencyHistogram();
+
+	/**
+	 * Creates a root node, which has no call site of its own.
+	 */
+	public CallPathNode() {
+		this(null, null);
+	}
+
+	private CallPathNode(CallPathNode parent, CallSite site) {
+		this.parent = parent;
+		this.site = site;
+		depth = parent == null ? 0 : parent.depth + 1;
+	}
+
+	/**
+	 * Returns the child node for the given call site, creating it if necessary.
+	 * @param childSite the call site
+	 * @return the child
+	 */
+	public CallPathNode getChild(CallSite childSite) {
+		CallPathNode child = children.get(childSite);
+		if (child == null) {
+			CallPathNode newChild = new CallPathNode(this, childSite);
+			child = children.putIfAbsent(childSite, newChild);
+			if (child == null) {
+				child = newChild;
+			}
+		}
+		return child;
+	}
+
+	/**
+	 * @return the children of this node, in no particular order
+	 */
+	public Collection<CallPathNode> getChildren() {
+		return children.values();
+	}
+
+	/**
+	 * @return the parent of this node, or <code>null</code> for the root
+	 */
+	public CallPathNode getParent() {
+		return parent;
+	}
+
+	/**
+	 * @return the call site of this node, or <code>null</code> for the root
+	 */
+	public CallSite getSite() {
+		return site;
+	}
+
+	/**
+	 * @return the number of call sites in the path, i.e. 0 for the root
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return the durations recorded for this call path
+	 */
+	public LatencyHistogram getHistogram() {
+		return histogram;
+	}
+
+	/**
+	 * Returns the call path leading to this node, e.g. "Web Request >
+	 * Controller > BookService.list".
+	 * @return the path
+	 */
+	public String getPath() {
+		List<CallSite> sites = new ArrayList<CallSite>(depth);
+		for (CallPathNode node = this; node.site != null; node = node.parent) {
+			sites.add(node.site);
+		}
+
+		StringBuilder buffer = new StringBuilder();
+		for (int i = sites.size() - 1; i >= 0; i--) {
+			buffer.append(sites.get(i).getDisplayName());
+			if (i > 0) {
+				buffer.append(" > ");
+			}
+		}
+		return buffer.toString();
+	}
+}
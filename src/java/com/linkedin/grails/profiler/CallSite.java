@@ -0,0 +1,76 @@
+package com.linkedin.grails.profiler;
+
+/**
+ * An interned profiling call site, i.e. the class and element name (method,
+ * action, or whatever) that profiling events refer to. Instances are created
+ * and cached by {@link CallSiteRegistry}, so each call site is described by
+ * exactly one instance and can be identified by a small integer id.
+ */
+public final class CallSite {
+	private final int id;
+	private final Class<?> targetClass;
+	private final String name;
+	private final String identity;
+	private final String displayName;
+
+	CallSite(int id, Class<?> targetClass, String name) {
+		this.id = id;
+		this.targetClass = targetClass;
+		this.name = name;
+		this.identity = targetClass.getName() + ":" + name;
+
+		// The profiler's own frames ("Web Request", "Controller", ...)
+		// are better known by their names alone.
+		if (targetClass.getName().startsWith("com.linkedin.grails.profiler.")) {
+			displayName = name;
+		}
+		else {
+			displayName = targetClass.getSimpleName() + "." + name;
+		}
+	}
+
+	/**
+	 * @return the id assigned to this call site by the registry
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return the real class (CGLIB enhancements stripped) that hosts the element
+	 */
+	public Class<?> getTargetClass() {
+		return targetClass;
+	}
+
+	/**
+	 * @return the name of the method, action, or whatever
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the identity string for this call site, in the form
+	 * "<class name>:<element name>".
+	 * @return the identity
+	 */
+	public String getIdentity() {
+		return identity;
+	}
+
+	/**
+	 * Returns a short name for this call site, suitable for display in a call
+	 * path, e.g. "BookService.list". Call sites for the profiler's own frames,
+	 * such as "Web Request", are displayed by their names alone.
+	 * @return the display name
+	 */
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	@Override
+	public String toString() {
+		return identity;
+	}
+}
@@ -0,0 +1,125 @@
+package com.linkedin.grails.profiler;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Global registry of {@link CallSite}s. Looking up a call site that has
+ * already been registered is lock-free and does not allocate, so it is
+ * safe to do on every profiling event. Registering a new call site takes
+ * a lock, but that only happens the first time a class/name pair is seen.
+ */
+public class CallSiteRegistry {
+	/** Call sites keyed by the class as given to us, then by element name. */
+	private static final ConcurrentMap<Class<?>, ConcurrentMap<String, CallSite>> sitesByClass =
+			new ConcurrentHashMap<Class<?>, ConcurrentMap<String, CallSite>>();
+
+	/**
+	 * Call sites for intercepted methods, keyed by method and then by the
+	 * class it was invoked on, since an inherited method may be invoked on
+	 * several classes.
+	 */
+	private static final ConcurrentMap<Method, ConcurrentMap<Class<?>, CallSite>> sitesByMethod =
+			new ConcurrentHashMap<Method, ConcurrentMap<Class<?>, CallSite>>();
+
+	/**
+	 * Call sites indexed by id. New sites are written into it under the
+	 * registry's lock, and it is replaced by a larger copy when it needs to
+	 * grow. Readers only look up ids of sites they have been given, which
+	 * were published by the volatile store of the table and the map put.
+	 */
+	private static volatile CallSite[] sitesById = new CallSite[256];
+
+	private static int nextId;
+
+	/**
+	 * Returns the call site for the given class and element name, registering
+	 * it if this is the first time it has been seen. The class may be a CGLIB
+	 * enhanced class: the call site will refer to the real class.
+	 * @param clazz the class hosting the element
+	 * @param name the name of the element (method, action, ...)
+	 * @return the call site
+	 */
+	public static CallSite intern(Class<?> clazz, String name) {
+		ConcurrentMap<String, CallSite> sites = sitesByClass.get(clazz);
+		if (sites != null) {
+			CallSite site = sites.get(name);
+			if (site != null) {
+				return site;
+			}
+		}
+
+		return register(clazz, name);
+	}
+
+	/**
+	 * Returns the call site for the given method, as invoked on an instance
+	 * of the given class. This is what method interceptors should use: the
+	 * call site is cached against the method, so neither the real class nor
+	 * the method name has to be worked out again on subsequent calls, and
+	 * looking up one that has been seen before doesn't allocate.
+	 * @param clazz the class of the instance the method was invoked on,
+	 * which may be a CGLIB enhanced class
+	 * @param method the method
+	 * @return the call site
+	 */
+	public static CallSite intern(Class<?> clazz, Method method) {
+		ConcurrentMap<Class<?>, CallSite> sites = sitesByMethod.get(method);
+		if (sites != null) {
+			CallSite site = sites.get(clazz);
+			if (site != null) {
+				return site;
+			}
+		}
+		else {
+			sites = new ConcurrentHashMap<Class<?>, CallSite>(4);
+			ConcurrentMap<Class<?>, CallSite> existing = sitesByMethod.putIfAbsent(method, sites);
+			if (existing != null) {
+				sites = existing;
+			}
+		}
+
+		CallSite site = intern(clazz, method.getName());
+		sites.put(clazz, site);
+		return site;
+	}
+
+	/**
+	 * Returns the call site with the given id.
+	 * @param id the id, as returned by {@link CallSite#getId()}
+	 * @return the call site, or <code>null</code> if no call site has that id
+	 */
+	public static CallSite get(int id) {
+		CallSite[] sites = sitesById;
+		return id >= 0 && id < sites.length ? sites[id] : null;
+	}
+
+	private static synchronized CallSite register(Class<?> clazz, String name) {
+		ConcurrentMap<String, CallSite> sites = sitesByClass.get(clazz);
+		if (sites == null) {
+			sites = new ConcurrentHashMap<String, CallSite>();
+			sitesByClass.put(clazz, sites);
+		}
+
+		// Another thread may have beaten us to it.
+		CallSite site = sites.get(name);
+		if (site != null) {
+			return site;
+		}
+
+		site = new CallSite(nextId++, ClassUtil.getRealClass(clazz), name);
+
+		CallSite[] table = sitesById;
+		if (site.getId() >= table.length) {
+			CallSite[] newTable = new CallSite[table.length * 2];
+			System.arraycopy(table, 0, newTable, 0, table.length);
+			table = newTable;
+		}
+		table[site.getId()] = site;
+		sitesById = table;
+
+		sites.put(name, site);
+		return site;
+	}
+}
@@ -0,0 +1,231 @@
+package com.linkedin.grails.profiler;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Appender that merges the call tree of every profiled request into a
+ * single trie of call paths, keeping a count and a latency histogram for
+ * each path. Unlike {@link LoggingAppender}, its output doesn't grow with
+ * the number of requests, so it is suitable for use with sampling on busy
+ * applications. The statistics can be retrieved at any time through
+ * {@link #getRoot()} or {@link #writeReport(Writer)}.
+ * <p>
+ * This class is thread-safe and should be a singleton: the only per-request
+ * state is the stack of frames that are currently open. With
+ * {@link DefaultProfilerLog}, that stack is the request's context; other
+ * logs get a stack per thread.
+ */
+public class CallTreeStatsAppender implements NanoProfilerAppender, SharedProfilerAppender<CallTreeStatsAppender.FrameStack> {
+	private volatile CallPathNode root = new CallPathNode();
+
+	private final ThreadLocal<FrameStack> frames = new ThreadLocal<FrameStack>() {
+		@Override
+		protected FrameStack initialValue() {
+			return new FrameStack();
+		}
+	};
+
+	/**
+	 * Same as the nanosecond version, but with the entry time in milliseconds.
+	 */
+	public void logEntry(String label, Class<?> clazz, String name, long entryTime) {
+		logEntry(label, CallSiteRegistry.intern(clazz, name), entryTime * 1000000L, -1L, -1L);
+	}
+
+	/**
+	 * Same as the nanosecond version, but with the exit time in milliseconds.
+	 */
+	public void logExit(String label, Class<?> clazz, String name, long exitTime) {
+		logExit(label, CallSiteRegistry.intern(clazz, name), exitTime * 1000000L, -1L, -1L);
+	}
+
+	/**
+	 * Same as the context version, using the current thread's stack of frames.
+	 */
+	public void logEntry(String label, CallSite site, long entryNanos, long cpuNanos, long allocatedBytes) {
+		logEntry(frames.get(), site, entryNanos);
+	}
+
+	/**
+	 * Same as the context version, using the current thread's stack of frames.
+	 */
+	public void logExit(String label, CallSite site, long exitNanos, long cpuNanos, long allocatedBytes) {
+		logExit(frames.get(), site, exitNanos);
+	}
+
+	/**
+	 * Creates an empty stack of frames.
+	 */
+	public FrameStack createContext() {
+		return new FrameStack();
+	}
+
+	/**
+	 * Finds (or creates) the node for the span's call path.
+	 */
+	public void logEntry(FrameStack stack, String label, Span span) {
+		// The span's depth says where it goes in the stack, whatever was
+		// left on it from before.
+		int depth = span.getDepth();
+		stack.size = Math.min(stack.size, depth);
+		CallPathNode parent = depth == 0 || stack.size < depth ? root : stack.nodes[depth - 1];
+		stack.push(parent.getChild(span.getSite()), span.getStartNanos());
+	}
+
+	/**
+	 * Records the span's duration against the node for its call path.
+	 */
+	public void logExit(FrameStack stack, String label, Span span, long exitNanos, long cpuNanos, long allocatedBytes) {
+		int depth = span.getDepth();
+		if (depth < stack.size) {
+			stack.nodes[depth].getHistogram().record(exitNanos - span.getStartNanos());
+			stack.size = depth;
+		}
+
+		// Don't hold on to nodes from a previous trie.
+		if (stack.size == 0) {
+			stack.clear();
+		}
+	}
+
+	/**
+	 * Finds (or creates) the node for the current call path and marks the
+	 * start time.
+	 */
+	private void logEntry(FrameStack stack, CallSite site, long entryNanos) {
+		CallPathNode parent = stack.size == 0 ? root : stack.nodes[stack.size - 1];
+		stack.push(parent.getChild(site), entryNanos);
+	}
+
+	/**
+	 * Records the time taken against the node for the current call path.
+	 */
+	private void logExit(FrameStack stack, CallSite site, long exitNanos) {
+		// If some exits went missing, unwind to the frame being exited.
+		while (stack.size > 0) {
+			stack.size--;
+			CallPathNode node = stack.nodes[stack.size];
+			if (node.getSite() == site) {
+				node.getHistogram().record(exitNanos - stack.starts[stack.size]);
+				break;
+			}
+		}
+
+		// Don't hold on to nodes from a previous trie.
+		if (stack.size == 0) {
+			stack.clear();
+		}
+	}
+
+	/**
+	 * Forgets any frames that were never exited.
+	 */
+	public void reset(FrameStack stack) {
+		stack.size = 0;
+		stack.clear();
+	}
+
+	/**
+	 * Returns the root of the call path trie. The root has no call site;
+	 * its children are the outermost frames, usually "Web Request".
+	 * @return the root
+	 */
+	public CallPathNode getRoot() {
+		return root;
+	}
+
+	/**
+	 * Discards all the statistics gathered so far. Requests that are in
+	 * progress carry on recording into the old trie.
+	 */
+	public void reset() {
+		root = new CallPathNode();
+	}
+
+	/**
+	 * Returns the report written by {@link #writeReport(Writer)} as a string.
+	 * @return the report
+	 */
+	public String getReport() {
+		StringWriter writer = new StringWriter();
+		try {
+			writeReport(writer);
+		}
+		catch (IOException e) {
+			// Can't happen with a StringWriter.
+			throw new IllegalStateException(e);
+		}
+		return writer.toString();
+	}
+
+	/**
+	 * Writes one line per call path, depth first with the slowest paths
+	 * first at each level, giving the count, mean, 50th/95th/99th
+	 * percentiles and maximum time.
+	 * @param out the writer
+	 */
+	public void writeReport(Writer out) throws IOException {
+		writeNode(root, out);
+	}
+
+	private void writeNode(CallPathNode node, Writer out) throws IOException {
+		if (node.getSite() != null) {
+			LatencyHistogram histogram = node.getHistogram();
+			StringBuilder line = new StringBuilder(node.getPath());
+			line.append("   (Count: ").append(histogram.getCount());
+			TimeUtil.appendNanos(line.append(", Mean: "), histogram.getMean());
+			TimeUtil.appendNanos(line.append(", P50: "), histogram.getValueAtPercentile(50));
+			TimeUtil.appendNanos(line.append(", P95: "), histogram.getValueAtPercentile(95));
+			TimeUtil.appendNanos(line.append(", P99: "), histogram.getValueAtPercentile(99));
+			TimeUtil.appendNanos(line.append(", Max: "), histogram.getMax());
+			out.write(line.append(")\n").toString());
+		}
+
+		List<CallPathNode> children = new ArrayList<CallPathNode>(node.getChildren());
+		Collections.sort(children, new Comparator<CallPathNode>() {
+			public int compare(CallPathNode a, CallPathNode b) {
+				long totalA = a.getHistogram().getTotal();
+				long totalB = b.getHistogram().getTotal();
+				return totalA < totalB ? 1 : (totalA == totalB ? 0 : -1);
+			}
+		});
+		for (CallPathNode child : children) {
+			writeNode(child, out);
+		}
+	}
+
+	/**
+	 * A stack of open frames for one request.
+	 */
+	public static class FrameStack {
+		CallPathNode[] nodes = new CallPathNode[16];
+		long[] starts = new long[16];
+		int size;
+
+		void push(CallPathNode node, long start) {
+			if (size == nodes.length) {
+				CallPathNode[] newNodes = new CallPathNode[size * 2];
+				long[] newStarts = new long[size * 2];
+				System.arraycopy(nodes, 0, newNodes, 0, size);
+				System.arraycopy(starts, 0, newStarts, 0, size);
+				nodes = newNodes;
+				starts = newStarts;
+			}
+			nodes[size] = node;
+			starts[size] = start;
+			size++;
+		}
+
+		void clear() {
+			for (int i = 0; i < nodes.length && nodes[i] != null; i++) {
+				nodes[i] = null;
+			}
+		}
+	}
+}
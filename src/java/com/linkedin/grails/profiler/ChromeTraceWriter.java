@@ -0,0 +1,245 @@
+package com.linkedin.grails.profiler;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes traces in the Chrome Trace Event format, which can be loaded into
+ * chrome://tracing, Perfetto or speedscope. Each trace becomes a thread of
+ * its own, named after the request's label, with a "B" event for every
+ * frame entered and an "E" event for every frame exited, e.g.
+ * <pre>
+ * {"traceEvents":[
+ * {"name":"thread_name","ph":"M","pid":1,"tid":1,"args":{"name":"uri: /book/list"}},
+ * {"name":"Web Request","cat":"com.linkedin.grails.profiler.ProfilerFilter","ph":"B","pid":1,"tid":1,"ts":0.000},
+ * ...
+ * ]}
+ * </pre>
+ * Each branch of a trace, i.e. work the request handed off to another
+ * thread, is shown as a thread of its own too, since its frames overlap
+ * the request thread's. Traces are placed on a common timeline according
+ * to when they were recorded. The events are written as they are visited, so the document is
+ * never held in memory. Since {@link TraceVisitor} methods can't throw
+ * checked exceptions, the first write error is kept and thrown by
+ * {@link #finish()}, which must be called to complete the document. This
+ * class is not thread-safe.
+ */
+public class ChromeTraceWriter implements TraceVisitor {
+	private final Writer out;
+	private final StringBuilder event = new StringBuilder(256);
+	private IOException error;
+
+	private boolean started;
+	private int lastThreadId;
+	private long firstRecordedAt;
+
+	/** The thread that events are written to, and the ones of any enclosing branches. */
+	private int threadId;
+	private int[] parentThreadIds = new int[4];
+	private int branchDepth;
+	private String label;
+
+	/** The offset of the current trace from the first, in nanoseconds. */
+	private long offset;
+	private long lastNanos;
+
+	/**
+	 * Creates a writer that writes to the given stream. The stream is
+	 * flushed, but not closed, by {@link #finish()}.
+	 * @param out the stream
+	 */
+	public ChromeTraceWriter(Writer out) {
+		this.out = out;
+	}
+
+	/**
+	 * Starts a new thread for the trace.
+	 */
+	public void startTrace(String label, long recordedAt) {
+		start();
+		if (lastThreadId == 0) {
+			firstRecordedAt = recordedAt;
+		}
+		threadId = ++lastThreadId;
+		branchDepth = 0;
+		this.label = label;
+		offset = (recordedAt - firstRecordedAt) * 1000000L;
+		lastNanos = 0;
+		appendThreadName(label);
+	}
+
+	/**
+	 * Writes a "B" event.
+	 */
+	public void entry(String className, String name, long nanos, long cpuNanos, long allocatedBytes) {
+		appendEvent(className, name, "B", nanos);
+	}
+
+	/**
+	 * Writes an "E" event.
+	 */
+	public void exit(String className, String name, long nanos, long cpuNanos, long allocatedBytes) {
+		appendEvent(className, name, "E", nanos);
+	}
+
+	/**
+	 * Starts a new thread for the branch, with a "B" event for the branch as a whole.
+	 */
+	public void startBranch(long nanos, long cpuNanos, long allocatedBytes) {
+		if (branchDepth == parentThreadIds.length) {
+			int[] newIds = new int[branchDepth * 2];
+			System.arraycopy(parentThreadIds, 0, newIds, 0, branchDepth);
+			parentThreadIds = newIds;
+		}
+		parentThreadIds[branchDepth++] = threadId;
+		threadId = ++lastThreadId;
+		appendThreadName(label + " (branch)");
+		appendEvent(ProfilingContext.class.getName(), ProfilingContext.BRANCH_NAME, "B", nanos);
+	}
+
+	/**
+	 * Writes an "E" event for the branch and goes back to the thread it was started from.
+	 */
+	public void endBranch(long nanos, long cpuNanos, long allocatedBytes) {
+		appendEvent(ProfilingContext.class.getName(), ProfilingContext.BRANCH_NAME, "E", nanos);
+		if (branchDepth > 0) {
+			threadId = parentThreadIds[--branchDepth];
+		}
+	}
+
+	/**
+	 * Marks the end of a trace whose frames didn't all fit with an instant event.
+	 */
+	public void endTrace(int droppedFrames) {
+		if (droppedFrames > 0) {
+			event.setLength(0);
+			event.append(",\n{\"name\":\"").append(droppedFrames)
+					.append(" frames dropped\",\"ph\":\"i\",\"s\":\"t\",\"pid\":1,\"tid\":").append(threadId)
+					.append(",\"ts\":");
+			appendMicros(event, offset + lastNanos);
+			event.append('}');
+			write();
+		}
+	}
+
+	/**
+	 * Completes the document and flushes the stream.
+	 * @throws IOException if anything couldn't be written
+	 */
+	public void finish() throws IOException {
+		start();
+		event.setLength(0);
+		event.append("\n],\"displayTimeUnit\":\"ms\"}\n");
+		write();
+		if (error == null) {
+			try {
+				out.flush();
+			}
+			catch (IOException e) {
+				error = e;
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private void start() {
+		if (!started) {
+			started = true;
+
+			// The process metadata means the events that follow can all
+			// start with a comma.
+			event.setLength(0);
+			event.append("{\"traceEvents\":[\n{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":1,\"args\":{\"name\":\"Profiled requests\"}}");
+			write();
+		}
+	}
+
+	private void appendThreadName(String name) {
+		event.setLength(0);
+		event.append(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(threadId)
+				.append(",\"args\":{\"name\":");
+		appendString(event, name);
+		event.append("}}");
+		write();
+	}
+
+	private void appendEvent(String className, String name, String phase, long nanos) {
+		lastNanos = nanos;
+		event.setLength(0);
+		event.append(",\n{\"name\":");
+		appendString(event, name);
+		event.append(",\"cat\":");
+		appendString(event, className);
+		event.append(",\"ph\":\"").append(phase).append("\",\"pid\":1,\"tid\":").append(threadId).append(",\"ts\":");
+		appendMicros(event, offset + nanos);
+		event.append('}');
+		write();
+	}
+
+	private void write() {
+		if (error != null) {
+			return;
+		}
+		try {
+			out.append(event);
+		}
+		catch (IOException e) {
+			error = e;
+		}
+	}
+
+	/**
+	 * Appends a time in nanoseconds as microseconds with three decimal places.
+	 */
+	private static void appendMicros(StringBuilder buffer, long nanos) {
+		buffer.append(nanos / 1000).append('.');
+		long fraction = nanos % 1000;
+		if (fraction < 100) {
+			buffer.append('0');
+		}
+		if (fraction < 10) {
+			buffer.append('0');
+		}
+		buffer.append(fraction);
+	}
+
+	/**
+	 * Appends the given text as a quoted JSON string.
+	 * @param buffer the buffer to append to
+	 * @param text the text
+	 */
+	static void appendString(StringBuilder buffer, String text) {
+		buffer.append('"');
+		for (int i = 0, n = text.length(); i < n; i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '"':
+				buffer.append("\\\"");
+				break;
+			case '\\':
+				buffer.append("\\\\");
+				break;
+			case '\n':
+				buffer.append("\\n");
+				break;
+			case '\r':
+				buffer.append("\\r");
+				break;
+			case '\t':
+				buffer.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					buffer.append("\\u00");
+					buffer.append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+				}
+				else {
+					buffer.append(c);
+				}
+			}
+		}
+		buffer.append('"');
+	}
+}
@@ -0,0 +1,217 @@
+package com.linkedin.grails.profiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes traces in the collapsed stack format used by Brendan Gregg's
+ * flamegraph.pl and by speedscope: one line per call path, with its frames
+ * separated by semicolons and followed by the path's self time, i.e. the
+ * time spent in the innermost frame and not in anything it called, in
+ * microseconds, e.g.
+ * <pre>
+ * com.linkedin.grails.profiler.ProfilerFilter.Web Request;BookController.list 1234
+ * com.linkedin.grails.profiler.ProfilerFilter.Web Request;BookController.list;BookService.list 5678
+ * </pre>
+ * The times of each trace are added up by path and written when the trace
+ * ends, so only one trace's paths are ever held in memory. Tools reading
+ * the format add up repeated lines. Frames still open at the end of a trace
+ * are closed at the time of its last event. The frames of a branch, i.e.
+ * work the request handed off to another thread, are shown under the frame
+ * the branch was collected in, but since they ran at the same time as that
+ * frame, their time isn't taken off its self time. As with {@link ChromeTraceWriter},
+ * write errors are thrown by {@link #finish()}. This class is not thread-safe.
+ */
+public class CollapsedStackWriter implements TraceVisitor {
+	private final Writer out;
+	private IOException error;
+
+	/** The current call path and the length it had before each open frame. */
+	private final StringBuilder path = new StringBuilder(256);
+	private int[] pathLengths = new int[32];
+	private long[] starts = new long[32];
+	private long[] childTimes = new long[32];
+	private int depth;
+	private long lastNanos;
+
+	/** The depth at which each open branch started. */
+	private int[] branchDepths = new int[4];
+	private int branchCount;
+
+	/** Self times by call path for the current trace, in nanoseconds. */
+	private final Map<String, long[]> selfTimes = new LinkedHashMap<String, long[]>();
+
+	/**
+	 * Creates a writer that writes to the given stream. The stream is
+	 * flushed, but not closed, by {@link #finish()}.
+	 * @param out the stream
+	 */
+	public CollapsedStackWriter(Writer out) {
+		this.out = out;
+	}
+
+	public void startTrace(String label, long recordedAt) {
+		path.setLength(0);
+		depth = 0;
+		branchCount = 0;
+		lastNanos = 0;
+		selfTimes.clear();
+	}
+
+	/**
+	 * Adds the frame to the current call path.
+	 */
+	public void entry(String className, String name, long nanos, long cpuNanos, long allocatedBytes) {
+		if (depth == starts.length) {
+			pathLengths = copyOf(pathLengths, depth * 2);
+			starts = copyOf(starts, depth * 2);
+			childTimes = copyOf(childTimes, depth * 2);
+		}
+
+		pathLengths[depth] = path.length();
+		starts[depth] = nanos;
+		childTimes[depth] = 0;
+		depth++;
+		lastNanos = nanos;
+
+		if (path.length() > 0) {
+			path.append(';');
+		}
+		appendFrame(className, name);
+	}
+
+	/**
+	 * Adds the frame's self time to its call path and removes it from the path.
+	 */
+	public void exit(String className, String name, long nanos, long cpuNanos, long allocatedBytes) {
+		lastNanos = nanos;
+		if (depth > (branchCount > 0 ? branchDepths[branchCount - 1] : 0)) {
+			closeFrame(nanos);
+		}
+	}
+
+	/**
+	 * Notes the depth that the branch's frames start at.
+	 */
+	public void startBranch(long nanos, long cpuNanos, long allocatedBytes) {
+		if (branchCount == branchDepths.length) {
+			branchDepths = copyOf(branchDepths, branchCount * 2);
+		}
+		branchDepths[branchCount++] = depth;
+		lastNanos = nanos;
+	}
+
+	/**
+	 * Closes any frames left open in the branch.
+	 */
+	public void endBranch(long nanos, long cpuNanos, long allocatedBytes) {
+		if (branchCount > 0) {
+			branchCount--;
+			while (depth > branchDepths[branchCount]) {
+				closeFrame(nanos);
+			}
+		}
+		lastNanos = nanos;
+	}
+
+	/**
+	 * Closes any open frames and writes the trace's call paths.
+	 */
+	public void endTrace(int droppedFrames) {
+		while (depth > 0) {
+			closeFrame(lastNanos);
+		}
+
+		StringBuilder line = new StringBuilder(256);
+		for (Map.Entry<String, long[]> entry : selfTimes.entrySet()) {
+			long micros = entry.getValue()[0] / 1000;
+			if (micros > 0) {
+				line.setLength(0);
+				line.append(entry.getKey()).append(' ').append(micros).append('\n');
+				write(line);
+			}
+		}
+		selfTimes.clear();
+	}
+
+	/**
+	 * Flushes the stream.
+	 * @throws IOException if anything couldn't be written
+	 */
+	public void finish() throws IOException {
+		if (error == null) {
+			try {
+				out.flush();
+			}
+			catch (IOException e) {
+				error = e;
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private void closeFrame(long nanos) {
+		depth--;
+		long total = nanos - starts[depth];
+
+		// A branch's outermost frames ran alongside their parent, not in it.
+		boolean branchRoot = branchCount > 0 && depth == branchDepths[branchCount - 1];
+		if (depth > 0 && !branchRoot) {
+			childTimes[depth - 1] += total;
+		}
+
+		String key = path.toString();
+		long[] self = selfTimes.get(key);
+		if (self == null) {
+			self = new long[1];
+			selfTimes.put(key, self);
+		}
+		self[0] += total - childTimes[depth];
+		path.setLength(pathLengths[depth]);
+	}
+
+	/**
+	 * Appends a frame name, replacing the characters that have a meaning
+	 * in the format.
+	 */
+	private void appendFrame(String className, String name) {
+		appendSanitized(className);
+		path.append('.');
+		appendSanitized(name);
+	}
+
+	private void appendSanitized(String text) {
+		for (int i = 0, n = text.length(); i < n; i++) {
+			char c = text.charAt(i);
+			path.append(c == ';' ? ',' : (c == '\n' || c == '\r' ? ' ' : c));
+		}
+	}
+
+	private void write(CharSequence text) {
+		if (error != null) {
+			return;
+		}
+		try {
+			out.append(text);
+		}
+		catch (IOException e) {
+			error = e;
+		}
+	}
+
+	private static int[] copyOf(int[] from, int length) {
+		int[] to = new int[length];
+		System.arraycopy(from, 0, to, 0, from.length);
+		return to;
+	}
+
+	private static long[] copyOf(long[] from, int length) {
+		long[] to = new long[length];
+		System.arraycopy(from, 0, to, 0, from.length);
+		return to;
+	}
+}
@@ -0,0 +1,98 @@
+package com.linkedin.grails.profiler;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A profiler condition that combines others: it is satisfied if any of
+ * them is, or, if all are required, only if all of them are. The
+ * conditions are asked in order and asking stops as soon as the answer is
+ * known, so cheap conditions should come first. With no conditions, the
+ * composite is never satisfied.
+ */
+public class CompositeProfilerCondition extends AbstractRequestProfilerCondition {
+	private volatile ProfilerCondition[] conditions = new ProfilerCondition[0];
+	private volatile boolean requireAll;
+
+	/**
+	 * Creates an empty composite that needs its conditions setting.
+	 */
+	public CompositeProfilerCondition() {
+	}
+
+	/**
+	 * Creates a composite of the given conditions.
+	 * @param requireAll <code>true</code> if all the conditions must be satisfied,
+	 * <code>false</code> if any one will do
+	 * @param conditions the conditions
+	 */
+	public CompositeProfilerCondition(boolean requireAll, Collection<? extends ProfilerCondition> conditions) {
+		this.requireAll = requireAll;
+		setConditions(conditions);
+	}
+
+	/**
+	 * @return the conditions
+	 */
+	public List<ProfilerCondition> getConditions() {
+		return Collections.unmodifiableList(Arrays.asList(conditions));
+	}
+
+	/**
+	 * Sets the conditions to combine.
+	 * @param conditions the conditions
+	 */
+	public void setConditions(Collection<? extends ProfilerCondition> conditions) {
+		this.conditions = conditions.toArray(new ProfilerCondition[conditions.size()]);
+	}
+
+	/**
+	 * @return <code>true</code> if all the conditions must be satisfied
+	 */
+	public boolean isRequireAll() {
+		return requireAll;
+	}
+
+	/**
+	 * Sets whether all the conditions must be satisfied, rather than any
+	 * one of them. Defaults to <code>false</code>.
+	 * @param requireAll whether all the conditions must be satisfied
+	 */
+	public void setRequireAll(boolean requireAll) {
+		this.requireAll = requireAll;
+	}
+
+	/**
+	 * Combines the answers of the conditions for the current request, if
+	 * any. Conditions that need the request aren't satisfied outside of one.
+	 */
+	@Override
+	public boolean doProfiling() {
+		return doProfiling(null);
+	}
+
+	/**
+	 * Combines the answers of the conditions for the given request.
+	 * @param request the request, or <code>null</code> to let each condition
+	 * find the current request itself
+	 */
+	public boolean doProfiling(HttpServletRequest request) {
+		ProfilerCondition[] current = conditions;
+		if (current.length == 0) {
+			return false;
+		}
+
+		boolean all = requireAll;
+		for (ProfilerCondition condition : current) {
+			boolean satisfied = request == null ? condition.doProfiling() : doProfiling(condition, request);
+			if (satisfied != all) {
+				return !all;
+			}
+		}
+		return all;
+	}
+}
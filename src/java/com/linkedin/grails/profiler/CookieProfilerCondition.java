@@ -0,0 +1,70 @@
+package com.linkedin.grails.profiler;
+
+import java.util.Collection;
+import java.util.Set;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A profiler condition that checks a cookie, so that a browser, or a
+ * sticky session, can be profiled for as long as it carries the cookie. If
+ * no values are given, the cookie only has to be present; otherwise its
+ * value must be one of them. The cookie name and values may be changed at
+ * any time.
+ */
+public class CookieProfilerCondition extends AbstractRequestProfilerCondition {
+	private volatile String cookieName;
+	private volatile Set<String> values;
+
+	/**
+	 * @return the name of the cookie
+	 */
+	public String getCookieName() {
+		return cookieName;
+	}
+
+	/**
+	 * Sets the name of the cookie that determines whether profiling should occur.
+	 * @param cookieName the name
+	 */
+	public void setCookieName(String cookieName) {
+		this.cookieName = cookieName;
+	}
+
+	/**
+	 * @return the values that switch profiling on, or <code>null</code> if any value will do
+	 */
+	public Set<String> getValues() {
+		return values;
+	}
+
+	/**
+	 * Sets the values of the cookie that switch profiling on. An empty
+	 * collection means that any value will do.
+	 * @param values the values
+	 */
+	public void setValues(Collection<String> values) {
+		this.values = copyValues(values);
+	}
+
+	/**
+	 * Returns <code>true</code> if the request has the cookie, with one of
+	 * the values if there are any.
+	 */
+	public boolean doProfiling(HttpServletRequest request) {
+		Cookie[] cookies = request.getCookies();
+		if (cookies == null) {
+			return false;
+		}
+
+		String name = cookieName;
+		Set<String> allowed = values;
+		for (Cookie cookie : cookies) {
+			if (name.equals(cookie.getName()) && (allowed == null || allowed.contains(cookie.getValue()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -1,8 +1,12 @@
 package com.linkedin.grails.profiler;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
@@ -12,18 +16,70 @@ import org.springframework.util.Assert;
  * Default implementation of the profiler log that logs the events to
  * a set of appenders, similar to the way Log4J works. This class is
  * thread-safe and collates profiling information on a per-thread basis.
+ * <p>
+ * Events are timed with {@link System#nanoTime()}. Appenders that implement
+ * {@link NanoProfilerAppender} or {@link SharedProfilerAppender} receive
+ * those timestamps directly; others receive wall-clock milliseconds derived
+ * from them.
+ * <p>
+ * Singleton appender beans are looked up once, when they are first needed
+ * after the appenders have been set. A {@link SharedProfilerAppender} is
+ * handed a context for each request, taken from a pool and returned to it
+ * when profiling stops. Only prototype-scoped appenders are fetched from the
+ * application context, i.e. created, whenever a thread starts profiling.
+ * <p>
+ * By default, events are passed straight through to the appenders as they
+ * happen. With buffered recording switched on, events are instead stored as
+ * primitive records in a preallocated per-thread {@link EventRingBuffer}, so
+ * that logging an event allocates nothing. The appenders then receive the
+ * events when profiling stops or when {@link #flush()} is called.
+ * <p>
+ * Work handed off to other threads can be profiled as part of the request
+ * by capturing the request's {@link ProfilingContext} and running the work
+ * in it, which {@link ProfilingRunnable}, {@link ProfilingCallable} and
+ * {@link ProfilingExecutor} do. Each task's events are recorded separately
+ * and passed to the appenders, as children of the request's outermost frame,
+ * when the request thread exits that frame. Each task's events are wrapped
+ * in a "Branch" frame.
+ * <p>
+ * Given a {@link SlowRequestStore}, the log also keeps the full traces of
+ * requests that turn out to be slow. Events are then always recorded into
+ * the per-thread buffer, and copied out of it only for the slow requests.
+ * Only those requests' events are passed to the appenders as well.
+ * <p>
+ * Profiling can be switched off altogether, and the appenders changed, while
+ * the application is running, e.g. through a {@link ProfilerManager}. Such
+ * changes take effect for requests that start profiling afterwards.
  */
-public class DefaultProfilerLog implements ProfilerLog, ApplicationContextAware {
+public class DefaultProfilerLog implements SpanProfilerLog, ApplicationContextAware {
+	private static final Logger log = LoggerFactory.getLogger(DefaultProfilerLog.class);
+
 	private ApplicationContext applicationContext;
 
 	/**
-	 * A list of the names of the appender beans to use. Note that this
-	 * list cannot be modified after the bean has been initialised.
+	 * An unmodifiable list of the names of the appender beans to use. It
+	 * is replaced as a whole when the appenders are changed.
 	 */
-	private List<String> appenderNames;
+	private volatile List<String> appenderNames = Collections.emptyList();
+
+	/** The appenders resolved from the names, or <code>null</code> until they are needed. */
+	private volatile Appenders appenders;
+
+	private volatile boolean enabled = true;
+	private final AtomicLong profiledCount = new AtomicLong();
+
+	private boolean bufferedRecording;
+	private int bufferCapacity = 4096;
+	private int contextPoolSize = 64;
+	private ProfilerCondition resourceCondition;
+	private SlowRequestStore slowRequestStore;
 
-	private ThreadLocal<String> profilingLabel = new ThreadLocal<String>();
-	private ThreadLocal<List<ProfilerAppender>> appenders = new ThreadLocal<List<ProfilerAppender>>();
+	private ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState>() {
+		@Override
+		protected ThreadState initialValue() {
+			return new ThreadState(DefaultProfilerLog.this);
+		}
+	};
 
 	/**
 	 * Stores the application context used to load this bean. This should
@@ -35,12 +91,101 @@ public class DefaultProfilerLog implements ProfilerLog, ApplicationContextAware
 
 	/**
 	 * Sets which appenders should be used by this profiler log. The given list
-	 * contains the bean names for the corresponding appenders. This should
-	 * not be called once the profiler log bean has been instantiated and initialised.
+	 * contains the bean names for the corresponding appenders. This may be
+	 * called at any time: requests already being profiled keep the appenders
+	 * they started with.
 	 * @param appenderNames the names
 	 */
-	public void setAppenderNames(List<String> appenderNames) {
-		this.appenderNames = appenderNames;
+	public synchronized void setAppenderNames(List<String> appenderNames) {
+		this.appenderNames = Collections.unmodifiableList(new ArrayList<String>(appenderNames));
+		appenders = null;
+	}
+
+	/**
+	 * @return the names of the appender beans in use, as an unmodifiable list
+	 */
+	public List<String> getAppenderNames() {
+		return appenderNames;
+	}
+
+	/**
+	 * Returns whether profiling is allowed at all.
+	 * @return <code>false</code> if profiling has been switched off
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Switches profiling on or off for the whole application. While it is
+	 * off, {@link #startProfiling(String)} does nothing, so no request is
+	 * profiled. This may be called at any time. Defaults to <code>true</code>.
+	 * @param enabled <code>false</code> to switch profiling off
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return the number of times profiling has been started on a thread
+	 */
+	public long getProfiledCount() {
+		return profiledCount.get();
+	}
+
+	/**
+	 * Switches buffered recording on or off. When on, events are recorded into
+	 * a per-thread ring buffer and only passed to the appenders when profiling
+	 * stops or the log is flushed. This should not be called once the profiler
+	 * log bean has been instantiated and initialised.
+	 * @param bufferedRecording <code>true</code> to buffer the events
+	 */
+	public void setBufferedRecording(boolean bufferedRecording) {
+		this.bufferedRecording = bufferedRecording;
+	}
+
+	/**
+	 * Sets the maximum number of events that each thread can buffer when
+	 * buffered recording is on, and that each task run in a captured
+	 * {@link ProfilingContext} can record. Frames that don't fit are dropped. This should
+	 * not be called once the profiler log bean has been instantiated and initialised.
+	 * @param bufferCapacity the capacity
+	 */
+	public void setBufferCapacity(int bufferCapacity) {
+		this.bufferCapacity = bufferCapacity;
+	}
+
+	/**
+	 * Sets how many contexts are pooled for each {@link SharedProfilerAppender},
+	 * which should be at least the number of requests expected to be profiled
+	 * at the same time. Defaults to 64. This should not be called once the
+	 * profiler log bean has been instantiated and initialised.
+	 * @param contextPoolSize the number of contexts
+	 */
+	public void setContextPoolSize(int contextPoolSize) {
+		this.contextPoolSize = contextPoolSize;
+	}
+
+	/**
+	 * Sets the condition that determines whether the thread CPU time and
+	 * allocated bytes should be sampled for each event. It is evaluated
+	 * whenever profiling starts. If there is no condition, resources are
+	 * never sampled, so the ThreadMXBean is never touched.
+	 * @param resourceCondition the condition
+	 */
+	public void setResourceCondition(ProfilerCondition resourceCondition) {
+		this.resourceCondition = resourceCondition;
+	}
+
+	/**
+	 * Sets the store that keeps the traces of slow requests. Setting a store
+	 * switches buffered recording on, and the buffer should be big enough to
+	 * hold a whole request. This should not be called once the profiler log
+	 * bean has been instantiated and initialised.
+	 * @param slowRequestStore the store
+	 */
+	public void setSlowRequestStore(SlowRequestStore slowRequestStore) {
+		this.slowRequestStore = slowRequestStore;
 	}
 
 	/**
@@ -49,45 +194,214 @@ public class DefaultProfilerLog implements ProfilerLog, ApplicationContextAware
 	 * Once this has been called, {@link #stopProfiling()} must be
 	 * called before the current thread finishes, otherwise if the
 	 * thread is part of a pool, the current profiling information
-	 * will still be there when the thread is re-used.
+	 * will still be there when the thread is re-used. Resources are
+	 * sampled if the resource condition says so. If profiling has been
+	 * switched off, this does nothing.
 	 */
 	public void startProfiling(String label) {
+		startProfiling(label, resourceCondition != null && resourceCondition.doProfiling());
+	}
+
+	/**
+	 * Starts profiling on the current thread, like {@link #startProfiling(String)},
+	 * but explicitly says whether to sample the thread CPU time and allocated
+	 * bytes for each event. If profiling has been switched off, this does nothing.
+	 * @param label the label
+	 * @param sampleResources <code>true</code> to sample the thread's resources
+	 */
+	public void startProfiling(String label, boolean sampleResources) {
 		Assert.notNull(label, "Label cannot be null");
+		if (!enabled) {
+			return;
+		}
+		ThreadState state = threadState.get();
 
 		// Do we have any appenders on the current thread? If not, get them now.
-		if (appenders.get() == null) {
-			// Create a list for all the appenders that we need.
-			List<ProfilerAppender> localAppenders = new ArrayList<ProfilerAppender>(appenderNames.size());
-
-			// Now populate the list by fetching the appenders from the
-			// application context. Note that appenders that are not
-			// thread-safe should be of "prototype" scope.
-			for (String appenderName : appenderNames) {
-				ProfilerAppender appender = (ProfilerAppender) applicationContext.getBean(appenderName);
-				localAppenders.add(appender);
-			}
+		if (!state.bound) {
+			bindAppenders(state);
+		}
 
-			// Now store the list of appenders locally to the thread.
-			appenders.set(localAppenders);
+		// The ring buffer is allocated the first time the thread is
+		// profiled and then reused for every subsequent request.
+		if ((bufferedRecording || slowRequestStore != null) && state.buffer == null) {
+			state.buffer = new EventRingBuffer(bufferCapacity);
+		}
+		if (sampleResources && state.buffer != null) {
+			state.buffer.enableResources();
 		}
 
-		profilingLabel.set(label);
+		// Anchor the monotonic clock to the wall clock so that events
+		// can be given the timestamps that legacy appenders expect.
+		state.startMillis = System.currentTimeMillis();
+		state.startNanos = System.nanoTime();
+		state.sampleResources = sampleResources;
+		state.spans.clear();
+		state.dispatched.clear();
+		state.context = null;
+		state.label = label;
+		profiledCount.incrementAndGet();
 	}
 
 	/**
-	 * Stops the profiling and clears the thread-local data.
+	 * Stops the profiling and clears the thread-local data. Any buffered
+	 * events are passed to the appenders first, unless there is a slow
+	 * request store and it didn't keep the request.
 	 */
 	public void stopProfiling() {
-		// Clear the list of appenders and the label.
-		appenders.set(null);
-		profilingLabel.set(null);
+		ThreadState state = threadState.get();
+		try {
+			if (state.label != null && state.buffer != null) {
+				// With a slow request store, every request is profiled, and
+				// only the ones it keeps are passed on to the appenders.
+				if (slowRequestStore == null || keepIfSlow(state)) {
+					drain(state);
+				}
+				if (state.buffer.getDroppedFrames() > 0) {
+					log.warn("Profiler buffer full: dropped " + state.buffer.getDroppedFrames() +
+							" frames for [" + state.label + "]");
+				}
+			}
+		}
+		finally {
+			// Branches that haven't been merged by now never will be.
+			if (state.context != null) {
+				state.context.close();
+				state.context = null;
+			}
+
+			// Release the appenders, and clear the buffer and the label.
+			if (state.buffer != null) {
+				state.buffer.clear();
+			}
+			if (state.bound) {
+				unbindAppenders(state);
+			}
+			state.spans.clear();
+			state.dispatched.clear();
+			state.sampleResources = false;
+			state.label = null;
+		}
 	}
 
 	/**
 	 * Returns whether profiling is currently on or not.
 	 */
 	public boolean isProfiling() {
-		return profilingLabel.get() != null;
+		return threadState.get().label != null;
+	}
+
+	/**
+	 * Passes any events buffered on the current thread through to the
+	 * appenders. This is a no-op unless buffered recording is on and the
+	 * current thread is being profiled. Call it before reading the output
+	 * of an appender in the middle of a request.
+	 */
+	public void flush() {
+		ThreadState state = threadState.get();
+		if (state.label != null && state.buffer != null) {
+			drain(state);
+		}
+	}
+
+	/**
+	 * Captures the profiling context of the current thread, so that work
+	 * done on other threads can be profiled as part of the current request.
+	 * If the current thread is itself running in a captured context, that
+	 * context is returned.
+	 * @return the context, or <code>null</code> if profiling is off
+	 */
+	public ProfilingContext captureContext() {
+		ThreadState state = threadState.get();
+		if (state.label == null) {
+			return null;
+		}
+		if (state.branchContext != null) {
+			return state.branchContext;
+		}
+
+		if (state.context == null) {
+			state.context = new ProfilingContext(state.label, state.sampleResources);
+		}
+		return state.context;
+	}
+
+	/**
+	 * Starts recording the current thread's events into a branch of the
+	 * given context. The thread must not already be profiling.
+	 * @param context the captured context
+	 */
+	void startBranch(ProfilingContext context) {
+		ThreadState state = threadState.get();
+		state.branch = new RequestTrace(context.getLabel(), bufferCapacity);
+		state.branchContext = context;
+		state.spans.clear();
+		state.context = null;
+		state.sampleResources = context.isSampleResources();
+		state.label = context.getLabel();
+	}
+
+	/**
+	 * Stops recording the current thread's events and hands the branch
+	 * over to its context.
+	 */
+	void endBranch() {
+		ThreadState state = threadState.get();
+		try {
+			if (state.branch != null && !state.branchContext.addBranch(state.branch)) {
+				log.debug("Request [" + state.label + "] finished before a task it started: task not profiled");
+			}
+		}
+		finally {
+			state.spans.clear();
+			state.branch = null;
+			state.branchContext = null;
+			state.sampleResources = false;
+			state.label = null;
+		}
+	}
+
+	/**
+	 * Starts a span for the given call site if profiling is currently on,
+	 * logging an entry event.
+	 * @param site The call site that is being "entered".
+	 * @return the span, or {@link Span#NONE} if profiling is off
+	 */
+	public Span startSpan(CallSite site) {
+		ThreadState state = threadState.get();
+		if (state.label == null) {
+			return Span.NONE;
+		}
+
+		return logEntry(state, site);
+	}
+
+	/**
+	 * Starts a span for the given class and name if profiling is currently
+	 * on, logging an entry event.
+	 * @param clazz The class that the event relates to.
+	 * @param name The name of the method, action, or whatever that is being "entered".
+	 * @return the span, or {@link Span#NONE} if profiling is off
+	 */
+	public Span startSpan(Class<?> clazz, String name) {
+		ThreadState state = threadState.get();
+		if (state.label == null) {
+			return Span.NONE;
+		}
+
+		return logEntry(state, CallSiteRegistry.intern(clazz, name));
+	}
+
+	/**
+	 * Ends the given span, which must have been started on the current
+	 * thread, along with any spans still open inside it.
+	 */
+	void endSpan(Span span) {
+		ThreadState state = threadState.get();
+		if (state.label == null || !state.spans.contains(span)) {
+			return;
+		}
+
+		endSpans(state, span.depth);
 	}
 
 	/**
@@ -98,33 +412,413 @@ public class DefaultProfilerLog implements ProfilerLog, ApplicationContextAware
 	 */
 	public void logEntry(Class<?> clazz, String name) {
 		// Only log the even if profiling is on.
-		if (!isProfiling()) {
+		ThreadState state = threadState.get();
+		if (state.label == null) {
 			return;
 		}
 
-		// Save the current time and then log the event to all the configured appenders.
-		long entryTime = System.currentTimeMillis();
-		for (ProfilerAppender appender : appenders.get()) {
-			appender.logEntry(profilingLabel.get(), clazz, name, entryTime);
+		logEntry(state, CallSiteRegistry.intern(clazz, name));
+	}
+
+	/**
+	 * Logs an entry event for the given call site if profiling is currently
+	 * on, and passes it through to all configured appenders.
+	 * @param site The call site that is being "entered".
+	 */
+	public void logEntry(CallSite site) {
+		// Only log the even if profiling is on.
+		ThreadState state = threadState.get();
+		if (state.label == null) {
+			return;
 		}
+
+		logEntry(state, site);
 	}
 
 	/**
 	 * Logs an exit event if profiling is currently on, and passes it
-	 * through to all configured appenders.
+	 * through to all configured appenders. This ends the innermost open
+	 * span for the class and name.
 	 * @param clazz The class that the event relates to.
 	 * @param name The name of the method, action, or whatever that is being "exited".
 	 */
 	public void logExit(Class<?> clazz, String name) {
 		// Only log the even if profiling is on.
-		if (!isProfiling()) {
+		ThreadState state = threadState.get();
+		if (state.label == null) {
 			return;
 		}
 
-		// Save the current time and then log the event to all the configured appenders.
-		long exitTime = System.currentTimeMillis();
-		for (ProfilerAppender appender : appenders.get()) {
-			appender.logExit(profilingLabel.get(), clazz, name, exitTime);
+		logExit(state, CallSiteRegistry.intern(clazz, name));
+	}
+
+	/**
+	 * Logs an exit event for the given call site if profiling is currently
+	 * on, and passes it through to all configured appenders. This ends the
+	 * innermost open span for the site.
+	 * @param site The call site that is being "exited".
+	 */
+	public void logExit(CallSite site) {
+		// Only log the even if profiling is on.
+		ThreadState state = threadState.get();
+		if (state.label == null) {
+			return;
+		}
+
+		logExit(state, site);
+	}
+
+	private Span logEntry(ThreadState state, CallSite site) {
+		// Sample the resources only if asked to, since it's not free.
+		long cpuTime = -1L;
+		long allocatedBytes = -1L;
+		if (state.sampleResources) {
+			cpuTime = ThreadResources.currentCpuNanos();
+			allocatedBytes = ThreadResources.currentAllocatedBytes();
+		}
+		long entryTime = System.nanoTime();
+
+		Span span = state.spans.push(site, entryTime, cpuTime, allocatedBytes);
+		record(state, site, entryTime, cpuTime, allocatedBytes, true);
+		return span;
+	}
+
+	private void logExit(ThreadState state, CallSite site) {
+		// An exit without an entry has nothing to end.
+		int depth = state.spans.find(site);
+		if (depth < 0) {
+			return;
+		}
+
+		endSpans(state, depth);
+	}
+
+	/**
+	 * Ends the open spans from the given depth inwards, innermost first.
+	 * Spans left open inside the one being ended are ended at the same time.
+	 */
+	private void endSpans(ThreadState state, int depth) {
+		// Take the time before sampling the resources, so that the
+		// sampling isn't included in the frame.
+		long exitTime = System.nanoTime();
+		long cpuTime = -1L;
+		long allocatedBytes = -1L;
+		if (state.sampleResources) {
+			cpuTime = ThreadResources.currentCpuNanos();
+			allocatedBytes = ThreadResources.currentAllocatedBytes();
+		}
+
+		SpanStack spans = state.spans;
+		while (spans.size() > depth) {
+			Span span = spans.pop();
+
+			// Tasks run on other threads are logged just before the request's
+			// outermost frame is exited, so that they end up inside it.
+			if (spans.size() == 0 && state.context != null) {
+				mergeBranches(state);
+			}
+			record(state, span.site, exitTime, cpuTime, allocatedBytes, false);
+		}
+	}
+
+	/**
+	 * Records a single event in the current thread's branch or buffer, or
+	 * logs it to the appenders straight away if there is neither.
+	 */
+	private void record(ThreadState state, CallSite site, long nanos, long cpuTime,
+			long allocatedBytes, boolean entry) {
+		if (state.branch != null) {
+			if (entry) {
+				state.branch.addEntry(site, nanos, cpuTime, allocatedBytes);
+			}
+			else {
+				state.branch.addExit(site, nanos, cpuTime, allocatedBytes);
+			}
+		}
+		else if (state.buffer != null) {
+			// The appenders will see the event later.
+			if (entry) {
+				state.buffer.recordEntry(site.getId(), nanos, cpuTime, allocatedBytes);
+			}
+			else {
+				state.buffer.recordExit(site.getId(), nanos, cpuTime, allocatedBytes);
+			}
+		}
+		else {
+			// Log the event to all the configured appenders.
+			dispatch(state, site, nanos, cpuTime, allocatedBytes, entry);
+		}
+	}
+
+	/**
+	 * Records the events of the branches that have finished so far, one
+	 * after the other, each inside a frame for {@link ProfilingContext#BRANCH_SITE}
+	 * so that they can be told apart from the request thread's own frames.
+	 * The branches' own timestamps are kept.
+	 */
+	private void mergeBranches(ThreadState state) {
+		ProfilingContext context = state.context;
+		state.context = null;
+		for (RequestTrace branch : context.close()) {
+			int last = branch.size() - 1;
+			record(state, ProfilingContext.BRANCH_SITE, branch.getTime(0), branch.getCpuTime(0),
+					branch.getAllocatedBytes(0), true);
+			for (int i = 0; i <= last; i++) {
+				record(state, branch.getSite(i), branch.getTime(i), branch.getCpuTime(i),
+						branch.getAllocatedBytes(i), branch.isEntry(i));
+			}
+			record(state, ProfilingContext.BRANCH_SITE, branch.getTime(last), branch.getCpuTime(last),
+					branch.getAllocatedBytes(last), false);
+			if (branch.getDroppedFrames() > 0) {
+				log.warn("Profiler branch full: dropped " + branch.getDroppedFrames() +
+						" frames for [" + state.label + "]");
+			}
+		}
+	}
+
+	/**
+	 * Copies the events in the current thread's buffer into a trace and adds
+	 * it to the slow request store, if the request was slow enough. Events
+	 * already flushed to the appenders aren't in the trace, but still count
+	 * towards the request's duration.
+	 * @return <code>true</code> if the request was kept
+	 */
+	private boolean keepIfSlow(ThreadState state) {
+		long duration = System.nanoTime() - state.startNanos;
+		if (!slowRequestStore.isSlow(duration)) {
+			return false;
+		}
+
+		EventRingBuffer buffer = state.buffer;
+		RequestTrace trace = new RequestTrace(state.label, Math.max(buffer.size(), 2));
+		for (int i = 0, n = buffer.size(); i < n; i++) {
+			CallSite site = CallSiteRegistry.get(buffer.getSiteId(i));
+			if (buffer.isEntry(i)) {
+				trace.addEntry(site, buffer.getTime(i), buffer.getCpuTime(i), buffer.getAllocatedBytes(i));
+			}
+			else {
+				trace.addExit(site, buffer.getTime(i), buffer.getCpuTime(i), buffer.getAllocatedBytes(i));
+			}
+		}
+		slowRequestStore.add(new SlowRequest(trace, state.startMillis, duration));
+		return true;
+	}
+
+	/**
+	 * Passes the events in the current thread's buffer to the appenders and
+	 * then discards them.
+	 */
+	private void drain(ThreadState state) {
+		EventRingBuffer buffer = state.buffer;
+		try {
+			for (int i = 0, n = buffer.size(); i < n; i++) {
+				dispatch(state, CallSiteRegistry.get(buffer.getSiteId(i)), buffer.getTime(i),
+						buffer.getCpuTime(i), buffer.getAllocatedBytes(i), buffer.isEntry(i));
+			}
+		}
+		finally {
+			buffer.discard();
+		}
+	}
+
+	/**
+	 * Gives the current thread the appenders to use until profiling stops,
+	 * with a context for each shared appender. The thread's arrays are
+	 * reused as long as the appenders stay the same.
+	 */
+	private void bindAppenders(ThreadState state) {
+		Appenders current = appenders;
+		if (current == null) {
+			current = resolveAppenders();
+		}
+
+		int count = current.appenders.length;
+		if (state.appenders == null || state.appenders.length != count) {
+			state.appenders = new ProfilerAppender[count];
+			state.contexts = new Object[count];
+		}
+
+		for (int i = 0; i < count; i++) {
+			ProfilerAppender appender = current.appenders[i];
+			if (appender == null) {
+				// Not thread-safe, so there's a new one for every request.
+				appender = (ProfilerAppender) applicationContext.getBean(current.names[i]);
+				if (appender instanceof SharedProfilerAppender) {
+					state.contexts[i] = ((SharedProfilerAppender<?>) appender).createContext();
+				}
+			}
+			else if (current.pools[i] != null) {
+				state.contexts[i] = current.pools[i].acquire();
+			}
+			state.appenders[i] = appender;
+		}
+
+		state.appenderSet = current;
+		state.bound = true;
+	}
+
+	/**
+	 * Returns the contexts of the current thread's shared appenders to their pools.
+	 */
+	private void unbindAppenders(ThreadState state) {
+		AppenderContextPool[] pools = state.appenderSet.pools;
+		for (int i = 0; i < state.appenders.length; i++) {
+			try {
+				if (pools[i] != null && state.contexts[i] != null) {
+					pools[i].release(state.contexts[i]);
+				}
+			}
+			catch (RuntimeException e) {
+				log.warn("Profiler appender [" + state.appenderSet.names[i] + "] failed to reset", e);
+			}
+			state.appenders[i] = null;
+			state.contexts[i] = null;
+		}
+		state.appenderSet = null;
+		state.bound = false;
+	}
+
+	/**
+	 * Looks up the appender beans named, unless another thread just has.
+	 */
+	private synchronized Appenders resolveAppenders() {
+		Appenders current = appenders;
+		if (current == null) {
+			current = new Appenders(appenderNames, applicationContext, contextPoolSize);
+			appenders = current;
+		}
+		return current;
+	}
+
+	/**
+	 * Passes a single event to all the appenders. The log keeps track of the
+	 * spans that the appenders have seen, so that an exit ends the innermost
+	 * open span for its site, and spans left open inside it are ended first.
+	 * An exit with no open span is dropped.
+	 */
+	private void dispatch(ThreadState state, CallSite site, long nanos, long cpuTime,
+			long allocatedBytes, boolean entry) {
+		SpanStack spans = state.dispatched;
+		if (entry) {
+			dispatch(state, spans.push(site, nanos, cpuTime, allocatedBytes), nanos, cpuTime, allocatedBytes, true);
+			return;
+		}
+
+		int depth = spans.find(site);
+		while (depth >= 0 && spans.size() > depth) {
+			dispatch(state, spans.pop(), nanos, cpuTime, allocatedBytes, false);
+		}
+	}
+
+	/**
+	 * Passes the start or end of a span to all the appenders. Appenders that
+	 * only understand milliseconds get a wall-clock time derived from the
+	 * monotonic clock, so their timestamps never go backwards either.
+	 */
+	@SuppressWarnings("unchecked")
+	private void dispatch(ThreadState state, Span span, long nanos, long cpuTime,
+			long allocatedBytes, boolean entry) {
+		CallSite site = span.site;
+		ProfilerAppender[] threadAppenders = state.appenders;
+		for (int i = 0; i < threadAppenders.length; i++) {
+			ProfilerAppender appender = threadAppenders[i];
+			Object context = state.contexts[i];
+			if (context != null) {
+				SharedProfilerAppender<Object> sharedAppender = (SharedProfilerAppender<Object>) appender;
+				if (entry) {
+					sharedAppender.logEntry(context, state.label, span);
+				}
+				else {
+					sharedAppender.logExit(context, state.label, span, nanos, cpuTime, allocatedBytes);
+				}
+			}
+			else if (appender instanceof NanoProfilerAppender) {
+				NanoProfilerAppender nanoAppender = (NanoProfilerAppender) appender;
+				if (entry) {
+					nanoAppender.logEntry(state.label, site, nanos, cpuTime, allocatedBytes);
+				}
+				else {
+					nanoAppender.logExit(state.label, site, nanos, cpuTime, allocatedBytes);
+				}
+			}
+			else {
+				long millis = state.startMillis + (nanos - state.startNanos) / 1000000L;
+				if (entry) {
+					appender.logEntry(state.label, site.getTargetClass(), site.getName(), millis);
+				}
+				else {
+					appender.logExit(state.label, site.getTargetClass(), site.getName(), millis);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The appenders for a given list of names. Singleton beans are looked
+	 * up here, once; prototype beans are left <code>null</code>, to be
+	 * fetched for each request.
+	 */
+	private static class Appenders {
+		final String[] names;
+		final ProfilerAppender[] appenders;
+
+		/** The context pools of the shared appenders, with <code>null</code> for the others. */
+		final AppenderContextPool[] pools;
+
+		Appenders(List<String> appenderNames, ApplicationContext applicationContext, int poolSize) {
+			names = appenderNames.toArray(new String[appenderNames.size()]);
+			appenders = new ProfilerAppender[names.length];
+			pools = new AppenderContextPool[names.length];
+
+			for (int i = 0; i < names.length; i++) {
+				if (applicationContext.isPrototype(names[i])) {
+					continue;
+				}
+
+				appenders[i] = (ProfilerAppender) applicationContext.getBean(names[i]);
+				if (appenders[i] instanceof SharedProfilerAppender) {
+					pools[i] = new AppenderContextPool((SharedProfilerAppender<?>) appenders[i], poolSize);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The profiling state of a single thread. One instance is created per
+	 * thread and reused, so checking whether profiling is on only takes a
+	 * single thread-local lookup.
+	 */
+	private static class ThreadState {
+		String label;
+
+		/** Whether the appenders below are in use. */
+		boolean bound;
+		Appenders appenderSet;
+		ProfilerAppender[] appenders;
+
+		/** The contexts of the shared appenders, with <code>null</code> for the others. */
+		Object[] contexts;
+
+		EventRingBuffer buffer;
+		long startMillis;
+		long startNanos;
+		boolean sampleResources;
+
+		/** The spans entered but not yet exited. */
+		final SpanStack spans;
+
+		/** The spans that the appenders have seen entered but not yet exited. */
+		final SpanStack dispatched = new SpanStack(null);
+
+		/** The context captured for other threads, if any. */
+		ProfilingContext context;
+
+		/** The branch being recorded when running in another thread's context. */
+		RequestTrace branch;
+		ProfilingContext branchContext;
+
+		ThreadState(DefaultProfilerLog log) {
+			spans = new SpanStack(log);
 		}
 	}
 }
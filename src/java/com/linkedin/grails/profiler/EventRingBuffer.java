@@ -0,0 +1,242 @@
+package com.linkedin.grails.profiler;
+
+/**
+ * A preallocated ring buffer of profiling events, stored as primitive
+ * records: call site id, {@link System#nanoTime()} timestamp and depth.
+ * The buffer can optionally hold the thread CPU time and allocated bytes
+ * for each event as well, see {@link #enableResources()}.
+ * Recording an event does not allocate anything. This class is not
+ * thread-safe - it is meant to be confined to a single thread and reused
+ * from one profiled request to the next.
+ * <p>
+ * When the buffer fills up, new frames are dropped (and counted) rather
+ * than overwriting old events. Room is always reserved for the exit events
+ * of frames that have already been entered, so the recorded events are
+ * guaranteed to be balanced.
+ */
+public class EventRingBuffer {
+	private final int capacity;
+	private final int[] siteIds;
+	private final long[] times;
+
+	/**
+	 * Depth of each event: <code>depth + 1</code> for entry events and
+	 * <code>-(depth + 1)</code> for exit events.
+	 */
+	private final int[] depths;
+
+	private long[] cpuTimes;
+	private long[] allocatedBytes;
+
+	private int head;
+	private int count;
+
+	/** Number of recorded frames that have been entered but not exited. */
+	private int depth;
+
+	/** Number of open frames whose entry was dropped. */
+	private int skippedDepth;
+
+	private int droppedFrames;
+
+	/**
+	 * Creates a buffer that can hold the given number of events.
+	 * @param capacity the capacity, which must be at least 2
+	 */
+	public EventRingBuffer(int capacity) {
+		if (capacity < 2) {
+			throw new IllegalArgumentException("Capacity must be at least 2, but was " + capacity);
+		}
+
+		this.capacity = capacity;
+		siteIds = new int[capacity];
+		times = new long[capacity];
+		depths = new int[capacity];
+	}
+
+	/**
+	 * Allocates the storage for thread CPU times and allocated bytes, if
+	 * that hasn't been done already. Until this is called, the resource
+	 * values passed to the record methods are ignored.
+	 */
+	public void enableResources() {
+		if (cpuTimes == null) {
+			cpuTimes = new long[capacity];
+			allocatedBytes = new long[capacity];
+		}
+	}
+
+	/**
+	 * Records an entry event, unless there is no room left for both it and
+	 * its corresponding exit event. In that case the frame is dropped.
+	 * @param siteId the id of the call site being entered
+	 * @param nanos the entry time, as returned by {@link System#nanoTime()}
+	 * @return <code>true</code> if the event was recorded
+	 */
+	public boolean recordEntry(int siteId, long nanos) {
+		return recordEntry(siteId, nanos, -1L, -1L);
+	}
+
+	/**
+	 * Records an entry event along with the resources used by the thread so
+	 * far, unless there is no room left for both it and its corresponding exit
+	 * event. In that case the frame is dropped.
+	 * @param siteId the id of the call site being entered
+	 * @param nanos the entry time, as returned by {@link System#nanoTime()}
+	 * @param cpuNanos the thread CPU time, or -1
+	 * @param bytes the bytes allocated by the thread, or -1
+	 * @return <code>true</code> if the event was recorded
+	 */
+	public boolean recordEntry(int siteId, long nanos, long cpuNanos, long bytes) {
+		if (skippedDepth > 0 || count + depth + 2 > capacity) {
+			skippedDepth++;
+			droppedFrames++;
+			return false;
+		}
+
+		put(siteId, nanos, depth + 1, cpuNanos, bytes);
+		depth++;
+		return true;
+	}
+
+	/**
+	 * Records an exit event. If the corresponding entry event was dropped,
+	 * so is this one.
+	 * @param siteId the id of the call site being exited
+	 * @param nanos the exit time, as returned by {@link System#nanoTime()}
+	 * @return <code>true</code> if the event was recorded
+	 */
+	public boolean recordExit(int siteId, long nanos) {
+		return recordExit(siteId, nanos, -1L, -1L);
+	}
+
+	/**
+	 * Records an exit event along with the resources used by the thread so
+	 * far. If the corresponding entry event was dropped, so is this one.
+	 * @param siteId the id of the call site being exited
+	 * @param nanos the exit time, as returned by {@link System#nanoTime()}
+	 * @param cpuNanos the thread CPU time, or -1
+	 * @param bytes the bytes allocated by the thread, or -1
+	 * @return <code>true</code> if the event was recorded
+	 */
+	public boolean recordExit(int siteId, long nanos, long cpuNanos, long bytes) {
+		if (skippedDepth > 0) {
+			skippedDepth--;
+			return false;
+		}
+
+		// Unbalanced exit: nothing to match it with.
+		if (depth == 0) {
+			return false;
+		}
+
+		depth--;
+		put(siteId, nanos, -(depth + 1), cpuNanos, bytes);
+		return true;
+	}
+
+	private void put(int siteId, long nanos, int signedDepth, long cpuNanos, long bytes) {
+		int index = (head + count) % capacity;
+		siteIds[index] = siteId;
+		times[index] = nanos;
+		depths[index] = signedDepth;
+		if (cpuTimes != null) {
+			cpuTimes[index] = cpuNanos;
+			allocatedBytes[index] = bytes;
+		}
+		count++;
+	}
+
+	/**
+	 * @return the number of events currently held in the buffer
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the number of frames dropped since the buffer was last cleared
+	 */
+	public int getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	/**
+	 * @param i the index of the event, starting with the oldest at 0
+	 * @return the call site id of the event
+	 */
+	public int getSiteId(int i) {
+		return siteIds[index(i)];
+	}
+
+	/**
+	 * @param i the index of the event, starting with the oldest at 0
+	 * @return the time of the event in nanoseconds
+	 */
+	public long getTime(int i) {
+		return times[index(i)];
+	}
+
+	/**
+	 * @param i the index of the event, starting with the oldest at 0
+	 * @return the thread CPU time at the event in nanoseconds, or -1
+	 */
+	public long getCpuTime(int i) {
+		int index = index(i);
+		return cpuTimes == null ? -1L : cpuTimes[index];
+	}
+
+	/**
+	 * @param i the index of the event, starting with the oldest at 0
+	 * @return the bytes allocated by the thread at the event, or -1
+	 */
+	public long getAllocatedBytes(int i) {
+		int index = index(i);
+		return allocatedBytes == null ? -1L : allocatedBytes[index];
+	}
+
+	/**
+	 * @param i the index of the event, starting with the oldest at 0
+	 * @return the depth of the event, with 0 being the outermost frame
+	 */
+	public int getDepth(int i) {
+		int signedDepth = depths[index(i)];
+		return (signedDepth > 0 ? signedDepth : -signedDepth) - 1;
+	}
+
+	/**
+	 * @param i the index of the event, starting with the oldest at 0
+	 * @return <code>true</code> if the event is an entry, <code>false</code> if it's an exit
+	 */
+	public boolean isEntry(int i) {
+		return depths[index(i)] > 0;
+	}
+
+	private int index(int i) {
+		if (i < 0 || i >= count) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", size: " + count);
+		}
+		return (head + i) % capacity;
+	}
+
+	/**
+	 * Discards the events currently held in the buffer, freeing up their
+	 * space, but keeps track of the frames that are still open. This is
+	 * what a reader does once it has consumed the events.
+	 */
+	public void discard() {
+		head = (head + count) % capacity;
+		count = 0;
+	}
+
+	/**
+	 * Resets the buffer completely, ready for reuse by the next request.
+	 */
+	public void clear() {
+		head = 0;
+		count = 0;
+		depth = 0;
+		skippedDepth = 0;
+		droppedFrames = 0;
+	}
+}
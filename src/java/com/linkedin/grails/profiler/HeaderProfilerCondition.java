@@ -0,0 +1,62 @@
+package com.linkedin.grails.profiler;
+
+import java.util.Collection;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A profiler condition that checks a request header, such as a trace
+ * header added by a load-testing harness or a tenant ID. If no values are
+ * given, the header only has to be present; otherwise its value must be
+ * one of them. The header name and values may be changed at any time.
+ */
+public class HeaderProfilerCondition extends AbstractRequestProfilerCondition {
+	private volatile String headerName;
+	private volatile Set<String> values;
+
+	/**
+	 * @return the name of the header
+	 */
+	public String getHeaderName() {
+		return headerName;
+	}
+
+	/**
+	 * Sets the name of the header that determines whether profiling should occur.
+	 * @param headerName the name
+	 */
+	public void setHeaderName(String headerName) {
+		this.headerName = headerName;
+	}
+
+	/**
+	 * @return the values that switch profiling on, or <code>null</code> if any value will do
+	 */
+	public Set<String> getValues() {
+		return values;
+	}
+
+	/**
+	 * Sets the values of the header that switch profiling on. An empty
+	 * collection means that any value will do.
+	 * @param values the values
+	 */
+	public void setValues(Collection<String> values) {
+		this.values = copyValues(values);
+	}
+
+	/**
+	 * Returns <code>true</code> if the request has the header, with one of
+	 * the values if there are any.
+	 */
+	public boolean doProfiling(HttpServletRequest request) {
+		String value = request.getHeader(headerName);
+		if (value == null) {
+			return false;
+		}
+
+		Set<String> allowed = values;
+		return allowed == null || allowed.contains(value);
+	}
+}
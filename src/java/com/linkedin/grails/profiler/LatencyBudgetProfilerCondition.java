@@ -0,0 +1,125 @@
+package com.linkedin.grails.profiler;
+
+/**
+ * A profiler condition that switches profiling on while requests are
+ * taking longer than they should. {@link ProfilerFilter} reports the
+ * duration of every request, profiled or not, and at the end of each time
+ * window, ten seconds by default, a percentile (the 95th by default) of the
+ * durations is compared with the budget. Throughout the next window the
+ * condition is satisfied if, and only if, the budget was exceeded.
+ * <p>
+ * While over budget every request passes, so this condition is usually
+ * combined with a URI condition or with sampling in a
+ * {@link CompositeProfilerCondition} that requires all of them. Asking
+ * the condition only reads a flag; reporting a duration doesn't take any
+ * locks except when a window ends.
+ */
+public class LatencyBudgetProfilerCondition implements ProfilerCondition {
+	private volatile long budgetNanos;
+	private volatile double percentile = 95;
+	private int minSamples = 20;
+	private long windowNanos = 10L * 1000000000L;
+
+	/** The durations of the current window. */
+	private volatile LatencyHistogram window = new LatencyHistogram();
+	private volatile long windowStart = System.nanoTime();
+
+	private volatile boolean overBudget;
+
+	/**
+	 * @return the budget in milliseconds
+	 */
+	public long getBudgetMillis() {
+		return budgetNanos / 1000000L;
+	}
+
+	/**
+	 * Sets how long requests should take. This may be changed at any time.
+	 * @param budgetMillis the budget in milliseconds
+	 */
+	public void setBudgetMillis(long budgetMillis) {
+		if (budgetMillis <= 0) {
+			throw new IllegalArgumentException("Budget must be positive, but was " + budgetMillis);
+		}
+		budgetNanos = budgetMillis * 1000000L;
+	}
+
+	/**
+	 * Sets the percentile of request durations that is compared with the
+	 * budget. Defaults to 95. This may be changed at any time.
+	 * @param percentile the percentile, between 0 and 100
+	 */
+	public void setPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("Percentile must be between 0 and 100, but was " + percentile);
+		}
+		this.percentile = percentile;
+	}
+
+	/**
+	 * Sets how many requests a window must have for its durations to count.
+	 * Defaults to 20. This should not be called once the condition is in use.
+	 * @param minSamples the number of requests
+	 */
+	public void setMinSamples(int minSamples) {
+		this.minSamples = minSamples;
+	}
+
+	/**
+	 * Sets the length of each window. Defaults to 10 seconds. This should
+	 * not be called once the condition is in use.
+	 * @param windowSeconds the window length in seconds
+	 */
+	public void setWindowSeconds(int windowSeconds) {
+		if (windowSeconds < 1) {
+			throw new IllegalArgumentException("Window must be at least 1 second, but was " + windowSeconds);
+		}
+		windowNanos = windowSeconds * 1000000000L;
+	}
+
+	/**
+	 * @return whether requests went over budget during the last window
+	 */
+	public boolean isOverBudget() {
+		return overBudget;
+	}
+
+	/**
+	 * Records the duration of a finished request.
+	 * @param nanos the duration in nanoseconds
+	 */
+	public void requestCompleted(long nanos) {
+		long now = System.nanoTime();
+		if (now - windowStart >= windowNanos) {
+			rotate(now);
+		}
+		window.record(nanos);
+	}
+
+	/**
+	 * Returns <code>true</code> if requests went over budget during the last window.
+	 */
+	public boolean doProfiling() {
+		return overBudget;
+	}
+
+	/**
+	 * Starts a new window, checking the one just finished against the budget.
+	 */
+	private synchronized void rotate(long now) {
+		if (now - windowStart < windowNanos) {
+			return;
+		}
+
+		LatencyHistogram finished = window;
+		window = new LatencyHistogram();
+
+		// A window with no requests at all doesn't count either way, and
+		// if the last one was more than a window ago, it's out of date.
+		boolean recent = now - windowStart < 2 * windowNanos;
+		windowStart = now;
+
+		overBudget = recent && finished.getCount() >= minSamples &&
+				finished.getValueAtPercentile(percentile) > budgetNanos;
+	}
+}
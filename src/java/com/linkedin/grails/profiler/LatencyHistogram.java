@@ -0,0 +1,120 @@
+package com.linkedin.grails.profiler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe, lock-free histogram of durations in nanoseconds. Values
+ * are counted in {@link LogLinearBuckets}, so any percentile is accurate
+ * to within 12.5%. Durations of 2^40 ns (about 18 minutes) or more are
+ * counted in the last bucket.
+ * <p>
+ * The total count and sum are striped across several counters to keep
+ * contention down when many threads record into the same histogram.
+ */
+public class LatencyHistogram {
+	/** Buckets for durations from 8 ns up to 2^40 ns. */
+	static final LogLinearBuckets BUCKETS = new LogLinearBuckets(3, 40);
+
+	static final int BUCKET_COUNT = BUCKETS.size();
+
+	/** Stripes for the count and sum. Must be a power of two. */
+	private static final int STRIPES = 8;
+
+	/** Spacing between stripes, so that each one gets its own cache line. */
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLongArray counts = new AtomicLongArray(STRIPES * PADDING);
+	private final AtomicLongArray sums = new AtomicLongArray(STRIPES * PADDING);
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a duration.
+	 * @param nanos the duration in nanoseconds. Negative values are treated as 0.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		buckets.incrementAndGet(BUCKETS.indexOf(nanos));
+
+		int stripe = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+		counts.incrementAndGet(stripe);
+		sums.addAndGet(stripe, nanos);
+
+		long currentMax = max.get();
+		while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+			currentMax = max.get();
+		}
+	}
+
+	/**
+	 * @return the number of durations recorded
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			count += counts.get(i * PADDING);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the sum of all the durations recorded, in nanoseconds
+	 */
+	public long getTotal() {
+		long total = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			total += sums.get(i * PADDING);
+		}
+		return total;
+	}
+
+	/**
+	 * @return the mean duration in nanoseconds, or 0 if nothing has been recorded
+	 */
+	public long getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : getTotal() / count;
+	}
+
+	/**
+	 * @return the longest duration recorded, in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns an upper bound for the given percentile of the recorded durations.
+	 * Since the histogram is updated concurrently, the result is approximate.
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the duration in nanoseconds, or 0 if nothing has been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] counts = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		return BUCKETS.valueAtPercentile(counts, total, percentile, getMax());
+	}
+
+	/**
+	 * Copies the bucket counts into the given array, adding to whatever
+	 * is there already, and returns the total count copied.
+	 * @param target an array of at least {@link #BUCKET_COUNT} elements
+	 */
+	long addBucketsTo(long[] target) {
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			long count = buckets.get(i);
+			target[i] += count;
+			total += count;
+		}
+		return total;
+	}
+}
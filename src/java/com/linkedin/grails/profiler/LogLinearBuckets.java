@@ -0,0 +1,97 @@
+package com.linkedin.grails.profiler;
+
+/**
+ * The bucket layout shared by the histograms: log-linear buckets in the
+ * style of HdrHistogram, where each power of two is split into 8
+ * sub-buckets, so that any percentile is accurate to within 12.5%. Values
+ * below 2^minMagnitude are counted in the first bucket, and values of
+ * 2^maxMagnitude or more in the last. Instances are immutable.
+ */
+final class LogLinearBuckets {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final int minMagnitude;
+	private final int maxMagnitude;
+	private final int count;
+
+	/**
+	 * @param minMagnitude the power of two that the smallest bucketed values
+	 * start at. Must be at least 3.
+	 * @param maxMagnitude the power of two from which values all go in the last bucket
+	 */
+	LogLinearBuckets(int minMagnitude, int maxMagnitude) {
+		if (minMagnitude < SUB_BUCKET_BITS || maxMagnitude <= minMagnitude || maxMagnitude > 62) {
+			throw new IllegalArgumentException("Invalid magnitudes: " + minMagnitude + " to " + maxMagnitude);
+		}
+
+		this.minMagnitude = minMagnitude;
+		this.maxMagnitude = maxMagnitude;
+		count = (maxMagnitude - minMagnitude) * SUB_BUCKETS + 2;
+	}
+
+	/**
+	 * @return the number of buckets
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the index of the bucket that the given value is counted in.
+	 * @param value the value, which must not be negative
+	 */
+	int indexOf(long value) {
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		if (magnitude < minMagnitude) {
+			return 0;
+		}
+		if (magnitude >= maxMagnitude) {
+			return count - 1;
+		}
+
+		int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+		return 1 + (magnitude - minMagnitude) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Returns the largest value that is counted in the given bucket.
+	 */
+	long upperBound(int index) {
+		if (index == 0) {
+			return (1L << minMagnitude) - 1;
+		}
+		if (index == count - 1) {
+			return Long.MAX_VALUE;
+		}
+
+		int magnitude = minMagnitude + (index - 1) / SUB_BUCKETS;
+		int shift = magnitude - SUB_BUCKET_BITS;
+		long lowerBound = (long) (SUB_BUCKETS + (index - 1) % SUB_BUCKETS) << shift;
+		return lowerBound + (1L << shift) - 1;
+	}
+
+	/**
+	 * Returns an upper bound for the given percentile of a set of bucket counts.
+	 * @param counts the count of each bucket
+	 * @param total the sum of the counts
+	 * @param percentile the percentile, between 0 and 100
+	 * @param max the largest value counted, which the result never exceeds
+	 * @return the value, or 0 if nothing was counted
+	 */
+	long valueAtPercentile(long[] counts, long total, double percentile, long max) {
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(total * Math.min(100.0, Math.max(0.0, percentile)) / 100.0));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max);
+			}
+		}
+		return max;
+	}
+}
@@ -1,31 +1,41 @@
 package com.linkedin.grails.profiler;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Appender for the profiler log that writes the entry and exit messages
- * to a named logger. This is not a thread-safe class, and so it should
- * be scoped "prototype" when used with {@link DefaultProfilerLog}.
+ * to a named logger. With {@link DefaultProfilerLog}, it is shared by all
+ * threads: each frame's start time and depth come from its {@link Span},
+ * so frames for the same call site can nest, and the only state kept per
+ * request is in a {@link Context}. The {@link NanoProfilerAppender}
+ * methods, for other logs, share a single context and so aren't thread-safe.
+ * <p>
+ * If an {@link AsyncLogWriter} is configured, the appender doesn't log
+ * anything itself. Instead, it records the events of each request into a
+ * {@link RequestTrace} and hands the trace to the writer once the request's
+ * outermost frame has been exited. The writer formats and logs the trace on
+ * a background thread.
  */
-public class LoggingAppender implements ProfilerAppender {
+public class LoggingAppender implements NanoProfilerAppender, SharedProfilerAppender<LoggingAppender.Context> {
 	/**
 	 * The logger name.
 	 */
 	public static final String LOGGER_NAME = "com.linkedin.grails.ProfilerPlugin";
 
-	/** Map of identities (such as methods) to start times. */
-	private Map<String, Long> startTimes = new HashMap<String, Long>();
-
-	/** Current indent level for the log messages. */
-	private int indentLevel;
-
 	/** Padding string to use for indent. */
 	private String padding = "  ";
 
+	/** Writes traces in the background, if set. */
+	private AsyncLogWriter asyncWriter;
+
+	/** Maximum number of events in a trace handed to the async writer. */
+	private int maxTraceEvents = 10000;
+
+	/** The context and spans used by the methods that aren't given a context. */
+	private final Context defaultContext = new Context();
+	private final SpanStack defaultSpans = new SpanStack(null);
+
 	/**
 	 * Sets the padding string to use when building the indent for a log message.
 	 * @param padding the padding
@@ -34,6 +44,24 @@ public class LoggingAppender implements ProfilerAppender {
 		this.padding = padding;
 	}
 
+	/**
+	 * Sets the writer that traces are handed to. If this is set, the appender
+	 * logs asynchronously; otherwise it logs every event as it happens.
+	 * @param asyncWriter the writer
+	 */
+	public void setAsyncWriter(AsyncLogWriter asyncWriter) {
+		this.asyncWriter = asyncWriter;
+	}
+
+	/**
+	 * Sets the maximum number of events recorded for a request when logging
+	 * asynchronously. Further frames are dropped.
+	 * @param maxTraceEvents the maximum
+	 */
+	public void setMaxTraceEvents(int maxTraceEvents) {
+		this.maxTraceEvents = maxTraceEvents;
+	}
+
 	/**
 	 * Writes an INFO message to the logger, but does not include the entry time.
 	 * @param label An identifier for the current profile hierarchy.
@@ -44,21 +72,7 @@ public class LoggingAppender implements ProfilerAppender {
 	 * i.e. what System.currentTimeMillis() returns.
 	 */
 	public void logEntry(String label, Class<?> clazz, String name, long entryTime) {
-		clazz = ClassUtil.getRealClass(clazz);
-		Logger log = LoggerFactory.getLogger(LOGGER_NAME);
-
-		// Get the identifier for this log entry.
-		String identity = getIdentity(label, clazz, name);
-
-		// Save the start time against the identity. The identity should
-		// be unique for the appender.
-		startTimes.put(identity, entryTime);
-
-		// Log the message.
-		log.info(getIndent() + "Entering " + identity);
-
-		// Increase the indent of the next entry log message.
-		indentLevel++;
+		logEntry(label, CallSiteRegistry.intern(clazz, name), entryTime * 1000000L, -1L, -1L);
 	}
 
 	/**
@@ -72,33 +86,115 @@ public class LoggingAppender implements ProfilerAppender {
 	 * i.e. what System.currentTimeMillis() returns.
 	 */
 	public void logExit(String label, Class<?> clazz, String name, long exitTime) {
-		clazz = ClassUtil.getRealClass(clazz);
+		logExit(label, CallSiteRegistry.intern(clazz, name), exitTime * 1000000L, -1L, -1L);
+	}
+
+	/**
+	 * Same as the context version, using a context shared by all callers.
+	 */
+	public void logEntry(String label, CallSite site, long entryNanos, long cpuNanos, long allocatedBytes) {
+		logEntry(defaultContext, label, defaultSpans.push(site, entryNanos, cpuNanos, allocatedBytes));
+	}
+
+	/**
+	 * Same as the context version, using a context shared by all callers.
+	 * The innermost open frame for the call site is exited.
+	 */
+	public void logExit(String label, CallSite site, long exitNanos, long cpuNanos, long allocatedBytes) {
+		int depth = defaultSpans.find(site);
+		while (depth >= 0 && defaultSpans.size() > depth) {
+			logExit(defaultContext, label, defaultSpans.pop(), exitNanos, cpuNanos, allocatedBytes);
+		}
+	}
+
+	/**
+	 * Creates an empty context.
+	 */
+	public Context createContext() {
+		return new Context();
+	}
+
+	/**
+	 * Writes an INFO message to the logger, but does not include the entry
+	 * time. The message is indented by the depth of the span.
+	 * @param context The context of the current request.
+	 * @param label An identifier for the current profile hierarchy.
+	 * @param span The span that has started.
+	 */
+	public void logEntry(Context context, String label, Span span) {
+		if (asyncWriter != null) {
+			if (context.trace == null) {
+				context.trace = new RequestTrace(label, maxTraceEvents);
+			}
+			context.trace.addEntry(span.getSite(), span.getStartNanos(), span.getStartCpuNanos(),
+					span.getStartAllocatedBytes());
+			return;
+		}
+
+		// Log the message.
 		Logger log = LoggerFactory.getLogger(LOGGER_NAME);
+		log.info(getIndent(span.getDepth()) + "Entering " + getIdentity(label, span.getSite()));
+	}
 
-		// Descrease the indent for this log message.
-		indentLevel--;
+	/**
+	 * Writes an INFO message to the logger that includes the total time
+	 * taken for execution of the element (method, action, or whatever),
+	 * with microsecond precision. If the thread's resources were sampled,
+	 * the CPU time and allocated bytes for the element are included too.
+	 * @param context The context of the current request.
+	 * @param label An identifier for the current profile hierarchy.
+	 * @param span The span that has ended.
+	 * @param exitNanos The exit time in nanoseconds, i.e. what
+	 * System.nanoTime() returns.
+	 * @param cpuNanos The thread CPU time in nanoseconds, or -1.
+	 * @param allocatedBytes The bytes allocated by the thread, or -1.
+	 */
+	public void logExit(Context context, String label, Span span, long exitNanos, long cpuNanos, long allocatedBytes) {
+		if (asyncWriter != null) {
+			RequestTrace trace = context.trace;
+			if (trace != null) {
+				trace.addExit(span.getSite(), exitNanos, cpuNanos, allocatedBytes);
+
+				// Once the outermost frame has been exited, the trace is finished.
+				if (trace.isComplete()) {
+					asyncWriter.submit(trace);
+					context.trace = null;
+				}
+			}
+			return;
+		}
 
-		// Get the identifier for this log entry.
-		String identity = getIdentity(label, clazz, name);
+		Logger log = LoggerFactory.getLogger(LOGGER_NAME);
 
-		// Calculate the total time taken.
-		long startTime = startTimes.get(identity);
-		long totalTime = exitTime - startTime;
+		// Calculate the total time taken, and the resources used if we have them.
+		long totalTime = exitNanos - span.getStartNanos();
+		long cpuTime = cpuNanos >= 0 && span.getStartCpuNanos() >= 0 ? cpuNanos - span.getStartCpuNanos() : -1L;
+		long bytes = allocatedBytes >= 0 && span.getStartAllocatedBytes() >= 0 ?
+				allocatedBytes - span.getStartAllocatedBytes() : -1L;
 
 		// Log the message.
-		log.info(getIndent() + "Exiting " + identity + "   (Time: " + totalTime + ")");
+		StringBuilder message = new StringBuilder(getIndent(span.getDepth())).append("Exiting ")
+				.append(getIdentity(label, span.getSite())).append("   ");
+		log.info(TimeUtil.appendFrameTimes(message, totalTime, cpuTime, bytes).toString());
+	}
+
+	/**
+	 * Forgets any unfinished trace.
+	 */
+	public void reset(Context context) {
+		context.trace = null;
 	}
 
 	/**
-	 * Returns the current indent string to use, based on the current
-	 * indent level. The string returned is the padding * indent level.
+	 * Returns the indent string to use for the given depth. The string
+	 * returned is the padding * depth.
 	 */
-	private String getIndent() {
+	private String getIndent(int depth) {
 		// Create a buffer big enough to hold the whole indent.
-		StringBuilder buffer = new StringBuilder(indentLevel * padding.length());
+		StringBuilder buffer = new StringBuilder(depth * padding.length());
 
-		// Repeatedly append the padding to the buffer, "indentLevel" number of times.
-		for (int i = 0; i < indentLevel; i++) {
+		// Repeatedly append the padding to the buffer, "depth" number of times.
+		for (int i = 0; i < depth; i++) {
 			buffer.append(padding);
 		}
 
@@ -106,11 +202,19 @@ public class LoggingAppender implements ProfilerAppender {
 	}
 
 	/**
-	 * Returns an identity string based on a label, class, and element
-	 * name. This should be unique for any given instance of the appender,
-	 * but there are no guarantees.
+	 * Returns an identity string based on a label and call site. This
+	 * should be unique for any given instance of the appender, but there
+	 * are no guarantees.
+	 */
+	private String getIdentity(String label, CallSite site) {
+		return "[" + label + "] " + site.getIdentity();
+	}
+
+	/**
+	 * The state of one request.
 	 */
-	private String getIdentity(String label, Class<?> clazz, String name) {
-		return "[" + label + "] " + clazz.getName() + ":" + name;
+	public static class Context {
+		/** The trace of the current request, when logging asynchronously. */
+		RequestTrace trace;
 	}
 }
@@ -0,0 +1,261 @@
+package com.linkedin.grails.profiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps an {@link OperationTimer} for every controller action and service
+ * method called, whether or not the request is being profiled, and writes
+ * them out in the Prometheus text exposition format. Timers are created the
+ * first time an action or method is seen; after that, looking one up is
+ * lock-free and allocates nothing. Action timers are found by controller and
+ * action name, service method timers by {@link CallSite} id.
+ */
+public class MetricsRegistry {
+	private boolean slidingWindows;
+
+	private final ConcurrentMap<String, ConcurrentMap<String, OperationTimer>> actionTimers =
+			new ConcurrentHashMap<String, ConcurrentMap<String, OperationTimer>>();
+
+	private volatile AtomicReferenceArray<OperationTimer> serviceTimers =
+			new AtomicReferenceArray<OperationTimer>(256);
+
+	/**
+	 * Sets whether the timers should also keep the recent durations, for
+	 * percentiles over sliding windows. This takes up to about 64 KB for each
+	 * action or method that is in use. This should not be called once the registry
+	 * is in use.
+	 * @param slidingWindows <code>true</code> to keep the recent durations
+	 */
+	public void setSlidingWindows(boolean slidingWindows) {
+		this.slidingWindows = slidingWindows;
+	}
+
+	/**
+	 * Returns the timer for the given controller action, creating it if need be.
+	 * @param controller the controller name, e.g. "book"
+	 * @param action the action name, e.g. "list"
+	 * @return the timer
+	 */
+	public OperationTimer getActionTimer(String controller, String action) {
+		ConcurrentMap<String, OperationTimer> timers = actionTimers.get(controller);
+		if (timers != null) {
+			OperationTimer timer = timers.get(action);
+			if (timer != null) {
+				return timer;
+			}
+		}
+		return createActionTimer(controller, action);
+	}
+
+	/**
+	 * Returns the timer for the given service method, creating it if need be.
+	 * @param site the call site of the method
+	 * @return the timer
+	 */
+	public OperationTimer getServiceTimer(CallSite site) {
+		AtomicReferenceArray<OperationTimer> timers = serviceTimers;
+		if (site.getId() < timers.length()) {
+			OperationTimer timer = timers.get(site.getId());
+			if (timer != null) {
+				return timer;
+			}
+		}
+		return createServiceTimer(site);
+	}
+
+	/**
+	 * @return the timers of all the controller actions seen so far
+	 */
+	public List<OperationTimer> getActionTimers() {
+		List<OperationTimer> result = new ArrayList<OperationTimer>();
+		for (ConcurrentMap<String, OperationTimer> timers : actionTimers.values()) {
+			result.addAll(timers.values());
+		}
+		return result;
+	}
+
+	/**
+	 * @return the timers of all the service methods seen so far
+	 */
+	public List<OperationTimer> getServiceTimers() {
+		List<OperationTimer> result = new ArrayList<OperationTimer>();
+		AtomicReferenceArray<OperationTimer> timers = serviceTimers;
+		for (int i = 0; i < timers.length(); i++) {
+			OperationTimer timer = timers.get(i);
+			if (timer != null) {
+				result.add(timer);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Writes all the timers in the Prometheus text exposition format (version
+	 * 0.0.4), as histograms of durations in seconds plus error counters:
+	 * <pre>
+	 * grails_action_duration_seconds_bucket{controller="book",action="list",le="0.005"} 12
+	 * grails_action_duration_seconds_sum{controller="book",action="list"} 0.042
+	 * grails_action_duration_seconds_count{controller="book",action="list"} 15
+	 * grails_action_errors_total{controller="book",action="list"} 0
+	 * </pre>
+	 * and the same for services, with "service" and "method" labels.
+	 * @param out the writer
+	 * @throws IOException if the metrics can't be written
+	 */
+	public void writeMetrics(Writer out) throws IOException {
+		StringBuilder buffer = new StringBuilder(4096);
+		List<OperationTimer> actions = getActionTimers();
+		List<OperationTimer> services = getServiceTimers();
+
+		appendHistograms(buffer, out, "grails_action_duration_seconds",
+				"Time taken by controller actions, including their views.", "controller", "action", actions);
+		appendCounters(buffer, out, "grails_action_errors_total",
+				"Controller actions that threw an exception.", "controller", "action", actions);
+		appendHistograms(buffer, out, "grails_service_duration_seconds",
+				"Time taken by service methods.", "service", "method", services);
+		appendCounters(buffer, out, "grails_service_errors_total",
+				"Service methods that threw an exception.", "service", "method", services);
+
+		out.append(buffer);
+		out.flush();
+	}
+
+	private void appendHistograms(StringBuilder buffer, Writer out, String metric, String help,
+			String ownerLabel, String nameLabel, List<OperationTimer> timers) throws IOException {
+		buffer.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+		buffer.append("# TYPE ").append(metric).append(" histogram\n");
+		for (OperationTimer timer : timers) {
+			long cumulative = 0;
+			for (int i = 0; i <= OperationTimer.BUCKET_BOUNDS.length; i++) {
+				cumulative += timer.getBucketCount(i);
+				buffer.append(metric).append("_bucket");
+				appendLabels(buffer, ownerLabel, nameLabel, timer);
+				buffer.append(",le=\"");
+				if (i < OperationTimer.BUCKET_BOUNDS.length) {
+					appendSeconds(buffer, OperationTimer.BUCKET_BOUNDS[i]);
+				}
+				else {
+					buffer.append("+Inf");
+				}
+				buffer.append("\"} ").append(cumulative).append('\n');
+			}
+
+			buffer.append(metric).append("_sum");
+			appendLabels(buffer, ownerLabel, nameLabel, timer);
+			buffer.append("} ");
+			appendSeconds(buffer, timer.getTotal());
+			buffer.append('\n');
+
+			// The count must match the +Inf bucket, even while calls are being recorded.
+			buffer.append(metric).append("_count");
+			appendLabels(buffer, ownerLabel, nameLabel, timer);
+			buffer.append("} ").append(cumulative).append('\n');
+
+			flushIfFull(buffer, out);
+		}
+	}
+
+	private void appendCounters(StringBuilder buffer, Writer out, String metric, String help,
+			String ownerLabel, String nameLabel, List<OperationTimer> timers) throws IOException {
+		buffer.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+		buffer.append("# TYPE ").append(metric).append(" counter\n");
+		for (OperationTimer timer : timers) {
+			buffer.append(metric);
+			appendLabels(buffer, ownerLabel, nameLabel, timer);
+			buffer.append("} ").append(timer.getErrors()).append('\n');
+			flushIfFull(buffer, out);
+		}
+	}
+
+	/**
+	 * Appends the opening brace and the labels, leaving the set open.
+	 */
+	private static void appendLabels(StringBuilder buffer, String ownerLabel, String nameLabel, OperationTimer timer) {
+		buffer.append('{').append(ownerLabel).append("=\"");
+		appendLabelValue(buffer, timer.getOwner());
+		buffer.append("\",").append(nameLabel).append("=\"");
+		appendLabelValue(buffer, timer.getName());
+		buffer.append('"');
+	}
+
+	private static void appendLabelValue(StringBuilder buffer, String value) {
+		for (int i = 0, n = value.length(); i < n; i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') {
+				buffer.append('\\').append(c);
+			}
+			else if (c == '\n') {
+				buffer.append("\\n");
+			}
+			else {
+				buffer.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Appends a time in nanoseconds as seconds, without losing precision.
+	 */
+	private static void appendSeconds(StringBuilder buffer, long nanos) {
+		buffer.append(nanos / 1000000000L);
+		long fraction = nanos % 1000000000L;
+		if (fraction != 0) {
+			buffer.append('.');
+			String digits = Long.toString(fraction + 1000000000L).substring(1);
+			int end = digits.length();
+			while (digits.charAt(end - 1) == '0') {
+				end--;
+			}
+			buffer.append(digits, 0, end);
+		}
+	}
+
+	private static void flushIfFull(StringBuilder buffer, Writer out) throws IOException {
+		if (buffer.length() >= 4096) {
+			out.append(buffer);
+			buffer.setLength(0);
+		}
+	}
+
+	private synchronized OperationTimer createActionTimer(String controller, String action) {
+		ConcurrentMap<String, OperationTimer> timers = actionTimers.get(controller);
+		if (timers == null) {
+			timers = new ConcurrentHashMap<String, OperationTimer>();
+			actionTimers.put(controller, timers);
+		}
+
+		// Another thread may have beaten us to it.
+		OperationTimer timer = timers.get(action);
+		if (timer == null) {
+			timer = new OperationTimer(controller, action, slidingWindows);
+			timers.put(action, timer);
+		}
+		return timer;
+	}
+
+	private synchronized OperationTimer createServiceTimer(CallSite site) {
+		AtomicReferenceArray<OperationTimer> timers = serviceTimers;
+		if (site.getId() >= timers.length()) {
+			AtomicReferenceArray<OperationTimer> newTimers =
+					new AtomicReferenceArray<OperationTimer>(Math.max(timers.length() * 2, site.getId() + 1));
+			for (int i = 0; i < timers.length(); i++) {
+				newTimers.set(i, timers.get(i));
+			}
+			timers = newTimers;
+			serviceTimers = timers;
+		}
+
+		OperationTimer timer = timers.get(site.getId());
+		if (timer == null) {
+			timer = new OperationTimer(site.getTargetClass().getSimpleName(), site.getName(), slidingWindows);
+			timers.set(site.getId(), timer);
+		}
+		return timer;
+	}
+}
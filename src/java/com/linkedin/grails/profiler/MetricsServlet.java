@@ -0,0 +1,34 @@
+package com.linkedin.grails.profiler;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+/**
+ * Serves the contents of the "metricsRegistry" bean in the Prometheus text
+ * exposition format, for Prometheus or any compatible agent to scrape.
+ */
+public class MetricsServlet extends HttpServlet {
+	private static final long serialVersionUID = 1;
+
+	private transient MetricsRegistry metrics;
+
+	@Override
+	public void init() throws ServletException {
+		metrics = (MetricsRegistry) WebApplicationContextUtils.getRequiredWebApplicationContext(
+				getServletContext()).getBean("metricsRegistry");
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+		response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+		response.setHeader("Cache-Control", "no-cache");
+		metrics.writeMetrics(response.getWriter());
+	}
+}
@@ -0,0 +1,43 @@
+package com.linkedin.grails.profiler;
+
+/**
+ * An appender that accepts timestamps from the monotonic nanosecond clock,
+ * i.e. what {@link System#nanoTime()} returns, rather than the wall clock.
+ * {@link DefaultProfilerLog} always calls these methods in preference to
+ * the millisecond-based ones inherited from {@link ProfilerAppender}, which
+ * are only kept so that the appender can still be used by other logs.
+ * <p>
+ * Nanosecond timestamps are only meaningful relative to each other, so
+ * appenders should only ever use them to calculate durations. The same
+ * goes for the thread CPU time and allocated bytes, which are only sampled
+ * if resource sampling is on for the current request. Otherwise they are -1.
+ */
+public interface NanoProfilerAppender extends ProfilerAppender {
+	/**
+	 * Called on entry to a method, action, or whatever.
+	 * @param label An identifier for the current profiling hierarchy,
+	 * e.g. the name of the current thread.
+	 * @param site The call site that is being "entered".
+	 * @param entryNanos The entry time in nanoseconds, as returned by
+	 * System.nanoTime().
+	 * @param cpuNanos The CPU time used by the current thread so far in
+	 * nanoseconds, or -1 if it wasn't sampled.
+	 * @param allocatedBytes The number of bytes allocated by the current
+	 * thread so far, or -1 if it wasn't sampled.
+	 */
+	void logEntry(String label, CallSite site, long entryNanos, long cpuNanos, long allocatedBytes);
+
+	/**
+	 * Called on exit from a method, action, or whatever.
+	 * @param label An identifier for the current profiling hierarchy,
+	 * e.g. the name of the current thread.
+	 * @param site The call site that is being "exited".
+	 * @param exitNanos The exit time in nanoseconds, as returned by
+	 * System.nanoTime().
+	 * @param cpuNanos The CPU time used by the current thread so far in
+	 * nanoseconds, or -1 if it wasn't sampled.
+	 * @param allocatedBytes The number of bytes allocated by the current
+	 * thread so far, or -1 if it wasn't sampled.
+	 */
+	void logExit(String label, CallSite site, long exitNanos, long cpuNanos, long allocatedBytes);
+}
@@ -0,0 +1,118 @@
+package com.linkedin.grails.profiler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the calls to a single controller action or service method, how
+ * many of them failed, and how long they took, in a histogram with fixed
+ * bucket bounds. Recording a call is lock-free and allocates nothing, so
+ * timers can be fed from every request, not just profiled ones. A timer
+ * can also keep the recent durations in a {@link WindowedHistogram}, for
+ * percentiles over the last minute, five minutes or hour. Instances are
+ * created by {@link MetricsRegistry}.
+ */
+public class OperationTimer {
+	/**
+	 * The upper bounds of the histogram buckets in nanoseconds, from 1 ms to
+	 * 10 s. Longer calls are counted in an extra, unbounded bucket.
+	 */
+	static final long[] BUCKET_BOUNDS = {
+		1000000L, 5000000L, 10000000L, 25000000L, 50000000L, 100000000L,
+		250000000L, 500000000L, 1000000000L, 2500000000L, 5000000000L, 10000000000L
+	};
+
+	private final String owner;
+	private final String name;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final WindowedHistogram recent;
+
+	OperationTimer(String owner, String name, boolean slidingWindows) {
+		this.owner = owner;
+		this.name = name;
+		recent = slidingWindows ? new WindowedHistogram() : null;
+	}
+
+	/**
+	 * @return the controller or service, e.g. "book" or "BookService"
+	 */
+	public String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * @return the action or method, e.g. "list"
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Records a call.
+	 * @param nanos how long the call took
+	 * @param failed <code>true</code> if the call threw an exception
+	 */
+	public void record(long nanos, boolean failed) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		int i = 0;
+		while (i < BUCKET_BOUNDS.length && nanos > BUCKET_BOUNDS[i]) {
+			i++;
+		}
+		buckets.incrementAndGet(i);
+		total.addAndGet(nanos);
+		if (failed) {
+			errors.incrementAndGet();
+		}
+		if (recent != null) {
+			recent.record(nanos);
+		}
+	}
+
+	/**
+	 * @return the recent durations, or <code>null</code> if they aren't kept
+	 */
+	public WindowedHistogram getRecent() {
+		return recent;
+	}
+
+	/**
+	 * @return the number of calls recorded
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			count += buckets.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the total time taken by the calls, in nanoseconds
+	 */
+	public long getTotal() {
+		return total.get();
+	}
+
+	/**
+	 * @return the number of calls that threw an exception
+	 */
+	public long getErrors() {
+		return errors.get();
+	}
+
+	/**
+	 * Returns the number of calls that took no longer than the i'th bucket
+	 * bound and longer than the one before. The last bucket is unbounded.
+	 * @param i the bucket index, up to and including the number of bounds
+	 * @return the count
+	 */
+	public long getBucketCount(int i) {
+		return buckets.get(i);
+	}
+}
@@ -0,0 +1,204 @@
+package com.linkedin.grails.profiler;
+
+import java.util.Random;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+/**
+ * Appender that turns the frames of each request into OpenTelemetry spans
+ * and, once the request's outermost frame has been exited, hands them to an
+ * {@link OtlpSpanExporter}, which exports them on a background thread. Each
+ * frame logged by the filter, the interceptors or {@link ProfilingClosureWrapper}
+ * becomes a span, with the profiler's parent/child links.
+ * <p>
+ * If the request carries a W3C "traceparent" header, its spans join that
+ * trace, the outermost one as a child of the caller's span, so they line up
+ * with the spans of whatever tracing is already in place. Otherwise each
+ * request starts a trace of its own. The header is read from Spring's
+ * {@link RequestContextHolder} when the first frame is passed on, so it
+ * isn't seen if the request has gone by then, e.g. with buffered recording.
+ * <p>
+ * With {@link DefaultProfilerLog}, it is shared by all threads, each
+ * request's spans being kept in a {@link Context}. The
+ * {@link NanoProfilerAppender} methods, for other logs, share a single
+ * context and so aren't thread-safe.
+ */
+public class OtlpSpanAppender implements NanoProfilerAppender, SharedProfilerAppender<OtlpSpanAppender.Context> {
+	/** The W3C trace context header. */
+	public static final String TRACEPARENT_HEADER = "traceparent";
+
+	private OtlpSpanExporter exporter;
+	private int maxSpans = 1000;
+
+	/** The context and spans used by the methods that aren't given a context. */
+	private final Context defaultContext = new Context();
+	private final SpanStack defaultSpans = new SpanStack(null);
+
+	/**
+	 * Sets the exporter that finished requests are handed to.
+	 * @param exporter the exporter
+	 */
+	public void setExporter(OtlpSpanExporter exporter) {
+		this.exporter = exporter;
+	}
+
+	/**
+	 * Sets the maximum number of spans recorded for a request. Further
+	 * frames are dropped.
+	 * @param maxSpans the maximum
+	 */
+	public void setMaxSpans(int maxSpans) {
+		this.maxSpans = maxSpans;
+	}
+
+	/**
+	 * Same as the nanosecond version, but with the entry time in milliseconds.
+	 */
+	public void logEntry(String label, Class<?> clazz, String name, long entryTime) {
+		logEntry(label, CallSiteRegistry.intern(clazz, name), entryTime * 1000000L, -1L, -1L);
+	}
+
+	/**
+	 * Same as the nanosecond version, but with the exit time in milliseconds.
+	 */
+	public void logExit(String label, Class<?> clazz, String name, long exitTime) {
+		logExit(label, CallSiteRegistry.intern(clazz, name), exitTime * 1000000L, -1L, -1L);
+	}
+
+	/**
+	 * Same as the context version, using a context shared by all callers.
+	 */
+	public void logEntry(String label, CallSite site, long entryNanos, long cpuNanos, long allocatedBytes) {
+		logEntry(defaultContext, label, defaultSpans.push(site, entryNanos, cpuNanos, allocatedBytes));
+	}
+
+	/**
+	 * Same as the context version, using a context shared by all callers.
+	 * The innermost open frame for the call site is exited.
+	 */
+	public void logExit(String label, CallSite site, long exitNanos, long cpuNanos, long allocatedBytes) {
+		int depth = defaultSpans.find(site);
+		while (depth >= 0 && defaultSpans.size() > depth) {
+			logExit(defaultContext, label, defaultSpans.pop(), exitNanos, cpuNanos, allocatedBytes);
+		}
+	}
+
+	/**
+	 * Creates an empty context.
+	 */
+	public Context createContext() {
+		return new Context();
+	}
+
+	/**
+	 * Records the start of the span, starting the request's spans if this
+	 * is the outermost one.
+	 */
+	public void logEntry(Context context, String label, Span span) {
+		if (context.spans == null) {
+			if (span.getParent() != null) {
+				// Only the outermost span starts a request's spans.
+				return;
+			}
+			context.spans = startRequest(context, label, span);
+		}
+		context.spans.start(span);
+	}
+
+	/**
+	 * Records the end of the span, and hands the request's spans to the
+	 * exporter if this is the outermost one.
+	 */
+	public void logExit(Context context, String label, Span span, long exitNanos, long cpuNanos, long allocatedBytes) {
+		RequestSpans spans = context.spans;
+		if (spans == null) {
+			return;
+		}
+
+		spans.end(span, exitNanos, cpuNanos, allocatedBytes);
+		if (span.getParent() == null) {
+			exporter.submit(spans);
+			context.spans = null;
+		}
+	}
+
+	/**
+	 * Forgets any unfinished spans.
+	 */
+	public void reset(Context context) {
+		context.spans = null;
+	}
+
+	private RequestSpans startRequest(Context context, String label, Span span) {
+		Random random = context.random;
+		long traceIdHigh = 0;
+		long traceIdLow = 0;
+		long remoteParentId = 0;
+
+		String traceparent = getTraceparent();
+		if (traceparent != null && traceparent.length() >= 55 && traceparent.charAt(2) == '-' &&
+				traceparent.charAt(35) == '-' && traceparent.charAt(52) == '-' &&
+				isHex(traceparent, 3, 35) && isHex(traceparent, 36, 52)) {
+			traceIdHigh = parseHex(traceparent, 3);
+			traceIdLow = parseHex(traceparent, 19);
+			remoteParentId = parseHex(traceparent, 36);
+		}
+
+		// A trace or span ID of all zeros is invalid.
+		if ((traceIdHigh == 0 && traceIdLow == 0) || remoteParentId == 0) {
+			traceIdHigh = random.nextLong();
+			traceIdLow = random.nextLong();
+			remoteParentId = 0;
+		}
+
+		// Keep the base well away from zero, so that adding the profiler's
+		// span IDs to it never gives the invalid span ID 0.
+		long spanIdBase = (random.nextLong() & 0x7FFFFFFFFFFFFFFFL) | 0x100000000L;
+		return new RequestSpans(label, traceIdHigh, traceIdLow, remoteParentId, spanIdBase - span.getId() + 1,
+				span.getId(), maxSpans);
+	}
+
+	private static String getTraceparent() {
+		RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+		if (!(requestAttributes instanceof ServletRequestAttributes)) {
+			return null;
+		}
+		HttpServletRequest request = ((ServletRequestAttributes) requestAttributes).getRequest();
+		return request.getHeader(TRACEPARENT_HEADER);
+	}
+
+	private static boolean isHex(String text, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (Character.digit(text.charAt(i), 16) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parses the 16 hex digits at the given offset.
+	 */
+	private static long parseHex(String text, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 16; i++) {
+			value = (value << 4) | Character.digit(text.charAt(i), 16);
+		}
+		return value;
+	}
+
+	/**
+	 * The state of one request.
+	 */
+	public static class Context {
+		/** The spans of the current request. */
+		RequestSpans spans;
+
+		/** Generates the IDs of new traces and spans. */
+		final Random random = new Random();
+	}
+}
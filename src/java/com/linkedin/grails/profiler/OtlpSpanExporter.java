@@ -0,0 +1,509 @@
+package com.linkedin.grails.profiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Exports the spans recorded by {@link OtlpSpanAppender} in the OTLP/JSON
+ * format of OpenTelemetry, on a background thread. Each batch is one
+ * <code>ExportTraceServiceRequest</code>, which is either posted to an OTLP/HTTP
+ * endpoint such as a local collector's "http://localhost:4318/v1/traces",
+ * or appended to a file as a single line, the format that the collector's
+ * file exporter writes and its "otlpjsonfile" receiver reads.
+ * <p>
+ * Memory is bounded: requests wait in a queue that holds a limited number
+ * of requests and of spans, and request threads never block on it. If the
+ * queue is full, a request's spans are dropped according to the overflow
+ * policy and counted. A batch that can't be exported, say because the
+ * collector is down or slow to answer, is dropped and counted rather than
+ * retried, so a slow collector only ever costs spans.
+ * <p>
+ * Either an endpoint or a file must be set. This class is thread-safe and
+ * should be a singleton.
+ */
+public class OtlpSpanExporter implements InitializingBean, DisposableBean {
+	private static final Logger log = LoggerFactory.getLogger(OtlpSpanExporter.class);
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** The instrumentation scope that the spans are reported under. */
+	private static final String SCOPE_NAME = "com.linkedin.grails.profiler";
+
+	private URL endpoint;
+	private File file;
+	private long maxFileSize = 64 * 1024 * 1024;
+	private String serviceName = "grails-app";
+	private int queueSize = 1024;
+	private int maxQueuedSpans = 65536;
+	private int batchSize = 512;
+	private long flushInterval = 1000;
+	private int connectTimeout = 1000;
+	private int readTimeout = 5000;
+	private AsyncLogWriter.OverflowPolicy overflowPolicy = AsyncLogWriter.OverflowPolicy.DROP_NEWEST;
+
+	private BlockingQueue<RequestSpans> queue;
+	private final AtomicInteger queuedSpans = new AtomicInteger();
+	private Thread exportThread;
+	private volatile boolean running;
+
+	/** Only used by the export thread. */
+	private final StringBuilder json = new StringBuilder(64 * 1024);
+	private boolean failing;
+
+	private final AtomicLong submittedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong exportedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+
+	/**
+	 * Sets the OTLP/HTTP endpoint that spans are posted to, e.g.
+	 * "http://localhost:4318/v1/traces".
+	 * @param endpoint the URL
+	 * @throws IOException if the URL is malformed
+	 */
+	public void setEndpoint(String endpoint) throws IOException {
+		this.endpoint = new URL(endpoint);
+	}
+
+	/**
+	 * Sets the file that spans are appended to, one batch per line, if
+	 * there is no endpoint.
+	 * @param file the file
+	 */
+	public void setFile(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Sets the size a file may grow to before it is renamed with a ".1"
+	 * suffix, replacing any earlier one, and a new file started. Defaults to 64MB.
+	 * @param maxFileSize the size in bytes
+	 */
+	public void setMaxFileSize(long maxFileSize) {
+		this.maxFileSize = maxFileSize;
+	}
+
+	/**
+	 * Sets the "service.name" resource attribute. Defaults to "grails-app".
+	 * @param serviceName the service name
+	 */
+	public void setServiceName(String serviceName) {
+		this.serviceName = serviceName;
+	}
+
+	/**
+	 * Sets the maximum number of requests waiting to be exported. This
+	 * should not be called once the bean has been initialised.
+	 * @param queueSize the queue size
+	 */
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Sets the maximum number of spans waiting to be exported.
+	 * @param maxQueuedSpans the maximum
+	 */
+	public void setMaxQueuedSpans(int maxQueuedSpans) {
+		this.maxQueuedSpans = maxQueuedSpans;
+	}
+
+	/**
+	 * Sets the number of spans that a batch is exported at. A batch is
+	 * made up of whole requests, so it may hold a few more.
+	 * @param batchSize the batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the longest time that spans wait for a batch to fill up before
+	 * being exported anyway, in milliseconds. Defaults to 1000.
+	 * @param flushInterval the interval
+	 */
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	/**
+	 * Sets the timeout for connecting to the endpoint, in milliseconds.
+	 * @param connectTimeout the timeout
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Sets the timeout for the endpoint's response, in milliseconds.
+	 * @param readTimeout the timeout
+	 */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Sets what happens to a request's spans when the queue is full.
+	 * @param overflowPolicy the policy
+	 */
+	public void setOverflowPolicy(AsyncLogWriter.OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Creates the queue and starts the export thread.
+	 */
+	public void afterPropertiesSet() {
+		if (endpoint == null && file == null) {
+			throw new IllegalStateException("Either an endpoint or a file must be set");
+		}
+
+		queue = new ArrayBlockingQueue<RequestSpans>(queueSize);
+		running = true;
+
+		exportThread = new Thread(new Runnable() {
+			public void run() {
+				exportLoop();
+			}
+		}, "profiler-otlp-exporter");
+		exportThread.setDaemon(true);
+		exportThread.start();
+	}
+
+	/**
+	 * Stops the export thread once it has exported whatever is in the queue.
+	 */
+	public void destroy() throws InterruptedException {
+		running = false;
+		if (exportThread != null) {
+			exportThread.interrupt();
+			exportThread.join(5000);
+		}
+	}
+
+	/**
+	 * Queues the spans of a finished request for export. This never blocks.
+	 * @param spans the spans
+	 * @return <code>true</code> if the spans were queued, <code>false</code> if they were dropped
+	 */
+	boolean submit(RequestSpans spans) {
+		int size = spans.size();
+		submittedCount.addAndGet(size);
+
+		if (overflowPolicy == AsyncLogWriter.OverflowPolicy.DROP_OLDEST && size <= maxQueuedSpans) {
+			// Make room by discarding the oldest requests. Another thread
+			// may take the space first, in which case we give up.
+			while (queuedSpans.get() + size > maxQueuedSpans || queue.remainingCapacity() == 0) {
+				RequestSpans oldest = queue.poll();
+				if (oldest == null) {
+					break;
+				}
+				queuedSpans.addAndGet(-oldest.size());
+				droppedCount.addAndGet(oldest.size());
+			}
+		}
+
+		if (queuedSpans.addAndGet(size) <= maxQueuedSpans && queue.offer(spans)) {
+			return true;
+		}
+
+		queuedSpans.addAndGet(-size);
+		droppedCount.addAndGet(size);
+		return false;
+	}
+
+	/**
+	 * @return the number of spans submitted
+	 */
+	public long getSubmittedCount() {
+		return submittedCount.get();
+	}
+
+	/**
+	 * @return the number of spans dropped because the queue was full
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * @return the number of spans exported
+	 */
+	public long getExportedCount() {
+		return exportedCount.get();
+	}
+
+	/**
+	 * @return the number of spans that couldn't be exported
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * @return the number of spans waiting to be exported
+	 */
+	public int getQueuedCount() {
+		return queuedSpans.get();
+	}
+
+	private void exportLoop() {
+		List<RequestSpans> batch = new ArrayList<RequestSpans>();
+
+		while (running || !queue.isEmpty()) {
+			try {
+				RequestSpans first = queue.poll(1, TimeUnit.SECONDS);
+				if (first == null) {
+					continue;
+				}
+
+				// Wait a while for more spans, so that they are exported
+				// together rather than one request at a time.
+				int spanCount = take(batch, first);
+				long deadline = System.currentTimeMillis() + flushInterval;
+				while (spanCount < batchSize) {
+					long wait = deadline - System.currentTimeMillis();
+					RequestSpans next = running && wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+					if (next == null) {
+						break;
+					}
+					spanCount += take(batch, next);
+				}
+				export(batch, spanCount);
+			}
+			catch (InterruptedException e) {
+				// Shutting down: export the batch, then loop round to export
+				// whatever is left.
+				running = false;
+				if (!batch.isEmpty()) {
+					export(batch, countSpans(batch));
+				}
+			}
+			catch (RuntimeException e) {
+				failedCount.addAndGet(countSpans(batch));
+				log.error("Unable to export profiler spans", e);
+			}
+			finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private int take(List<RequestSpans> batch, RequestSpans spans) {
+		queuedSpans.addAndGet(-spans.size());
+		batch.add(spans);
+		return spans.size();
+	}
+
+	private static int countSpans(List<RequestSpans> batch) {
+		int count = 0;
+		for (RequestSpans spans : batch) {
+			count += spans.size();
+		}
+		return count;
+	}
+
+	private void export(List<RequestSpans> batch, int spanCount) {
+		json.setLength(0);
+		encode(batch, json);
+		byte[] body = json.toString().getBytes(UTF_8);
+
+		try {
+			if (endpoint != null) {
+				post(body);
+			}
+			else {
+				append(body);
+			}
+			exportedCount.addAndGet(spanCount);
+
+			if (failing) {
+				failing = false;
+				log.info("Exporting profiler spans again");
+			}
+		}
+		catch (IOException e) {
+			failedCount.addAndGet(spanCount);
+
+			// Only log the first of a run of failures.
+			if (!failing) {
+				failing = true;
+				log.warn("Unable to export profiler spans, dropping them until it works again", e);
+			}
+		}
+	}
+
+	private void post(byte[] body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+		try {
+			connection.setConnectTimeout(connectTimeout);
+			connection.setReadTimeout(readTimeout);
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Content-Type", "application/json");
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(body.length);
+
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write(body);
+			}
+			finally {
+				out.close();
+			}
+
+			int status = connection.getResponseCode();
+			drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+			if (status / 100 != 2) {
+				throw new IOException("OTLP endpoint " + endpoint + " returned HTTP " + status);
+			}
+		}
+		finally {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Reads the response, so that the connection can be reused.
+	 */
+	private static void drain(InputStream in) throws IOException {
+		if (in == null) {
+			return;
+		}
+		try {
+			byte[] buffer = new byte[1024];
+			while (in.read(buffer) >= 0) {
+				// Discard.
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private void append(byte[] body) throws IOException {
+		if (file.length() + body.length + 1 > maxFileSize && file.length() > 0) {
+			File previous = new File(file.getPath() + ".1");
+			if ((previous.exists() && !previous.delete()) || !file.renameTo(previous)) {
+				throw new IOException("Unable to roll over " + file);
+			}
+		}
+
+		File directory = file.getAbsoluteFile().getParentFile();
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create directory " + directory);
+		}
+
+		OutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write(body);
+			out.write('\n');
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Encodes the spans as an OTLP/JSON <code>ExportTraceServiceRequest</code>
+	 * on a single line. IDs are in hex and times in nanoseconds since the
+	 * epoch, as the OTLP/JSON mapping requires.
+	 */
+	private void encode(List<RequestSpans> batch, StringBuilder out) {
+		out.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+		appendAttribute(out, "service.name", serviceName);
+		out.append(',');
+		appendAttribute(out, "telemetry.sdk.name", "grails-profiler");
+		out.append("]},\"scopeSpans\":[{\"scope\":{\"name\":\"").append(SCOPE_NAME).append("\"},\"spans\":[");
+
+		boolean first = true;
+		for (RequestSpans spans : batch) {
+			for (int i = 0; i < spans.size(); i++) {
+				// Spans left open by a request that was cut short are left out.
+				if (spans.endNanos[i] < 0) {
+					continue;
+				}
+				if (!first) {
+					out.append(',');
+				}
+				first = false;
+				appendSpan(out, spans, i);
+			}
+		}
+		out.append("]}]}]}");
+	}
+
+	private static void appendSpan(StringBuilder out, RequestSpans spans, int i) {
+		CallSite site = spans.sites[i];
+		out.append("{\"traceId\":\"");
+		appendHex(out, spans.traceIdHigh);
+		appendHex(out, spans.traceIdLow);
+		out.append("\",\"spanId\":\"");
+		appendHex(out, spans.getSpanId(i));
+		out.append('"');
+		long parentSpanId = spans.getParentSpanId(i);
+		if (parentSpanId != 0) {
+			out.append(",\"parentSpanId\":\"");
+			appendHex(out, parentSpanId);
+			out.append('"');
+		}
+
+		// SPAN_KIND_INTERNAL: the server span belongs to the tracing that
+		// is already in place, if any.
+		out.append(",\"name\":");
+		ChromeTraceWriter.appendString(out, site.getDisplayName());
+		out.append(",\"kind\":1,\"startTimeUnixNano\":\"").append(spans.startNanos[i] + spans.epochOffsetNanos)
+				.append("\",\"endTimeUnixNano\":\"").append(spans.endNanos[i] + spans.epochOffsetNanos)
+				.append("\",\"attributes\":[");
+		appendAttribute(out, "code.namespace", site.getTargetClass().getName());
+		out.append(',');
+		appendAttribute(out, "code.function", site.getName());
+		if (i == 0) {
+			// The request's outermost span.
+			out.append(',');
+			appendAttribute(out, "profiler.label", spans.label);
+			if (spans.droppedSpans > 0) {
+				out.append(",{\"key\":\"profiler.dropped_spans\",\"value\":{\"intValue\":\"")
+						.append(spans.droppedSpans).append("\"}}");
+			}
+		}
+		if (spans.cpuNanos[i] >= 0) {
+			out.append(",{\"key\":\"profiler.cpu_nanos\",\"value\":{\"intValue\":\"")
+					.append(spans.cpuNanos[i]).append("\"}}");
+		}
+		if (spans.allocatedBytes[i] >= 0) {
+			out.append(",{\"key\":\"profiler.allocated_bytes\",\"value\":{\"intValue\":\"")
+					.append(spans.allocatedBytes[i]).append("\"}}");
+		}
+		out.append("]}");
+	}
+
+	private static void appendAttribute(StringBuilder out, String key, String value) {
+		out.append("{\"key\":\"").append(key).append("\",\"value\":{\"stringValue\":");
+		ChromeTraceWriter.appendString(out, value);
+		out.append("}}");
+	}
+
+	private static void appendHex(StringBuilder out, long value) {
+		for (int shift = 60; shift >= 0; shift -= 4) {
+			out.append(Character.forDigit((int) (value >>> shift) & 0xF, 16));
+		}
+	}
+}
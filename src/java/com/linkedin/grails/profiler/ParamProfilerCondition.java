@@ -6,17 +6,14 @@ import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 
-import org.codehaus.groovy.grails.web.servlet.mvc.GrailsWebRequest;
-import org.springframework.web.context.request.RequestContextHolder;
-
 /**
  * A profiler condition that checks whether the value of a particular
- * request parameter lies within a set of acceptable values. This can
- * only be used after the GrailsWebRequestFilter has done its stuff.
+ * request parameter lies within a set of acceptable values. The
+ * parameter name and values may be changed at any time.
  */
-public class ParamProfilerCondition implements ProfilerCondition {
-	private String paramName;
-	private Set<String> values;
+public class ParamProfilerCondition extends AbstractRequestProfilerCondition {
+	private volatile String paramName;
+	private volatile Set<String> values;
 
 	/**
 	 * Returns the name of the request parameter that determines whether profiling should occur.
@@ -39,7 +36,7 @@ public class ParamProfilerCondition implements ProfilerCondition {
 	 * @return the values
 	 */
 	public Set<String> getValues() {
-		return Collections.unmodifiableSet(values);
+		return values;
 	}
 
 	/**
@@ -48,20 +45,15 @@ public class ParamProfilerCondition implements ProfilerCondition {
 	 * @param values the values
 	 */
 	public void setValues(Set<String> values) {
-		this.values = new HashSet<String>(values);
+		this.values = Collections.unmodifiableSet(new HashSet<String>(values));
 	}
 
 	/**
 	 * Returns <code>true</code> if the value of the named parameter
-	 * for the current request matches any of the values in the set.
+	 * for the request matches any of the values in the set.
 	 */
-	public boolean doProfiling() {
-		// Get the required parameter from the current request.
-		GrailsWebRequest webRequest = (GrailsWebRequest) RequestContextHolder.currentRequestAttributes();
-		HttpServletRequest httpRequest = webRequest.getCurrentRequest();
-		String profilerParam = httpRequest.getParameter(paramName);
-
-		// Compare it the values that switch profiling on.
-		return values.contains(profilerParam);
+	public boolean doProfiling(HttpServletRequest request) {
+		// Compare the parameter with the values that switch profiling on.
+		return values.contains(request.getParameter(paramName));
 	}
 }
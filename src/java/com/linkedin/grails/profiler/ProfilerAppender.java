@@ -4,7 +4,9 @@ package com.linkedin.grails.profiler;
  * An appender which logs profiler events to something real, such as
  * a database, or a string in memory. An appender does not have to be
  * thread-safe, but if it isn't, it must be scoped to "prototype" for
- * use with the {@link DefaultProfilerLog}.
+ * use with the {@link DefaultProfilerLog}, which then creates one for
+ * every request profiled. Implement {@link SharedProfilerAppender} to
+ * avoid that.
  */
 public interface ProfilerAppender {
 	/**
@@ -0,0 +1,203 @@
+package com.linkedin.grails.profiler;
+
+import groovy.lang.Closure;
+import groovy.lang.GroovyObjectSupport;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds profiler conditions from the closure given as the
+ * <code>grails.profiler.conditions</code> setting, e.g.
+ * <pre>
+ * grails.profiler.conditions = {
+ *     header "X-Load-Test"
+ *     header "X-Tenant", "acme", "initech"
+ *     cookie "profile", "on"
+ *     user "alice", "bob"
+ *     all {
+ *         uri "/api/orders/**", "/checkout/*"
+ *         latencyBudget millis: 500, percentile: 95
+ *         sample rate: 10
+ *     }
+ * }
+ * </pre>
+ * The conditions at the top level are combined so that any one of them
+ * will do. <code>any</code> and <code>all</code> nest further combinations.
+ * The other methods each add a condition:
+ * <ul>
+ * <li><code>header</code>: a {@link HeaderProfilerCondition}, given the
+ * header name and, optionally, the values that switch profiling on</li>
+ * <li><code>cookie</code>: a {@link CookieProfilerCondition}, given the
+ * cookie name and, optionally, the values</li>
+ * <li><code>param</code>: a {@link ParamProfilerCondition}, given the
+ * parameter name and the values</li>
+ * <li><code>user</code>: a {@link UserProfilerCondition}, given the user names</li>
+ * <li><code>uri</code>: a {@link UriProfilerCondition}, given the patterns</li>
+ * <li><code>latencyBudget</code>: a {@link LatencyBudgetProfilerCondition},
+ * given the budget in milliseconds or a map of its properties</li>
+ * <li><code>sample</code>: a {@link SamplingProfilerCondition}, given a
+ * map with the <code>rate</code> and/or <code>perSecond</code></li>
+ * </ul>
+ * Values may be given as separate arguments or as a list.
+ */
+public class ProfilerConditionBuilder extends GroovyObjectSupport {
+	private List<ProfilerCondition> current = new ArrayList<ProfilerCondition>();
+
+	/**
+	 * Builds the conditions described by the given closure.
+	 * @param definition the closure
+	 * @return a condition that is satisfied if any of the conditions at
+	 * the top level of the closure is
+	 */
+	public static ProfilerCondition build(Closure<?> definition) {
+		ProfilerConditionBuilder builder = new ProfilerConditionBuilder();
+		return new CompositeProfilerCondition(false, builder.collect(definition));
+	}
+
+	private List<ProfilerCondition> collect(Closure<?> definition) {
+		List<ProfilerCondition> parent = current;
+		current = new ArrayList<ProfilerCondition>();
+		try {
+			Closure<?> closure = (Closure<?>) definition.clone();
+			closure.setDelegate(this);
+			closure.setResolveStrategy(Closure.DELEGATE_FIRST);
+			closure.call();
+			return current;
+		}
+		finally {
+			current = parent;
+		}
+	}
+
+	/**
+	 * Adds the condition named by the method. Groovy calls private methods
+	 * directly, so none of them may share a name with a condition.
+	 */
+	@Override
+	public Object invokeMethod(String name, Object args) {
+		Object[] arguments = args instanceof Object[] ? (Object[]) args : new Object[] { args };
+
+		ProfilerCondition condition;
+		if (name.equals("any") || name.equals("all")) {
+			if (arguments.length != 1 || !(arguments[0] instanceof Closure)) {
+				throw new IllegalArgumentException("'" + name + "' takes a closure");
+			}
+			condition = new CompositeProfilerCondition(name.equals("all"), collect((Closure<?>) arguments[0]));
+		}
+		else if (name.equals("header")) {
+			HeaderProfilerCondition header = new HeaderProfilerCondition();
+			header.setHeaderName(firstString(name, arguments));
+			header.setValues(strings(arguments, 1));
+			condition = header;
+		}
+		else if (name.equals("cookie")) {
+			CookieProfilerCondition cookie = new CookieProfilerCondition();
+			cookie.setCookieName(firstString(name, arguments));
+			cookie.setValues(strings(arguments, 1));
+			condition = cookie;
+		}
+		else if (name.equals("param")) {
+			ParamProfilerCondition param = new ParamProfilerCondition();
+			param.setParamName(firstString(name, arguments));
+			param.setValues(new HashSet<String>(strings(arguments, 1)));
+			condition = param;
+		}
+		else if (name.equals("user")) {
+			UserProfilerCondition user = new UserProfilerCondition();
+			user.setUserNames(strings(arguments, 0));
+			condition = user;
+		}
+		else if (name.equals("uri")) {
+			UriProfilerCondition uri = new UriProfilerCondition();
+			uri.setPatterns(strings(arguments, 0));
+			condition = uri;
+		}
+		else if (name.equals("latencyBudget")) {
+			condition = createLatencyBudget(arguments);
+		}
+		else if (name.equals("sample")) {
+			condition = createSampling(arguments);
+		}
+		else {
+			throw new IllegalArgumentException("Unknown profiler condition: " + name);
+		}
+
+		current.add(condition);
+		return condition;
+	}
+
+	private ProfilerCondition createLatencyBudget(Object[] arguments) {
+		LatencyBudgetProfilerCondition budget = new LatencyBudgetProfilerCondition();
+		if (arguments.length == 1 && arguments[0] instanceof Number) {
+			budget.setBudgetMillis(((Number) arguments[0]).longValue());
+			return budget;
+		}
+
+		Map<?, ?> settings = settings("latencyBudget", arguments);
+		if (!(settings.get("millis") instanceof Number)) {
+			throw new IllegalArgumentException("'latencyBudget' needs the budget in millis");
+		}
+		budget.setBudgetMillis(((Number) settings.get("millis")).longValue());
+		if (settings.get("percentile") instanceof Number) {
+			budget.setPercentile(((Number) settings.get("percentile")).doubleValue());
+		}
+		if (settings.get("windowSeconds") instanceof Number) {
+			budget.setWindowSeconds(((Number) settings.get("windowSeconds")).intValue());
+		}
+		if (settings.get("minSamples") instanceof Number) {
+			budget.setMinSamples(((Number) settings.get("minSamples")).intValue());
+		}
+		return budget;
+	}
+
+	private ProfilerCondition createSampling(Object[] arguments) {
+		SamplingProfilerCondition sampling = new SamplingProfilerCondition();
+		Map<?, ?> settings = settings("sample", arguments);
+		if (settings.get("rate") instanceof Number) {
+			sampling.setSampleRate(((Number) settings.get("rate")).intValue());
+		}
+		if (settings.get("burst") instanceof Number) {
+			sampling.setBurst(((Number) settings.get("burst")).intValue());
+		}
+		if (settings.get("perSecond") instanceof Number) {
+			sampling.setMaxPerSecond(((Number) settings.get("perSecond")).doubleValue());
+		}
+		return sampling;
+	}
+
+	private static Map<?, ?> settings(String name, Object[] arguments) {
+		if (arguments.length != 1 || !(arguments[0] instanceof Map)) {
+			throw new IllegalArgumentException("'" + name + "' takes a map of settings");
+		}
+		return (Map<?, ?>) arguments[0];
+	}
+
+	private static String firstString(String name, Object[] arguments) {
+		if (arguments.length == 0 || arguments[0] == null) {
+			throw new IllegalArgumentException("'" + name + "' needs a name");
+		}
+		return arguments[0].toString();
+	}
+
+	/**
+	 * Returns the arguments from the given index on as strings, flattening any collections.
+	 */
+	private static List<String> strings(Object[] arguments, int from) {
+		List<String> strings = new ArrayList<String>();
+		for (int i = from; i < arguments.length; i++) {
+			if (arguments[i] instanceof Collection) {
+				for (Object value : (Collection<?>) arguments[i]) {
+					strings.add(value.toString());
+				}
+			}
+			else if (arguments[i] != null) {
+				strings.add(arguments[i].toString());
+			}
+		}
+		return strings;
+	}
+}
@@ -1,6 +1,8 @@
 package com.linkedin.grails.profiler;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
@@ -15,23 +17,49 @@ import org.springframework.web.filter.OncePerRequestFilter;
 /**
  * Servlet filter that triggers profiling if a particular request
  * parameter is set ("profiler").
+ * <p>
+ * The filter runs on every request, so requests that aren't profiled are
+ * kept as cheap as possible: the beans it needs are looked up once, the
+ * response is only wrapped when profiling, and the session is only changed
+ * when there is a saved profile to take out of it.
+ * <p>
+ * Conditions that implement {@link RequestProfilerCondition} are given the
+ * request directly. If the condition includes any
+ * {@link LatencyBudgetProfilerCondition}s, every request is timed and its
+ * duration reported to them.
  */
 public class ProfilerFilter extends OncePerRequestFilter {
 	/**
-	 * The session attribute key.
+	 * The session attribute key. The attribute holds a {@link SavedProfile}.
 	 */
 	public static final String SAVED_OUTPUT_KEY = "com.linkedin.grails.profiler.saved_output";
 
+	private volatile Beans beans;
+
 	@Override
 	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
 			FilterChain filterChain) throws ServletException, IOException {
-		// Let's start with the Spring ApplicationContext for this web app.
-		WebApplicationContext appContext = WebApplicationContextUtils.getRequiredWebApplicationContext(
-				getServletContext());
+		Beans beans = getBeans();
+		if (beans.latencyBudgets.length == 0) {
+			doFilter(beans, request, response, filterChain);
+			return;
+		}
 
-		// Retrieve the bean that determines whether profiling should
-		// occur for the current request or not.
-		ProfilerCondition conditionBean = (ProfilerCondition) appContext.getBean("profilerCondition");
+		// Report how long the request took to the latency budget conditions.
+		long start = System.nanoTime();
+		try {
+			doFilter(beans, request, response, filterChain);
+		}
+		finally {
+			long duration = System.nanoTime() - start;
+			for (LatencyBudgetProfilerCondition budget : beans.latencyBudgets) {
+				budget.requestCompleted(duration);
+			}
+		}
+	}
+
+	private void doFilter(Beans beans, HttpServletRequest request, HttpServletResponse response,
+			FilterChain filterChain) throws ServletException, IOException {
 
 		// Check for any log output stored in the session. If yes, we
 		// continue profiling regardless. Note that we don't create
@@ -44,38 +72,49 @@ public class ProfilerFilter extends OncePerRequestFilter {
 			// The session exists, so retrieve the saved log output if it's there.
 			output = session.getAttribute(SAVED_OUTPUT_KEY);
 
-			// We now have a reference to the output if it exists, so
-			// we can remove the attribute from the session.
-			session.removeAttribute(SAVED_OUTPUT_KEY);
+			// We now have a reference to the output if it exists, so we
+			// can remove the attribute from the session. Removing it when
+			// it isn't there would still mark the session as changed in
+			// some containers, and replicate it.
+			if (output != null) {
+				session.removeAttribute(SAVED_OUTPUT_KEY);
+			}
 		}
 
-		// Determine whether we should profile this request.
-		boolean doProfiling = (output != null) || conditionBean.doProfiling();
-
-		// If we are profiling, mark the request as such and log the start time for this request.
-		ProfilerLog profiler = null;
-		RequestBufferedAppender appender = null;
-		if (doProfiling) {
-			// Since we are profiling, create a session.
-			session = request.getSession(true);
-
-			// Fetch the currently configured logger for profiling from the application context.
-			profiler = (ProfilerLog) appContext.getBean("profilerLog");
+		// Determine whether we should profile this request. If not, there
+		// is nothing more to do.
+		if (output == null && !AbstractRequestProfilerCondition.doProfiling(beans.condition, request)) {
+			filterChain.doFilter(request, response);
+			return;
+		}
 
-			// Check whether there is any saved output from a previous request.
-			appender = (RequestBufferedAppender) appContext.getBean("bufferedAppender");
-			if (output instanceof String) {
-				// Add the saved output to the request buffered appender.
-				appender.prependOutput((String) output);
-			}
+		// Configure the profiler to log the start and end times. It
+		// won't start if profiling has been switched off at runtime.
+		ProfilerLog profiler = beans.profiler;
+		profiler.startProfiling("uri: " + request.getRequestURI());
+		if (!profiler.isProfiling()) {
+			filterChain.doFilter(request, response);
+			return;
+		}
 
-			// Configure the profiler to log the start and end times.
-			profiler.startProfiling("uri: " + request.getRequestURI());
+		// Since we are profiling, create a session.
+		session = request.getSession(true);
 
-			// Start time.
-			profiler.logEntry(getClass(), "Web Request");
+		// Check whether there is any saved output from a previous request.
+		RequestBufferedAppender appender = beans.appender;
+		if (output instanceof SavedProfile) {
+			// Add the saved profile to the request buffered appender.
+			// It is only rendered if the output is asked for.
+			appender.prependProfile((SavedProfile) output);
+		}
+		else if (output instanceof String) {
+			// Saved by an older version of the plugin.
+			appender.prependOutput((String) output);
 		}
 
+		// Start time.
+		profiler.logEntry(getClass(), "Web Request");
+
 		// Pass execution on to the next filter.
 		ProfilerFilterResponse filterResponse = new ProfilerFilterResponse(response);
 		try {
@@ -83,15 +122,71 @@ public class ProfilerFilter extends OncePerRequestFilter {
 		}
 		finally {
 			// End time.
-			if (doProfiling) {
-				profiler.logExit(getClass(), "Web Request");
-				profiler.stopProfiling();
-
-				// Only errors and redirects should require us to save
-				// the log output for the next request.
-				if (filterResponse.getSaveOutput()) {
-					// Save the log output to the session.
-					session.setAttribute(SAVED_OUTPUT_KEY, appender.getOutput());
+			profiler.logExit(getClass(), "Web Request");
+			profiler.stopProfiling();
+
+			// Only errors and redirects should require us to save
+			// the log output for the next request.
+			if (filterResponse.getSaveOutput()) {
+				// Save the profile to the session in its compact form.
+				SavedProfile profile = appender.saveProfile();
+				if (profile != null) {
+					session.setAttribute(SAVED_OUTPUT_KEY, profile);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the beans that the filter uses, looking them up in the
+	 * application context the first time.
+	 */
+	private Beans getBeans() {
+		Beans result = beans;
+		if (result == null) {
+			WebApplicationContext appContext = WebApplicationContextUtils.getRequiredWebApplicationContext(
+					getServletContext());
+			result = new Beans(appContext);
+			beans = result;
+		}
+		return result;
+	}
+
+	/**
+	 * The beans that the filter uses.
+	 */
+	private static class Beans {
+		/** Determines whether profiling should occur for the current request or not. */
+		final ProfilerCondition condition;
+		final ProfilerLog profiler;
+		final RequestBufferedAppender appender;
+
+		/** The latency budget conditions that the condition is made up of, if any. */
+		final LatencyBudgetProfilerCondition[] latencyBudgets;
+
+		Beans(WebApplicationContext appContext) {
+			condition = (ProfilerCondition) appContext.getBean("profilerCondition");
+			profiler = (ProfilerLog) appContext.getBean("profilerLog");
+			appender = (RequestBufferedAppender) appContext.getBean("bufferedAppender");
+
+			List<LatencyBudgetProfilerCondition> budgets = new ArrayList<LatencyBudgetProfilerCondition>();
+			findLatencyBudgets(condition, budgets);
+			latencyBudgets = budgets.toArray(new LatencyBudgetProfilerCondition[budgets.size()]);
+		}
+
+		private static void findLatencyBudgets(ProfilerCondition condition, List<LatencyBudgetProfilerCondition> budgets) {
+			if (condition instanceof LatencyBudgetProfilerCondition && !budgets.contains(condition)) {
+				budgets.add((LatencyBudgetProfilerCondition) condition);
+			}
+			else if (condition instanceof CompositeProfilerCondition) {
+				for (ProfilerCondition child : ((CompositeProfilerCondition) condition).getConditions()) {
+					findLatencyBudgets(child, budgets);
+				}
+			}
+			else if (condition instanceof SamplingProfilerCondition) {
+				ProfilerCondition force = ((SamplingProfilerCondition) condition).getForceCondition();
+				if (force != null) {
+					findLatencyBudgets(force, budgets);
 				}
 			}
 		}
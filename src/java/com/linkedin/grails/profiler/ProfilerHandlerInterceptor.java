@@ -3,12 +3,14 @@ package com.linkedin.grails.profiler;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.codehaus.groovy.grails.web.servlet.mvc.GrailsWebRequest;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
 
 /**
  * Handler interceptor that profiles the current HTTP request. This is
- * particularly useful for profiling the view.
+ * particularly useful for profiling the view. Given a {@link MetricsRegistry},
+ * it also times every request, profiled or not, by controller and action.
  */
 public class ProfilerHandlerInterceptor extends HandlerInterceptorAdapter {
 	/**
@@ -19,6 +21,15 @@ public class ProfilerHandlerInterceptor extends HandlerInterceptorAdapter {
 	public static final String REQUEST_STATUS_ATTR = "com.linkedin.grails.profiler.STATUS";
 
 	private ProfilerLog profiler;
+	private MetricsRegistry metrics;
+
+	/** The start times of the requests being handled by each thread. */
+	private final ThreadLocal<ActionClock> clocks = new ThreadLocal<ActionClock>() {
+		@Override
+		protected ActionClock initialValue() {
+			return new ActionClock();
+		}
+	};
 
 	/**
 	 * Wires in the profiler log to use.
@@ -28,12 +39,25 @@ public class ProfilerHandlerInterceptor extends HandlerInterceptorAdapter {
 		this.profiler = profiler;
 	}
 
+	/**
+	 * Wires in the registry that the time taken by each action is recorded
+	 * in. Without one, nothing is recorded.
+	 * @param metrics the registry
+	 */
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
 	/**
 	 * Called before the controller action is invoked, this method logs
 	 * an "entry" profiling event for "Controller".
 	 */
 	@Override
 	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object o) throws Exception {
+		if (metrics != null) {
+			clocks.get().start(System.nanoTime());
+		}
+
 		profiler.logEntry(getClass(), "Controller");
 		request.setAttribute(REQUEST_STATUS_ATTR, "Controller");
 		return true;
@@ -57,7 +81,8 @@ public class ProfilerHandlerInterceptor extends HandlerInterceptorAdapter {
 	/**
 	 * Called after the request has finished, this method logs an "exit"
 	 * profiling event for either "Controller" or "View" depending on
-	 * what the current request status is.
+	 * what the current request status is, and records the time taken by
+	 * the action.
 	 */
 	@Override
 	public void afterCompletion(HttpServletRequest request, HttpServletResponse response,
@@ -66,5 +91,40 @@ public class ProfilerHandlerInterceptor extends HandlerInterceptorAdapter {
 		if (status != null) {
 			profiler.logExit(getClass(), status);
 		}
+
+		if (metrics != null) {
+			long start = clocks.get().stop();
+			GrailsWebRequest webRequest = GrailsWebRequest.lookup(request);
+			if (start != 0 && webRequest != null && webRequest.getControllerName() != null) {
+				String action = webRequest.getActionName();
+				metrics.getActionTimer(webRequest.getControllerName(), action == null ? "index" : action)
+						.record(System.nanoTime() - start, e != null);
+			}
+		}
+	}
+
+	/**
+	 * The start times of the requests a thread is handling: usually one, but
+	 * more when a view includes the output of other actions.
+	 */
+	private static class ActionClock {
+		private long[] starts = new long[4];
+		private int depth;
+
+		void start(long nanos) {
+			if (depth == starts.length) {
+				long[] newStarts = new long[depth * 2];
+				System.arraycopy(starts, 0, newStarts, 0, depth);
+				starts = newStarts;
+			}
+			starts[depth++] = nanos;
+		}
+
+		/**
+		 * @return the start time of the innermost request, or 0 if there is none
+		 */
+		long stop() {
+			return depth == 0 ? 0 : starts[--depth];
+		}
 	}
 }
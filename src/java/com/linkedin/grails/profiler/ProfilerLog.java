@@ -1,7 +1,8 @@
 package com.linkedin.grails.profiler;
 
 /**
- * A logger for profiling events.
+ * A logger for profiling events. Loggers that can also take call sites
+ * and span handles implement {@link SpanProfilerLog}.
  */
 public interface ProfilerLog {
 
@@ -0,0 +1,38 @@
+package com.linkedin.grails.profiler;
+
+/**
+ * Logs call site events to any {@link ProfilerLog}. A {@link SpanProfilerLog}
+ * is given the call site itself; any other log gets its class and name.
+ */
+final class ProfilerLogs {
+	private ProfilerLogs() {
+	}
+
+	/**
+	 * Logs an entry event for a call site.
+	 * @param profiler the profiler log
+	 * @param site the call site that the event relates to
+	 */
+	static void logEntry(ProfilerLog profiler, CallSite site) {
+		if (profiler instanceof SpanProfilerLog) {
+			((SpanProfilerLog) profiler).logEntry(site);
+		}
+		else {
+			profiler.logEntry(site.getTargetClass(), site.getName());
+		}
+	}
+
+	/**
+	 * Logs an exit event for a call site.
+	 * @param profiler the profiler log
+	 * @param site the call site that the event relates to
+	 */
+	static void logExit(ProfilerLog profiler, CallSite site) {
+		if (profiler instanceof SpanProfilerLog) {
+			((SpanProfilerLog) profiler).logExit(site);
+		}
+		else {
+			profiler.logExit(site.getTargetClass(), site.getName());
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package com.linkedin.grails.profiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+
+/**
+ * Lets the profiler be reconfigured while the application is running, e.g.
+ * to profile more requests, or to attach heavier appenders, for a few minutes
+ * during an incident and then back off. It is exported as a standard MBean
+ * when JMX support is switched on, but can also be used directly.
+ * <p>
+ * Changes take effect for requests that start afterwards; requests already
+ * being profiled carry on as they were. Sampling can only be changed if the
+ * profiler condition is a {@link SamplingProfilerCondition}.
+ */
+public class ProfilerManager implements ProfilerManagerMBean, ApplicationContextAware {
+	private static final Logger log = LoggerFactory.getLogger(ProfilerManager.class);
+
+	private ApplicationContext applicationContext;
+	private DefaultProfilerLog profilerLog;
+	private SamplingProfilerCondition samplingCondition;
+	private ParamProfilerCondition paramCondition;
+	private CallTreeStatsAppender callTreeStatsAppender;
+	private AsyncLogWriter asyncLogWriter;
+	private OtlpSpanExporter otlpSpanExporter;
+	private SlowRequestStore slowRequestStore;
+
+	/**
+	 * Stores the application context that the appender beans are looked up in.
+	 */
+	public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
+		this.applicationContext = applicationContext;
+	}
+
+	/**
+	 * Wires in the profiler log to manage.
+	 * @param profilerLog the profiler log
+	 */
+	public void setProfilerLog(DefaultProfilerLog profilerLog) {
+		this.profilerLog = profilerLog;
+	}
+
+	/**
+	 * Wires in the condition whose sampling can be changed.
+	 * @param samplingCondition the condition, or <code>null</code> if sampling can't be changed
+	 */
+	public void setSamplingCondition(SamplingProfilerCondition samplingCondition) {
+		this.samplingCondition = samplingCondition;
+	}
+
+	/**
+	 * Wires in the condition that checks the request parameter.
+	 * @param paramCondition the condition
+	 */
+	public void setParamCondition(ParamProfilerCondition paramCondition) {
+		this.paramCondition = paramCondition;
+	}
+
+	/**
+	 * Wires in the appender whose statistics are reported, if there is one.
+	 * @param callTreeStatsAppender the appender
+	 */
+	public void setCallTreeStatsAppender(CallTreeStatsAppender callTreeStatsAppender) {
+		this.callTreeStatsAppender = callTreeStatsAppender;
+	}
+
+	/**
+	 * Wires in the asynchronous log writer whose statistics are reported, if there is one.
+	 * @param asyncLogWriter the writer
+	 */
+	public void setAsyncLogWriter(AsyncLogWriter asyncLogWriter) {
+		this.asyncLogWriter = asyncLogWriter;
+	}
+
+	/**
+	 * Wires in the OTLP span exporter whose statistics are reported, if there is one.
+	 * @param otlpSpanExporter the exporter
+	 */
+	public void setOtlpSpanExporter(OtlpSpanExporter otlpSpanExporter) {
+		this.otlpSpanExporter = otlpSpanExporter;
+	}
+
+	/**
+	 * Wires in the store of slow requests, if there is one.
+	 * @param slowRequestStore the store
+	 */
+	public void setSlowRequestStore(SlowRequestStore slowRequestStore) {
+		this.slowRequestStore = slowRequestStore;
+	}
+
+	public boolean isEnabled() {
+		return profilerLog.isEnabled();
+	}
+
+	public void setEnabled(boolean enabled) {
+		profilerLog.setEnabled(enabled);
+		log.info("Profiling " + (enabled ? "enabled" : "disabled"));
+	}
+
+	public int getSampleRate() {
+		return samplingCondition == null ? 0 : samplingCondition.getSampleRate();
+	}
+
+	public void setSampleRate(int sampleRate) {
+		getSamplingCondition().setSampleRate(sampleRate);
+		log.info("Profiler sample rate set to " + sampleRate);
+	}
+
+	public double getMaxPerSecond() {
+		return samplingCondition == null ? 0 : samplingCondition.getMaxPerSecond();
+	}
+
+	public void setMaxPerSecond(double maxPerSecond) {
+		getSamplingCondition().setMaxPerSecond(maxPerSecond);
+		log.info("Profiler sampling limit set to " + maxPerSecond + " requests a second");
+	}
+
+	public String getParamName() {
+		return paramCondition == null ? null : paramCondition.getParamName();
+	}
+
+	public void setParamName(String paramName) {
+		if (paramCondition == null) {
+			throw new IllegalStateException("The profiler condition doesn't check a request parameter");
+		}
+		paramCondition.setParamName(paramName);
+	}
+
+	public String[] getAppenderNames() {
+		return profilerLog.getAppenderNames().toArray(new String[0]);
+	}
+
+	public String[] getAvailableAppenderNames() {
+		return applicationContext.getBeanNamesForType(ProfilerAppender.class);
+	}
+
+	public synchronized void attachAppender(String beanName) {
+		if (!applicationContext.containsBean(beanName) ||
+				!applicationContext.isTypeMatch(beanName, ProfilerAppender.class)) {
+			throw new IllegalArgumentException("No profiler appender bean named [" + beanName + "]");
+		}
+
+		List<String> names = new ArrayList<String>(profilerLog.getAppenderNames());
+		if (!names.contains(beanName)) {
+			names.add(beanName);
+			profilerLog.setAppenderNames(names);
+			log.info("Profiler appender [" + beanName + "] attached");
+		}
+	}
+
+	public synchronized void detachAppender(String beanName) {
+		List<String> names = new ArrayList<String>(profilerLog.getAppenderNames());
+		if (names.remove(beanName)) {
+			profilerLog.setAppenderNames(names);
+			log.info("Profiler appender [" + beanName + "] detached");
+		}
+	}
+
+	public long getProfiledCount() {
+		return profilerLog.getProfiledCount();
+	}
+
+	public long getRequestCount() {
+		return samplingCondition == null ? 0 : samplingCondition.getRequestCount();
+	}
+
+	public long getSampledCount() {
+		return samplingCondition == null ? 0 : samplingCondition.getSampledCount();
+	}
+
+	public long getAsyncDroppedCount() {
+		return asyncLogWriter == null ? -1 : asyncLogWriter.getDroppedCount();
+	}
+
+	public long getOtlpDroppedCount() {
+		return otlpSpanExporter == null ? -1 :
+				otlpSpanExporter.getDroppedCount() + otlpSpanExporter.getFailedCount();
+	}
+
+	public String getCallTreeReport() {
+		return callTreeStatsAppender == null ? "" : callTreeStatsAppender.getReport();
+	}
+
+	public void resetCallTreeStats() {
+		if (callTreeStatsAppender != null) {
+			callTreeStatsAppender.reset();
+		}
+	}
+
+	public long getSlowRequestThresholdMillis() {
+		return slowRequestStore == null ? 0 : slowRequestStore.getThresholdMillis();
+	}
+
+	public void setSlowRequestThresholdMillis(long thresholdMillis) {
+		if (slowRequestStore == null) {
+			throw new IllegalStateException("Slow requests aren't being kept");
+		}
+		slowRequestStore.setThresholdMillis(thresholdMillis);
+		log.info("Slow request threshold set to " + thresholdMillis + " ms");
+	}
+
+	public String getSlowRequestReport() {
+		return slowRequestStore == null ? "" : slowRequestStore.getReport();
+	}
+
+	public void clearSlowRequests() {
+		if (slowRequestStore != null) {
+			slowRequestStore.clear();
+		}
+	}
+
+	private SamplingProfilerCondition getSamplingCondition() {
+		if (samplingCondition == null) {
+			throw new IllegalStateException("The profiler condition doesn't sample requests");
+		}
+		return samplingCondition;
+	}
+}
@@ -0,0 +1,131 @@
+package com.linkedin.grails.profiler;
+
+/**
+ * The management interface of {@link ProfilerManager}, through which the
+ * profiler can be reconfigured over JMX while the application is running.
+ */
+public interface ProfilerManagerMBean {
+	/**
+	 * @return <code>false</code> if profiling has been switched off
+	 */
+	boolean isEnabled();
+
+	/**
+	 * Switches profiling on or off for the whole application.
+	 * @param enabled <code>false</code> to switch profiling off
+	 */
+	void setEnabled(boolean enabled);
+
+	/**
+	 * @return how many requests there are for each one sampled, or 0
+	 */
+	int getSampleRate();
+
+	/**
+	 * Sets how many requests there are for each one sampled. 0 switches off
+	 * sampling by count.
+	 * @param sampleRate the sample rate
+	 */
+	void setSampleRate(int sampleRate);
+
+	/**
+	 * @return the maximum number of requests sampled each second, or 0
+	 */
+	double getMaxPerSecond();
+
+	/**
+	 * Sets the maximum number of requests sampled each second. 0 removes the limit.
+	 * @param maxPerSecond the rate
+	 */
+	void setMaxPerSecond(double maxPerSecond);
+
+	/**
+	 * @return the name of the request parameter that switches profiling on
+	 */
+	String getParamName();
+
+	/**
+	 * Sets the name of the request parameter that switches profiling on.
+	 * @param paramName the name
+	 */
+	void setParamName(String paramName);
+
+	/**
+	 * @return the names of the appender beans in use
+	 */
+	String[] getAppenderNames();
+
+	/**
+	 * @return the names of all the appender beans that could be attached
+	 */
+	String[] getAvailableAppenderNames();
+
+	/**
+	 * Starts sending profiling events to the named appender bean.
+	 * @param beanName the appender's bean name
+	 */
+	void attachAppender(String beanName);
+
+	/**
+	 * Stops sending profiling events to the named appender bean.
+	 * @param beanName the appender's bean name
+	 */
+	void detachAppender(String beanName);
+
+	/**
+	 * @return the number of requests profiled since the application started
+	 */
+	long getProfiledCount();
+
+	/**
+	 * @return the number of requests the sampling condition has been asked about
+	 */
+	long getRequestCount();
+
+	/**
+	 * @return the number of requests sampled, not including forced ones
+	 */
+	long getSampledCount();
+
+	/**
+	 * @return the number of traces dropped by the asynchronous log writer, or -1 if it isn't used
+	 */
+	long getAsyncDroppedCount();
+
+	/**
+	 * @return the number of spans that the OTLP span exporter dropped because
+	 * its queue was full or the export failed, or -1 if it isn't used
+	 */
+	long getOtlpDroppedCount();
+
+	/**
+	 * @return the call path statistics gathered by the call tree stats appender
+	 */
+	String getCallTreeReport();
+
+	/**
+	 * Discards the call path statistics gathered so far.
+	 */
+	void resetCallTreeStats();
+
+	/**
+	 * @return the fixed slow request threshold in milliseconds, or 0 if it's a percentile
+	 */
+	long getSlowRequestThresholdMillis();
+
+	/**
+	 * Sets a fixed slow request threshold. 0 makes it a percentile of recent durations.
+	 * @param thresholdMillis the threshold in milliseconds
+	 */
+	void setSlowRequestThresholdMillis(long thresholdMillis);
+
+	/**
+	 * @return the traces of the slowest requests kept, as indented text
+	 */
+	String getSlowRequestReport();
+
+	/**
+	 * Discards the slow request traces kept so far.
+	 */
+	void clearSlowRequests();
+}
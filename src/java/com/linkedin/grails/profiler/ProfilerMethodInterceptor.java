@@ -1,14 +1,20 @@
 package com.linkedin.grails.profiler;
 
+import java.lang.reflect.Method;
+
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
 
 /**
  * A Spring method interceptor that sends profiling events to a configured
- * profiler log. It basically logs method entry and exit.
+ * profiler log. It basically logs method entry and exit. Nothing is logged
+ * unless the current request is being profiled, and the call site for each
+ * method is looked up once and then cached by {@link CallSiteRegistry}.
+ * Given a {@link MetricsRegistry}, every call is also timed, profiled or not.
  */
 public class ProfilerMethodInterceptor implements MethodInterceptor {
 	private ProfilerLog profiler;
+	private MetricsRegistry metrics;
 
 	/**
 	 * Wires in the profiler log to use.
@@ -18,35 +24,66 @@ public class ProfilerMethodInterceptor implements MethodInterceptor {
 		this.profiler = profiler;
 	}
 
+	/**
+	 * Wires in the registry that the time taken by each method call is
+	 * recorded in. Without one, nothing is recorded.
+	 * @param metrics the registry
+	 */
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
 	/**
 	 * Sends profiling events before and after invoking the target method.
 	 */
 	public Object invoke(MethodInvocation methodInvocation) throws Throwable {
+		// Don't do anything unless this request is being profiled or timed.
+		boolean profiling = profiler.isProfiling();
+		if (!profiling && metrics == null) {
+			return methodInvocation.proceed();
+		}
+
 		// Not interested in calls to getMetaClass().
-		String methodName = methodInvocation.getMethod().getName();
+		Method method = methodInvocation.getMethod();
+		String methodName = method.getName();
 		if (methodName.equals("getMetaClass")) {
 			return methodInvocation.proceed();
 		}
 
 		// Handle the case where the target method is Groovy's "invokeMethod".
 		// In this case, it is better to log the target of "invokeMethod",
-		// rather than "invokeMethod" itself.
-		if (methodName.equals("invokeMethod") &&
-				methodInvocation.getMethod().getParameterTypes()[0] == String.class) {
-			methodName = (String) methodInvocation.getArguments()[0];
+		// rather than "invokeMethod" itself, so the call site depends on the
+		// arguments and can't be cached against the method.
+		Class<?> clazz = methodInvocation.getThis().getClass();
+		CallSite site;
+		if (methodName.equals("invokeMethod") && method.getParameterTypes()[0] == String.class) {
+			site = CallSiteRegistry.intern(clazz, (String) methodInvocation.getArguments()[0]);
+		}
+		else {
+			site = CallSiteRegistry.intern(clazz, method);
 		}
 
 		// Log method entry.
-		Class<?> clazz = ClassUtil.getRealClass(methodInvocation.getThis().getClass());
-		profiler.logEntry(clazz, methodName);
+		if (profiling) {
+			ProfilerLogs.logEntry(profiler, site);
+		}
+		long start = metrics == null ? 0 : System.nanoTime();
+		boolean failed = true;
 
 		try {
 			// Actually call the target method.
-			return methodInvocation.proceed();
+			Object result = methodInvocation.proceed();
+			failed = false;
+			return result;
 		}
 		finally {
 			// Now log method exit.
-			profiler.logExit(clazz, methodName);
+			if (metrics != null) {
+				metrics.getServiceTimer(site).record(System.nanoTime() - start, failed);
+			}
+			if (profiling) {
+				ProfilerLogs.logExit(profiler, site);
+			}
 		}
 	}
 }
@@ -0,0 +1,52 @@
+package com.linkedin.grails.profiler;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Wraps a task so that, when it is run on another thread, it is profiled as
+ * part of the request that created the wrapper. Works just like
+ * {@link ProfilingRunnable}, but for tasks that return a result.
+ */
+public class ProfilingCallable<V> implements Callable<V> {
+	private final Callable<V> target;
+	private final DefaultProfilerLog profiler;
+	private final ProfilingContext context;
+	private final CallSite site;
+
+	/**
+	 * Creates a wrapper for the given task, capturing the current thread's
+	 * profiling context.
+	 * @param target the task
+	 * @param profiler the profiler log
+	 */
+	public ProfilingCallable(Callable<V> target, DefaultProfilerLog profiler) {
+		this.target = target;
+		this.profiler = profiler;
+		context = profiler.captureContext();
+		site = context == null ? null : CallSiteRegistry.intern(target.getClass(), "call");
+	}
+
+	/**
+	 * Calls the task, recording it and everything it calls as a branch of
+	 * the captured context.
+	 */
+	public V call() throws Exception {
+		if (context == null || profiler.isProfiling()) {
+			return target.call();
+		}
+
+		profiler.startBranch(context);
+		try {
+			profiler.logEntry(site);
+			try {
+				return target.call();
+			}
+			finally {
+				profiler.logExit(site);
+			}
+		}
+		finally {
+			profiler.endBranch();
+		}
+	}
+}
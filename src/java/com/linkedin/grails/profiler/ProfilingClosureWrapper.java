@@ -15,6 +15,7 @@ public class ProfilingClosureWrapper extends Closure {
 	private ProfilerLog profiler;
 	private String name;
 	private Class<?> targetClass;
+	private CallSite site;
 
 	/**
 	 * Creates a new instance that wraps the target closure and sends
@@ -30,21 +31,36 @@ public class ProfilingClosureWrapper extends Closure {
 		this.profiler = profiler;
 		this.name = name;
 		this.targetClass = targetClass;
+		site = CallSiteRegistry.intern(targetClass, name);
 	}
 
 	// This is the important one: logs entry and exit of the closure call.
 	@Override
 	public Object call(Object... objects) {
-		profiler.logEntry(targetClass, name);
+		ProfilerLogs.logEntry(profiler, site);
 
 		try {
 			return target.call(objects);
 		}
 		finally {
-			profiler.logExit(targetClass, name);
+			ProfilerLogs.logExit(profiler, site);
 		}
 	}
 
+	/**
+	 * @return the wrapped closure
+	 */
+	Closure getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return the profiler log that events are sent to
+	 */
+	ProfilerLog getProfiler() {
+		return profiler;
+	}
+
 	/**
 	 * Compares based on identities, but unlike the standard implementation
 	 * this one will return <code>true</code> if the given object is the
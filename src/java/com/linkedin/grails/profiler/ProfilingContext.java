@@ -0,0 +1,124 @@
+package com.linkedin.grails.profiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The profiling context of a request, captured on the request thread so
+ * that work handed off to other threads can be profiled as part of the
+ * request. Each task run on another thread records its events into its own
+ * {@link RequestTrace}, a branch, and adds the finished branch here. The
+ * request thread collects the branches when it exits its outermost frame
+ * and logs them as children of that frame, each wrapped in a frame for
+ * {@link #BRANCH_SITE}. Since a branch ran at the same time as the request
+ * thread and other branches, {@link TraceVisitor}s are told where it starts
+ * and ends rather than given that frame.
+ * <p>
+ * Adding and collecting branches is lock-free. Branches that finish after
+ * the request thread has collected them are dropped and counted. Obtain an
+ * instance from {@link DefaultProfilerLog#captureContext()}; it is usually
+ * easier to let {@link ProfilingRunnable}, {@link ProfilingCallable} or
+ * {@link ProfilingExecutor} deal with it.
+ */
+public final class ProfilingContext {
+	/** The name of the frame that wraps each branch. */
+	public static final String BRANCH_NAME = "Branch";
+
+	/** The call site of the frame that wraps each branch. */
+	public static final CallSite BRANCH_SITE = CallSiteRegistry.intern(ProfilingContext.class, BRANCH_NAME);
+
+	/** Marks a context whose branches have been collected. */
+	private static final Branch CLOSED = new Branch(null, null);
+
+	private final String label;
+	private final boolean sampleResources;
+	private final AtomicReference<Branch> branches = new AtomicReference<Branch>();
+	private final AtomicInteger droppedBranches = new AtomicInteger();
+
+	ProfilingContext(String label, boolean sampleResources) {
+		this.label = label;
+		this.sampleResources = sampleResources;
+	}
+
+	/**
+	 * @return the label of the request that this context belongs to
+	 */
+	public String getLabel() {
+		return label;
+	}
+
+	/**
+	 * @return whether resources are sampled for the request
+	 */
+	public boolean isSampleResources() {
+		return sampleResources;
+	}
+
+	/**
+	 * @return the number of branches that finished too late to be logged
+	 */
+	public int getDroppedBranches() {
+		return droppedBranches.get();
+	}
+
+	/**
+	 * Adds a finished branch, unless the branches have already been collected.
+	 * @param trace the branch
+	 * @return <code>true</code> if the branch was added
+	 */
+	boolean addBranch(RequestTrace trace) {
+		while (true) {
+			Branch head = branches.get();
+			if (head == CLOSED) {
+				droppedBranches.incrementAndGet();
+				return false;
+			}
+			if (branches.compareAndSet(head, new Branch(trace, head))) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Collects the branches added so far, in the order they started, and
+	 * stops any more from being added.
+	 * @return the branches
+	 */
+	List<RequestTrace> close() {
+		Branch head = branches.getAndSet(CLOSED);
+		if (head == CLOSED) {
+			return Collections.emptyList();
+		}
+
+		List<RequestTrace> traces = new ArrayList<RequestTrace>();
+		for (Branch branch = head; branch != null; branch = branch.next) {
+			if (branch.trace.size() > 0) {
+				traces.add(branch.trace);
+			}
+		}
+		Collections.sort(traces, new Comparator<RequestTrace>() {
+			public int compare(RequestTrace a, RequestTrace b) {
+				long diff = a.getTime(0) - b.getTime(0);
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		return traces;
+	}
+
+	/**
+	 * An immutable node in the stack of finished branches.
+	 */
+	private static class Branch {
+		final RequestTrace trace;
+		final Branch next;
+
+		Branch(RequestTrace trace, Branch next) {
+			this.trace = trace;
+			this.next = next;
+		}
+	}
+}
@@ -0,0 +1,379 @@
+package com.linkedin.grails.profiler;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+/**
+ * A data source that logs each JDBC statement executed during a profiled
+ * request as a frame of its own, named after the statement's fingerprint:
+ * its SQL with literals replaced by "?" and whitespace collapsed, e.g.
+ * "SQL: select * from book where author_id=?". Within a web request, the
+ * executions, times and rows read or updated are also added up per
+ * fingerprint in a {@link SqlRequestStats}, and a warning is logged when
+ * the same statement is executed often enough to suggest an N+1 query.
+ * <p>
+ * Connections obtained while the current thread isn't being profiled are
+ * returned as they are, so unprofiled requests pay nothing. Otherwise the
+ * connection, its statements and their result sets are wrapped in dynamic
+ * proxies.
+ */
+public class ProfilingDataSource extends DelegatingDataSource {
+	private static final Logger log = LoggerFactory.getLogger(ProfilingDataSource.class);
+
+	/** Attribute name for the request's SQL statistics. */
+	private static final String STATS_ATTR = "com.linkedin.grails.profiler.SqlRequestStats";
+
+	private static final int MAX_FINGERPRINT_LENGTH = 200;
+	private static final int MAX_CACHED_STATEMENTS = 2000;
+
+	private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+	private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+	private static final Pattern IN_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+	/**
+	 * Call sites by SQL string, so that each statement is only fingerprinted
+	 * once. Bounded, in case statements are built with literals in them.
+	 */
+	private static final ConcurrentMap<String, SqlSite> sqlSites = new ConcurrentHashMap<String, SqlSite>();
+
+	private ProfilerLog profiler;
+	private int repeatedQueryThreshold = 10;
+
+	/**
+	 * Creates a data source that needs its target data source and profiler
+	 * log setting before use.
+	 */
+	public ProfilingDataSource() {
+	}
+
+	/**
+	 * Creates a data source that profiles the connections of the given one.
+	 * @param targetDataSource the data source to profile
+	 */
+	public ProfilingDataSource(DataSource targetDataSource) {
+		super(targetDataSource);
+	}
+
+	/**
+	 * Wires in the profiler log to use.
+	 * @param profiler the profiler log
+	 */
+	public void setProfiler(ProfilerLog profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Sets how many times the same statement must be executed within a
+	 * single request before it is flagged as a possible N+1 query.
+	 * @param repeatedQueryThreshold the threshold
+	 */
+	public void setRepeatedQueryThreshold(int repeatedQueryThreshold) {
+		this.repeatedQueryThreshold = repeatedQueryThreshold;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		return wrap(super.getConnection());
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		return wrap(super.getConnection(username, password));
+	}
+
+	private Connection wrap(Connection connection) {
+		if (connection == null || !profiler.isProfiling()) {
+			return connection;
+		}
+		return (Connection) newProxy(Connection.class, new ConnectionHandler(connection));
+	}
+
+	/**
+	 * Returns the SQL statistics of the current web request.
+	 * @return the statistics, or <code>null</code> if this is called outside
+	 * of a web request or no statements have been profiled
+	 */
+	public static SqlRequestStats getRequestStats() {
+		RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+		return attributes == null ? null :
+				(SqlRequestStats) attributes.getAttribute(STATS_ATTR, RequestAttributes.SCOPE_REQUEST);
+	}
+
+	/**
+	 * Returns the fingerprint of the given SQL: literals are replaced by
+	 * "?", lists of parameters such as "in (?, ?, ?)" are collapsed to
+	 * "(?)", and runs of whitespace become single spaces. The fingerprint
+	 * is never truncated, since it identifies the statement; see
+	 * {@link #abbreviate(String)}.
+	 * @param sql the SQL
+	 * @return the fingerprint
+	 */
+	public static String fingerprint(String sql) {
+		String fingerprint = STRING_LITERAL.matcher(sql).replaceAll("?");
+		fingerprint = NUMBER_LITERAL.matcher(fingerprint).replaceAll("?");
+		fingerprint = IN_LIST.matcher(fingerprint).replaceAll("(?)");
+		return WHITESPACE.matcher(fingerprint).replaceAll(" ").trim();
+	}
+
+	/**
+	 * Shortens a long fingerprint for display. Hibernate lists every column
+	 * at the start of a select, so different statements often share a long
+	 * prefix: the fingerprint's hash code is added to tell them apart.
+	 * @param fingerprint the fingerprint
+	 * @return the fingerprint, or its start and hash code if it is long
+	 */
+	public static String abbreviate(String fingerprint) {
+		if (fingerprint.length() <= MAX_FINGERPRINT_LENGTH) {
+			return fingerprint;
+		}
+		return fingerprint.substring(0, MAX_FINGERPRINT_LENGTH) + "... #" + Integer.toHexString(fingerprint.hashCode());
+	}
+
+	private static SqlSite getSqlSite(String sql) {
+		SqlSite site = sqlSites.get(sql);
+		if (site == null) {
+			site = new SqlSite(fingerprint(sql));
+
+			// Statements built with literals in them could fill the cache,
+			// so make room by evicting whichever entry comes first.
+			if (sqlSites.size() >= MAX_CACHED_STATEMENTS) {
+				Iterator<String> cached = sqlSites.keySet().iterator();
+				if (cached.hasNext()) {
+					sqlSites.remove(cached.next());
+				}
+			}
+			sqlSites.put(sql, site);
+		}
+		return site;
+	}
+
+	/**
+	 * Times a statement execution, logging it as a frame and adding it to
+	 * the request's statistics.
+	 */
+	private Object execute(SqlSite site, Object target, Method method, Object[] args) throws Throwable {
+		if (!profiler.isProfiling()) {
+			return invoke(target, method, args);
+		}
+
+		long start = System.nanoTime();
+		ProfilerLogs.logEntry(profiler, site.callSite);
+		Object result;
+		try {
+			result = invoke(target, method, args);
+		}
+		finally {
+			ProfilerLogs.logExit(profiler, site.callSite);
+			recordExecution(site, System.nanoTime() - start);
+		}
+
+		// Update counts are known now; rows read are only known once the
+		// result set has been read.
+		if (result instanceof Integer || result instanceof Long) {
+			recordRows(site, ((Number) result).longValue());
+		}
+		else if (result instanceof int[]) {
+			long rows = 0;
+			for (int count : (int[]) result) {
+				rows += count > 0 ? count : 0;
+			}
+			recordRows(site, rows);
+		}
+		else if (result instanceof ResultSet) {
+			result = newProxy(ResultSet.class, new ResultSetHandler((ResultSet) result, site));
+		}
+		return result;
+	}
+
+	private void recordExecution(SqlSite site, long nanos) {
+		SqlRequestStats stats = getOrCreateRequestStats();
+		if (stats != null && stats.recordExecution(site.fingerprint, nanos) == repeatedQueryThreshold) {
+			log.warn("Possible N+1 query: executed " + repeatedQueryThreshold + " times in one request: " +
+					abbreviate(site.fingerprint));
+		}
+	}
+
+	private void recordRows(SqlSite site, long rows) {
+		SqlRequestStats stats = getRequestStats();
+		if (stats != null && rows > 0) {
+			stats.recordRows(site.fingerprint, rows);
+		}
+	}
+
+	private SqlRequestStats getOrCreateRequestStats() {
+		RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+		if (attributes == null) {
+			return null;
+		}
+
+		SqlRequestStats stats = (SqlRequestStats) attributes.getAttribute(STATS_ATTR, RequestAttributes.SCOPE_REQUEST);
+		if (stats == null) {
+			stats = new SqlRequestStats(repeatedQueryThreshold);
+			attributes.setAttribute(STATS_ATTR, stats, RequestAttributes.SCOPE_REQUEST);
+		}
+		return stats;
+	}
+
+	private static Object newProxy(Class<?> type, InvocationHandler handler) {
+		return Proxy.newProxyInstance(ProfilingDataSource.class.getClassLoader(), new Class<?>[] { type }, handler);
+	}
+
+	private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		}
+		catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * A statement fingerprint and the call site that it is logged as.
+	 */
+	private static class SqlSite {
+		final String fingerprint;
+		final CallSite callSite;
+
+		SqlSite(String fingerprint) {
+			this.fingerprint = fingerprint;
+			callSite = CallSiteRegistry.intern(ProfilingDataSource.class, "SQL: " + abbreviate(fingerprint));
+		}
+	}
+
+	/**
+	 * Wraps the statements created by a connection.
+	 */
+	private class ConnectionHandler implements InvocationHandler {
+		private final Connection target;
+
+		ConnectionHandler(Connection target) {
+			this.target = target;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("equals")) {
+				return proxy == args[0];
+			}
+			if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+
+			Object result = ProfilingDataSource.invoke(target, method, args);
+			if (name.equals("createStatement")) {
+				result = newProxy(method.getReturnType(), new StatementHandler(result, (Connection) proxy, null));
+			}
+			else if (name.equals("prepareStatement") || name.equals("prepareCall")) {
+				result = newProxy(method.getReturnType(),
+						new StatementHandler(result, (Connection) proxy, getSqlSite((String) args[0])));
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Times the executions of a statement.
+	 */
+	private class StatementHandler implements InvocationHandler {
+		private final Object target;
+		private final Connection connection;
+
+		/** The prepared statement's SQL, or the last SQL executed or batched. */
+		private SqlSite site;
+
+		StatementHandler(Object target, Connection connection, SqlSite site) {
+			this.target = target;
+			this.connection = connection;
+			this.site = site;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.startsWith("execute")) {
+				// Plain statements are given their SQL when executed.
+				if (args != null && args.length > 0 && args[0] instanceof String) {
+					site = getSqlSite((String) args[0]);
+				}
+				if (site != null) {
+					return execute(site, target, method, args);
+				}
+			}
+			else if (name.equals("addBatch") && args != null && args.length == 1) {
+				site = getSqlSite((String) args[0]);
+			}
+			else if (name.equals("getResultSet")) {
+				Object result = ProfilingDataSource.invoke(target, method, args);
+				return result == null || site == null ? result :
+						newProxy(ResultSet.class, new ResultSetHandler((ResultSet) result, site));
+			}
+			else if (name.equals("getConnection")) {
+				return connection;
+			}
+			else if (name.equals("equals")) {
+				return proxy == args[0];
+			}
+			else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+
+			return ProfilingDataSource.invoke(target, method, args);
+		}
+	}
+
+	/**
+	 * Counts the rows read from a result set, and adds them to the request's
+	 * statistics when the result set is closed.
+	 */
+	private class ResultSetHandler implements InvocationHandler {
+		private final ResultSet target;
+		private final SqlSite site;
+		private long rows;
+		private boolean closed;
+
+		ResultSetHandler(ResultSet target, SqlSite site) {
+			this.target = target;
+			this.site = site;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("next")) {
+				Boolean hasRow = (Boolean) ProfilingDataSource.invoke(target, method, args);
+				if (hasRow) {
+					rows++;
+				}
+				return hasRow;
+			}
+			if (name.equals("close") && !closed) {
+				closed = true;
+				recordRows(site, rows);
+			}
+			else if (name.equals("equals")) {
+				return proxy == args[0];
+			}
+			else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+
+			return ProfilingDataSource.invoke(target, method, args);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package com.linkedin.grails.profiler;
+
+import java.util.Collections;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+/**
+ * Wraps the named data source beans in {@link ProfilingDataSource}s, so
+ * that JDBC statements show up in the profile. By default, it wraps
+ * Grails' "dataSourceUnproxied" bean, which is the actual connection pool,
+ * so the transaction-aware and lazy proxies that Grails puts in front of
+ * it carry on working as usual.
+ */
+public class ProfilingDataSourcePostProcessor implements BeanPostProcessor {
+	private Set<String> beanNames = Collections.singleton("dataSourceUnproxied");
+	private ProfilerLog profiler;
+	private int repeatedQueryThreshold = 10;
+
+	/**
+	 * Sets the names of the data source beans to wrap.
+	 * @param beanNames the bean names
+	 */
+	public void setBeanNames(Set<String> beanNames) {
+		this.beanNames = beanNames;
+	}
+
+	/**
+	 * Wires in the profiler log to use.
+	 * @param profiler the profiler log
+	 */
+	public void setProfiler(ProfilerLog profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Sets how many times the same statement must be executed within a
+	 * single request before it is flagged as a possible N+1 query.
+	 * @param repeatedQueryThreshold the threshold
+	 */
+	public void setRepeatedQueryThreshold(int repeatedQueryThreshold) {
+		this.repeatedQueryThreshold = repeatedQueryThreshold;
+	}
+
+	public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+		return bean;
+	}
+
+	public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+		if (!beanNames.contains(beanName) || !(bean instanceof DataSource) || bean instanceof ProfilingDataSource) {
+			return bean;
+		}
+
+		ProfilingDataSource dataSource = new ProfilingDataSource((DataSource) bean);
+		dataSource.setProfiler(profiler);
+		dataSource.setRepeatedQueryThreshold(repeatedQueryThreshold);
+		return dataSource;
+	}
+}
@@ -0,0 +1,37 @@
+package com.linkedin.grails.profiler;
+
+import java.util.concurrent.Executor;
+
+/**
+ * An executor that profiles the tasks it is given as part of the request
+ * that submits them, by wrapping each one in a {@link ProfilingRunnable}
+ * before handing it to the target executor. Tasks submitted while no
+ * request is being profiled are passed through as they are. Any executor
+ * will do, including thread pools and virtual thread executors.
+ */
+public class ProfilingExecutor implements Executor {
+	private final Executor target;
+	private final DefaultProfilerLog profiler;
+
+	/**
+	 * Creates an executor that wraps the tasks given to it and passes
+	 * them to the target executor.
+	 * @param target the executor that actually runs the tasks
+	 * @param profiler the profiler log
+	 */
+	public ProfilingExecutor(Executor target, DefaultProfilerLog profiler) {
+		this.target = target;
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Runs the task on the target executor, profiled if the current
+	 * request is.
+	 */
+	public void execute(Runnable task) {
+		if (profiler.isProfiling()) {
+			task = new ProfilingRunnable(task, profiler);
+		}
+		target.execute(task);
+	}
+}
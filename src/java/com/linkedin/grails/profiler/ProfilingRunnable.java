@@ -0,0 +1,53 @@
+package com.linkedin.grails.profiler;
+
+/**
+ * Wraps a task so that, when it is run on another thread, it is profiled as
+ * part of the request that created the wrapper. The request's profiling
+ * context is captured when the wrapper is created, so create it on the
+ * request thread. If the request wasn't being profiled, or the task ends
+ * up running on the request thread itself, the task is simply run.
+ */
+public class ProfilingRunnable implements Runnable {
+	private final Runnable target;
+	private final DefaultProfilerLog profiler;
+	private final ProfilingContext context;
+	private final CallSite site;
+
+	/**
+	 * Creates a wrapper for the given task, capturing the current thread's
+	 * profiling context.
+	 * @param target the task
+	 * @param profiler the profiler log
+	 */
+	public ProfilingRunnable(Runnable target, DefaultProfilerLog profiler) {
+		this.target = target;
+		this.profiler = profiler;
+		context = profiler.captureContext();
+		site = context == null ? null : CallSiteRegistry.intern(target.getClass(), "run");
+	}
+
+	/**
+	 * Runs the task, recording it and everything it calls as a branch of
+	 * the captured context.
+	 */
+	public void run() {
+		if (context == null || profiler.isProfiling()) {
+			target.run();
+			return;
+		}
+
+		profiler.startBranch(context);
+		try {
+			profiler.logEntry(site);
+			try {
+				target.run();
+			}
+			finally {
+				profiler.logExit(site);
+			}
+		}
+		finally {
+			profiler.endBranch();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.linkedin.grails.profiler;
+
+import groovy.lang.Closure;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A profiling wrapper for tag library closures. Most tags are profiled
+ * just like controller actions, but the tags that render a template or
+ * apply a layout are logged under the name of the template or layout, e.g.
+ * "template: /book/row", and their times are added up per template in the
+ * request's {@link ViewRequestStats}. That shows which partials are worth
+ * caching.
+ */
+@SuppressWarnings("rawtypes")
+public class ProfilingTagWrapper extends ProfilingClosureWrapper {
+	private static final long serialVersionUID = 1;
+
+	/** Call sites by template or layout name, e.g. "template: /book/row". */
+	private static final ConcurrentMap<String, CallSite> viewSites = new ConcurrentHashMap<String, CallSite>();
+
+	private final Class<?> targetClass;
+	private final String name;
+
+	/**
+	 * Creates a new instance that wraps the given tag closure.
+	 * @param targetClass the tag library class
+	 * @param closure the tag closure
+	 * @param profiler the profiler log to send profiling events to
+	 * @param name the name of the tag
+	 */
+	public ProfilingTagWrapper(Class<?> targetClass, Closure closure, ProfilerLog profiler, String name) {
+		super(targetClass, closure, profiler, name);
+		this.targetClass = targetClass;
+		this.name = name;
+	}
+
+	@Override
+	public Object call(Object... objects) {
+		String view = getViewName(objects);
+		if (view == null) {
+			return super.call(objects);
+		}
+
+		CallSite site = viewSites.get(view);
+		if (site == null) {
+			site = CallSiteRegistry.intern(targetClass, view);
+			viewSites.putIfAbsent(view, site);
+		}
+
+		ProfilerLog profiler = getProfiler();
+		long start = System.nanoTime();
+		ProfilerLogs.logEntry(profiler, site);
+		try {
+			return getTarget().call(objects);
+		}
+		finally {
+			ProfilerLogs.logExit(profiler, site);
+			ViewRequestStats.record(view, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Returns the template or layout that the tag is about to render, if
+	 * it's one of the tags that render them.
+	 */
+	private String getViewName(Object[] objects) {
+		if (objects.length == 0 || !(objects[0] instanceof Map)) {
+			return null;
+		}
+
+		Map attrs = (Map) objects[0];
+		if (name.equals("render") && attrs.get("template") != null) {
+			return "template: " + attrs.get("template");
+		}
+		if (name.equals("applyLayout") && attrs.get("name") != null) {
+			return "layout: " + attrs.get("name");
+		}
+		return null;
+	}
+}
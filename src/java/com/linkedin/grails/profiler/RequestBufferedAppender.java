@@ -1,58 +1,90 @@
 package com.linkedin.grails.profiler;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
 
 import org.codehaus.groovy.grails.web.servlet.mvc.GrailsWebRequest;
 import org.springframework.web.context.request.RequestAttributes;
 import org.springframework.web.context.request.RequestContextHolder;
 
 /**
- * A request-based appender that stores the log entries in a StringBuilder. The
- * buffered data can be retrieved at any time by calling {@link #getOutput()}.
- * Note that this appender is safe to use outside of a web request, but it will
- * do nothing.
+ * A request-based appender that stores the events of the current request.
+ * The buffered data can be retrieved as text at any time by calling
+ * {@link #getOutput()}; it is only rendered then. Note that this appender is
+ * safe to use outside of a web request, but it will do nothing.
+ * <p>
+ * The events are held in a {@link RequestTrace}, so a request can only
+ * buffer a limited number of them. Frames that don't fit aren't lost
+ * altogether: they are added up per call site, and the totals are shown at
+ * the end of the output.
  */
-public class RequestBufferedAppender implements ProfilerAppender {
+public class RequestBufferedAppender implements NanoProfilerAppender {
 	/** Attribute name for the request info. */
 	private static final String INFO_ATTR = "com.linkedin.grails.profile.BufferedAppenderInfo";
 
+	/** Maximum number of events buffered for a request. */
+	private int maxEvents = 10000;
+
+	/** Maximum size of a profile saved for the next request. */
+	private int maxSavedBytes = 65536;
+
+	/**
+	 * Sets the maximum number of events buffered for a single request.
+	 * Frames beyond that are only included in the summary.
+	 * @param maxEvents the maximum
+	 */
+	public void setMaxEvents(int maxEvents) {
+		this.maxEvents = maxEvents;
+	}
+
 	/**
-	 * Logs the entry to a StringBuilder, indenting the message based on the
-	 * hierarchy of entries and exits for the current request. If this is called
-	 * outside of a request, nothing happens.
+	 * Sets the maximum size in bytes of the profiles returned by
+	 * {@link #saveProfile()}. The oldest requests are dropped to stay
+	 * within it.
+	 * @param maxSavedBytes the maximum
+	 */
+	public void setMaxSavedBytes(int maxSavedBytes) {
+		this.maxSavedBytes = maxSavedBytes;
+	}
+
+	/**
+	 * Same as the nanosecond version, but with the entry time in milliseconds.
 	 */
 	public void logEntry(String label, Class<?> clazz, String name, long entryTime) {
-		// Mark the start time, log the entry, and bump the indent level.
+		logEntry(label, CallSiteRegistry.intern(clazz, name), entryTime * 1000000L, -1L, -1L);
+	}
+
+	/**
+	 * Same as the nanosecond version, but with the exit time in milliseconds.
+	 */
+	public void logExit(String label, Class<?> clazz, String name, long exitTime) {
+		logExit(label, CallSiteRegistry.intern(clazz, name), exitTime * 1000000L, -1L, -1L);
+	}
+
+	/**
+	 * Stores the entry for the current request. If this is called outside of
+	 * a request, nothing happens.
+	 */
+	public void logEntry(String label, CallSite site, long entryNanos, long cpuNanos, long allocatedBytes) {
 		RequestInfo info = getRequestInfo();
-		if (info == null) {
-			return;
+		if (info != null) {
+			info.entry(label, site, entryNanos, cpuNanos, allocatedBytes);
 		}
-
-		info.logStart(entryTime);
-		info.log("Entering " + getIdentity(label, clazz, name));
-		info.incrementIndent();
 	}
 
 	/**
-	 * Logs the exit to a StringBuilder, indenting the message based on the
-	 * hierarchy of entries and exits for the current request. The message
-	 * includes the time elapsed since the corresponding entry log. If this is
+	 * Stores the exit for the current request. The output will include the
+	 * time elapsed since the corresponding entry, with microsecond precision,
+	 * plus the CPU time and allocated bytes if they were sampled. If this is
 	 * called outside of a request, nothing happens.
 	 */
-	public void logExit(String label, Class<?> clazz, String name, long exitTime) {
-		// Get the buffer and other info for this request.
+	public void logExit(String label, CallSite site, long exitNanos, long cpuNanos, long allocatedBytes) {
 		RequestInfo info = getRequestInfo();
-		if (info == null) {
-			return;
+		if (info != null) {
+			info.exit(site, exitNanos, cpuNanos, allocatedBytes);
 		}
-
-		// Calculate the total time taken.
-		long totalTime = exitTime - info.getStartTime();
-
-		// Decrease the indent level and log the message (including time taken).
-		info.decrementIndent();
-		info.log("Exiting " + getIdentity(label, clazz, name) + "   (Time: " + totalTime + ")");
 	}
 
 	/**
@@ -69,6 +101,37 @@ public class RequestBufferedAppender implements ProfilerAppender {
 		}
 	}
 
+	/**
+	 * Adds a profile saved by a previous request before the start of the
+	 * current logging output. It is only rendered when the output is.
+	 *
+	 * @param profile The saved profile.
+	 */
+	public void prependProfile(SavedProfile profile) {
+		RequestInfo info = getRequestInfo();
+		if (info != null) {
+			info.prependProfile(profile);
+		}
+	}
+
+	/**
+	 * Returns the events buffered for the current request, along with any
+	 * profile prepended from previous requests, in a compact form that can
+	 * be stored in the session and passed to {@link #prependProfile(SavedProfile)}
+	 * by a later request.
+	 * @return the profile, or <code>null</code> if this is called from outside
+	 * of a web request or no events have been logged yet
+	 */
+	public SavedProfile saveProfile() {
+		GrailsWebRequest webRequest = getWebRequest();
+		if (webRequest == null) {
+			return null;
+		}
+
+		RequestInfo info = (RequestInfo)webRequest.getAttribute(INFO_ATTR, RequestAttributes.SCOPE_REQUEST);
+		return info == null ? null : info.saveProfile(maxSavedBytes);
+	}
+
 	/**
 	 * Returns the output that is currently buffered, or <code>null</code> if this
 	 * is called from outside of a web request or no events have been logged yet.
@@ -84,6 +147,27 @@ public class RequestBufferedAppender implements ProfilerAppender {
 		return info == null ? null : info.getOutput();
 	}
 
+	/**
+	 * Passes the events buffered for the current request, after those of any
+	 * profiles prepended from previous requests, to the given visitor, e.g.
+	 * to export them with a {@link ChromeTraceWriter}. Prepended text is left
+	 * out, and so are the frames that didn't fit. This does nothing if it's
+	 * called from outside of a web request.
+	 * @param visitor the visitor
+	 * @throws IOException if a saved profile can't be decoded
+	 */
+	public void exportTrace(TraceVisitor visitor) throws IOException {
+		GrailsWebRequest webRequest = getWebRequest();
+		if (webRequest == null) {
+			return;
+		}
+
+		RequestInfo info = (RequestInfo)webRequest.getAttribute(INFO_ATTR, RequestAttributes.SCOPE_REQUEST);
+		if (info != null) {
+			info.exportTrace(visitor);
+		}
+	}
+
 	/**
 	 * Returns the current web request, or <code>null</code> if this is called
 	 * outside of a web request.
@@ -108,7 +192,7 @@ public class RequestBufferedAppender implements ProfilerAppender {
 			if (infoAttr == null) {
 				// There is no stored info yet, so create it and add
 				// it to the request as an attribute.
-				infoAttr = new RequestInfo();
+				infoAttr = new RequestInfo(maxEvents);
 				webRequest.setAttribute(INFO_ATTR, infoAttr, RequestAttributes.SCOPE_REQUEST);
 			}
 
@@ -119,81 +203,166 @@ public class RequestBufferedAppender implements ProfilerAppender {
 	}
 
 	/**
-	 * Returns an identity string based on a label, class, and element name. This should
-	 * be unique for any given instance of the appender, but there are no guarantees.
-	 */
-	private String getIdentity(String label, Class<?> clazz, String name) {
-		return "[" + label + "] " + clazz.getName() + ":" + name;
-	}
-
-	/**
-	 * Used to store a per-request StringBuilder, indent level, and start times.
+	 * Used to store the events of a single request, the text and saved
+	 * profiles to show before them, and the totals for the frames that
+	 * didn't fit.
 	 */
 	private static class RequestInfo {
-		private StringBuilder buffer = new StringBuilder();
-		private int indent;
-		private List<Long> startTimes = new ArrayList<Long>();
+		private final int maxEvents;
+
+		/** Texts and saved profiles, most recently prepended first. */
+		private final LinkedList<Object> prefixes = new LinkedList<Object>();
+		private RequestTrace trace;
+		private long recordedAt;
+
+		/** Start times of the open frames that didn't fit in the trace. */
+		private long[] overflowStarts = new long[16];
+		private int overflowDepth;
+
+		/** Call counts and total times of the frames that didn't fit. */
+		private final Map<CallSite, long[]> overflowTotals = new LinkedHashMap<CallSite, long[]>();
+
+		/** The last rendered output, until something changes. */
+		private String output;
+
+		RequestInfo(int maxEvents) {
+			this.maxEvents = maxEvents;
+		}
 
 		/**
-		 * Appends the given message to the StringBuilder with the appropriate
-		 * indent. A trailing newline is added too.
-		 * @param message the message
+		 * Stores an entry event, or starts timing the frame for the summary
+		 * if the trace is full.
 		 */
-		public void log(String message) {
-			for (int i = 0; i < indent; i++) {
-				buffer.append("  ");
+		public void entry(String label, CallSite site, long nanos, long cpuNanos, long allocatedBytes) {
+			if (trace == null) {
+				trace = new RequestTrace(label, maxEvents);
+				recordedAt = System.currentTimeMillis();
+			}
+			output = null;
+
+			if (!trace.addEntry(site, nanos, cpuNanos, allocatedBytes)) {
+				if (overflowDepth == overflowStarts.length) {
+					long[] newStarts = new long[overflowStarts.length * 2];
+					System.arraycopy(overflowStarts, 0, newStarts, 0, overflowDepth);
+					overflowStarts = newStarts;
+				}
+				overflowStarts[overflowDepth++] = nanos;
 			}
-			buffer.append(message).append('\n');
 		}
 
 		/**
-		 * Increases the current indent by one.
+		 * Stores an exit event, or adds the frame to the summary if its entry
+		 * didn't fit in the trace.
 		 */
-		public void incrementIndent() {
-			indent++;
+		public void exit(CallSite site, long nanos, long cpuNanos, long allocatedBytes) {
+			if (trace == null) {
+				return;
+			}
+			output = null;
+
+			// The trace drops the exits of the frames it dropped, which are
+			// always the innermost ones.
+			if (overflowDepth > 0) {
+				long[] totals = overflowTotals.get(site);
+				if (totals == null) {
+					totals = new long[2];
+					overflowTotals.put(site, totals);
+				}
+				totals[0]++;
+				totals[1] += nanos - overflowStarts[--overflowDepth];
+			}
+			trace.addExit(site, nanos, cpuNanos, allocatedBytes);
 		}
 
 		/**
-		 * Decreases the current indent by one.
+		 * Renders the output, unless it has already been rendered and
+		 * nothing has changed since.
+		 * @return the output
 		 */
-		public void decrementIndent() {
-			indent--;
+		public String getOutput() {
+			if (output != null) {
+				return output;
+			}
+
+			StringBuilder buffer = new StringBuilder(trace == null ? 256 : trace.size() * 80);
+			for (Object prefix : prefixes) {
+				if (prefix instanceof SavedProfile) {
+					((SavedProfile) prefix).render(buffer);
+				}
+				else {
+					buffer.append(prefix);
+				}
+			}
+
+			if (trace != null) {
+				trace.replay(new TraceFormatter(buffer, "  "));
+
+				if (!overflowTotals.isEmpty()) {
+					buffer.append("(").append(trace.getDroppedFrames())
+							.append(" frames not shown, totals by call site:)\n");
+					for (Map.Entry<CallSite, long[]> entry : overflowTotals.entrySet()) {
+						buffer.append("  ").append(entry.getKey().getIdentity())
+								.append("   (Calls: ").append(entry.getValue()[0]).append(", Time: ");
+						TimeUtil.appendNanos(buffer, entry.getValue()[1]).append(")\n");
+					}
+				}
+			}
+
+			output = buffer.toString();
+			return output;
 		}
 
 		/**
-		 * Marks a start time for later retrieval by {@link #getStartTime()}. The
-		 * time is given in milliseconds.
-		 * @param startTime the start time
+		 * Passes the prepended profiles and this request's trace to the visitor.
 		 */
-		public void logStart(long startTime) {
-			startTimes.add(startTime);
+		public void exportTrace(TraceVisitor visitor) throws IOException {
+			for (Object prefix : prefixes) {
+				if (prefix instanceof SavedProfile) {
+					((SavedProfile) prefix).accept(visitor);
+				}
+			}
+			if (trace != null) {
+				trace.accept(visitor, recordedAt);
+			}
 		}
 
 		/**
-		 * Returns the last start time logged by {@link #logStart(long)}, and
-		 * removes it. The next call to this method will then return the previous
-		 * start time. {@link #logStart(long)} and {@link #getStartTime()}
-		 * basically work as the push() and pop() methods of a stack.
-		 * @return the start time
+		 * Adds the given text before any output added so far.
+		 * @param text the text
 		 */
-		public Long getStartTime() {
-			return startTimes.remove(startTimes.size() - 1);
+		public void prependText(String text) {
+			prefixes.addFirst(text);
+			output = null;
 		}
 
 		/**
-		 * Returns the currently buffered output as a string.
-		 * @return the output
+		 * Adds the given profile before any output added so far.
+		 * @param profile the profile
 		 */
-		public String getOutput() {
-			return buffer.toString();
+		public void prependProfile(SavedProfile profile) {
+			prefixes.addFirst(profile);
+			output = null;
 		}
 
 		/**
-		 * Prepends the given text to the output buffer.
-		 * @param text the text
+		 * Returns the most recently prepended saved profile with this
+		 * request's trace added to it. Prepended text is left out.
+		 * @param maxBytes the maximum size of the profile
+		 * @return the profile, or <code>null</code> if there are no events
 		 */
-		public void prependText(String text) {
-			buffer.insert(0, text);
+		public SavedProfile saveProfile(int maxBytes) {
+			if (trace == null) {
+				return null;
+			}
+
+			SavedProfile previous = null;
+			for (Object prefix : prefixes) {
+				if (prefix instanceof SavedProfile) {
+					previous = (SavedProfile) prefix;
+					break;
+				}
+			}
+			return SavedProfile.add(previous, trace, System.currentTimeMillis(), maxBytes);
 		}
 	}
 }
@@ -0,0 +1,17 @@
+package com.linkedin.grails.profiler;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A profiler condition that decides from the HTTP request itself. When
+ * {@link ProfilerFilter} asks it, the condition is given the request
+ * directly, so it works whether or not the request has been bound to the
+ * thread yet, e.g. by the GrailsWebRequestFilter.
+ */
+public interface RequestProfilerCondition extends ProfilerCondition {
+	/**
+	 * @param request the current request
+	 * @return <code>true</code> if the request should be profiled
+	 */
+	boolean doProfiling(HttpServletRequest request);
+}
@@ -0,0 +1,140 @@
+package com.linkedin.grails.profiler;
+
+/**
+ * The finished spans of one request, as recorded by {@link OtlpSpanAppender}
+ * and exported by {@link OtlpSpanExporter}. The spans are kept in parallel
+ * arrays, indexed by span ID less the ID of the first span, so a span's
+ * parent is found without a map. A request holds at most a given number of
+ * spans; the spans that don't fit are dropped and counted.
+ * <p>
+ * This class is not thread-safe, but once the request's outermost span has
+ * ended it is no longer changed and may be handed to another thread.
+ */
+final class RequestSpans {
+	final String label;
+
+	/** The OTLP trace ID, which may have come from the incoming request. */
+	final long traceIdHigh;
+	final long traceIdLow;
+
+	/** The ID of the remote span that the outermost span is a child of, or 0. */
+	final long remoteParentId;
+
+	/** Added to the profiler's span IDs to make them unique across requests. */
+	final long spanIdBase;
+
+	/** Converts System.nanoTime() values to nanoseconds since the epoch. */
+	final long epochOffsetNanos;
+
+	private final long firstId;
+	private final int maxSpans;
+
+	CallSite[] sites;
+	long[] parentIds;
+	long[] startNanos;
+	long[] endNanos;
+	long[] cpuNanos;
+	long[] allocatedBytes;
+	int size;
+	int droppedSpans;
+
+	RequestSpans(String label, long traceIdHigh, long traceIdLow, long remoteParentId, long spanIdBase,
+			long firstId, int maxSpans) {
+		this.label = label;
+		this.traceIdHigh = traceIdHigh;
+		this.traceIdLow = traceIdLow;
+		this.remoteParentId = remoteParentId;
+		this.spanIdBase = spanIdBase;
+		this.firstId = firstId;
+		this.maxSpans = maxSpans;
+		epochOffsetNanos = System.currentTimeMillis() * 1000000L - System.nanoTime();
+
+		int capacity = Math.min(maxSpans, 16);
+		sites = new CallSite[capacity];
+		parentIds = new long[capacity];
+		startNanos = new long[capacity];
+		endNanos = new long[capacity];
+		cpuNanos = new long[capacity];
+		allocatedBytes = new long[capacity];
+	}
+
+	/**
+	 * Records the start of a span, unless the request already has as many
+	 * spans as it may hold. Spans must be started in ID order.
+	 */
+	void start(Span span) {
+		int i = (int) (span.getId() - firstId);
+		if (i != size || i >= maxSpans) {
+			droppedSpans++;
+			return;
+		}
+
+		if (size == sites.length) {
+			grow();
+		}
+		sites[i] = span.getSite();
+		parentIds[i] = span.getParentId();
+		startNanos[i] = span.getStartNanos();
+		endNanos[i] = -1L;
+		cpuNanos[i] = span.getStartCpuNanos();
+		allocatedBytes[i] = span.getStartAllocatedBytes();
+		size++;
+	}
+
+	/**
+	 * Records the end of a span. The CPU time and allocated bytes at the
+	 * start are replaced by the differences, or -1 if they weren't sampled.
+	 */
+	void end(Span span, long exitNanos, long exitCpuNanos, long exitAllocatedBytes) {
+		long i = span.getId() - firstId;
+		if (i < 0 || i >= size) {
+			return;
+		}
+
+		int j = (int) i;
+		endNanos[j] = exitNanos;
+		cpuNanos[j] = cpuNanos[j] >= 0 && exitCpuNanos >= 0 ? exitCpuNanos - cpuNanos[j] : -1L;
+		allocatedBytes[j] = allocatedBytes[j] >= 0 && exitAllocatedBytes >= 0 ?
+				exitAllocatedBytes - allocatedBytes[j] : -1L;
+	}
+
+	/**
+	 * @return the number of spans recorded
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the OTLP span ID of the i'th span
+	 */
+	long getSpanId(int i) {
+		return spanIdBase + firstId + i;
+	}
+
+	/**
+	 * @return the OTLP span ID of the i'th span's parent, or 0 if it has none
+	 */
+	long getParentSpanId(int i) {
+		long parentId = parentIds[i];
+		if (parentId < firstId) {
+			return remoteParentId;
+		}
+		return spanIdBase + parentId;
+	}
+
+	private void grow() {
+		int capacity = (int) Math.min((long) maxSpans, sites.length * 2L);
+		sites = copyOf(sites, new CallSite[capacity]);
+		parentIds = copyOf(parentIds, new long[capacity]);
+		startNanos = copyOf(startNanos, new long[capacity]);
+		endNanos = copyOf(endNanos, new long[capacity]);
+		cpuNanos = copyOf(cpuNanos, new long[capacity]);
+		allocatedBytes = copyOf(allocatedBytes, new long[capacity]);
+	}
+
+	private <T> T copyOf(T from, T to) {
+		System.arraycopy(from, 0, to, 0, size);
+		return to;
+	}
+}
@@ -0,0 +1,261 @@
+package com.linkedin.grails.profiler;
+
+/**
+ * The profiling events of a single request, stored compactly in parallel
+ * arrays so that a finished trace can be handed to another thread, kept
+ * for later, or replayed through any {@link NanoProfilerAppender}. A trace
+ * grows as events are added, up to a maximum number of events. The arrays
+ * are allocated in fixed-size chunks, so growing never copies the events
+ * recorded so far. Frames that don't fit are dropped and counted, and room
+ * is always reserved for the exits of frames already entered, so the events
+ * stay balanced.
+ * <p>
+ * This class is not thread-safe, but a trace that is no longer being
+ * written to may be safely published to other threads.
+ */
+public class RequestTrace {
+	private static final int CHUNK_SHIFT = 7;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final String label;
+	private final int maxEvents;
+
+	private CallSite[][] sites;
+	private long[][] times;
+	private long[][] cpuTimes;
+	private long[][] allocatedBytes;
+	private boolean[][] entries;
+	private int chunks;
+	private int size;
+
+	private int depth;
+	private int skippedDepth;
+	private int droppedFrames;
+
+	/**
+	 * Creates an empty trace.
+	 * @param label the label of the request, as given to the appenders
+	 * @param maxEvents the maximum number of events the trace can hold
+	 */
+	public RequestTrace(String label, int maxEvents) {
+		if (maxEvents < 2) {
+			throw new IllegalArgumentException("Must allow at least 2 events, but was " + maxEvents);
+		}
+
+		this.label = label;
+		this.maxEvents = maxEvents;
+
+		sites = new CallSite[4][];
+		times = new long[4][];
+		cpuTimes = new long[4][];
+		allocatedBytes = new long[4][];
+		entries = new boolean[4][];
+	}
+
+	/**
+	 * Adds an entry event, unless the trace is full.
+	 * @return <code>true</code> if the event was added
+	 */
+	public boolean addEntry(CallSite site, long nanos, long cpuNanos, long bytes) {
+		if (skippedDepth > 0 || size + depth + 2 > maxEvents) {
+			skippedDepth++;
+			droppedFrames++;
+			return false;
+		}
+
+		add(site, nanos, cpuNanos, bytes, true);
+		depth++;
+		return true;
+	}
+
+	/**
+	 * Adds an exit event, unless the corresponding entry was dropped.
+	 * @return <code>true</code> if the event was added
+	 */
+	public boolean addExit(CallSite site, long nanos, long cpuNanos, long bytes) {
+		if (skippedDepth > 0) {
+			skippedDepth--;
+			return false;
+		}
+		if (depth == 0) {
+			return false;
+		}
+
+		depth--;
+		add(site, nanos, cpuNanos, bytes, false);
+		return true;
+	}
+
+	private void add(CallSite site, long nanos, long cpuNanos, long bytes, boolean entry) {
+		int chunk = size >>> CHUNK_SHIFT;
+		if (chunk == chunks) {
+			addChunk();
+		}
+
+		int i = size & CHUNK_MASK;
+		sites[chunk][i] = site;
+		times[chunk][i] = nanos;
+		cpuTimes[chunk][i] = cpuNanos;
+		allocatedBytes[chunk][i] = bytes;
+		entries[chunk][i] = entry;
+		size++;
+	}
+
+	private void addChunk() {
+		// Only the (small) tables of chunks are ever copied.
+		if (chunks == sites.length) {
+			int newLength = chunks * 2;
+			sites = copyOf(sites, new CallSite[newLength][]);
+			times = copyOf(times, new long[newLength][]);
+			cpuTimes = copyOf(cpuTimes, new long[newLength][]);
+			allocatedBytes = copyOf(allocatedBytes, new long[newLength][]);
+			entries = copyOf(entries, new boolean[newLength][]);
+		}
+
+		sites[chunks] = new CallSite[CHUNK_SIZE];
+		times[chunks] = new long[CHUNK_SIZE];
+		cpuTimes[chunks] = new long[CHUNK_SIZE];
+		allocatedBytes[chunks] = new long[CHUNK_SIZE];
+		entries[chunks] = new boolean[CHUNK_SIZE];
+		chunks++;
+	}
+
+	private <T> T[] copyOf(T[] from, T[] to) {
+		System.arraycopy(from, 0, to, 0, from.length);
+		return to;
+	}
+
+	/**
+	 * @return the label of the request
+	 */
+	public String getLabel() {
+		return label;
+	}
+
+	/**
+	 * @return the number of events in the trace
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return <code>true</code> if every frame that has been entered has also been exited
+	 */
+	public boolean isComplete() {
+		return depth == 0 && skippedDepth == 0;
+	}
+
+	/**
+	 * @return the number of frames that were dropped because the trace was full
+	 */
+	public int getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	/**
+	 * @return the call site of the i'th event
+	 */
+	public CallSite getSite(int i) {
+		checkIndex(i);
+		return sites[i >>> CHUNK_SHIFT][i & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the time of the i'th event in nanoseconds
+	 */
+	public long getTime(int i) {
+		checkIndex(i);
+		return times[i >>> CHUNK_SHIFT][i & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the thread CPU time at the i'th event in nanoseconds, or -1
+	 */
+	public long getCpuTime(int i) {
+		checkIndex(i);
+		return cpuTimes[i >>> CHUNK_SHIFT][i & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the bytes allocated by the thread at the i'th event, or -1
+	 */
+	public long getAllocatedBytes(int i) {
+		checkIndex(i);
+		return allocatedBytes[i >>> CHUNK_SHIFT][i & CHUNK_MASK];
+	}
+
+	/**
+	 * @return <code>true</code> if the i'th event is an entry, <code>false</code> if it's an exit
+	 */
+	public boolean isEntry(int i) {
+		checkIndex(i);
+		return entries[i >>> CHUNK_SHIFT][i & CHUNK_MASK];
+	}
+
+	/**
+	 * Returns the total time taken by the trace, i.e. the time between the
+	 * first and last events, in nanoseconds.
+	 * @return the duration, or 0 if the trace is empty
+	 */
+	public long getDuration() {
+		return size == 0 ? 0 : getTime(size - 1) - getTime(0);
+	}
+
+	/**
+	 * Passes all the events in the trace to the given appender, in order.
+	 * @param appender the appender
+	 */
+	public void replay(NanoProfilerAppender appender) {
+		for (int i = 0; i < size; i++) {
+			int c = i >>> CHUNK_SHIFT;
+			int j = i & CHUNK_MASK;
+			if (entries[c][j]) {
+				appender.logEntry(label, sites[c][j], times[c][j], cpuTimes[c][j], allocatedBytes[c][j]);
+			}
+			else {
+				appender.logExit(label, sites[c][j], times[c][j], cpuTimes[c][j], allocatedBytes[c][j]);
+			}
+		}
+	}
+
+	/**
+	 * Passes the trace to the given visitor, with times relative to the first event.
+	 * @param visitor the visitor
+	 * @param recordedAt when the trace was recorded, in milliseconds since the epoch
+	 */
+	public void accept(TraceVisitor visitor, long recordedAt) {
+		visitor.startTrace(label, recordedAt);
+
+		long start = size == 0 ? 0 : getTime(0);
+		for (int i = 0; i < size; i++) {
+			int c = i >>> CHUNK_SHIFT;
+			int j = i & CHUNK_MASK;
+			CallSite site = sites[c][j];
+			String className = site.getTargetClass().getName();
+			if (site == ProfilingContext.BRANCH_SITE) {
+				if (entries[c][j]) {
+					visitor.startBranch(times[c][j] - start, cpuTimes[c][j], allocatedBytes[c][j]);
+				}
+				else {
+					visitor.endBranch(times[c][j] - start, cpuTimes[c][j], allocatedBytes[c][j]);
+				}
+			}
+			else if (entries[c][j]) {
+				visitor.entry(className, site.getName(), times[c][j] - start, cpuTimes[c][j], allocatedBytes[c][j]);
+			}
+			else {
+				visitor.exit(className, site.getName(), times[c][j] - start, cpuTimes[c][j], allocatedBytes[c][j]);
+			}
+		}
+
+		visitor.endTrace(droppedFrames);
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size);
+		}
+	}
+}
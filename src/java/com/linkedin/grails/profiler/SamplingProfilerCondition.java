@@ -0,0 +1,162 @@
+package com.linkedin.grails.profiler;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A profiler condition that profiles a sample of all requests, so that
+ * profiling can stay switched on for production traffic. Requests can be
+ * sampled by count (one request in every <code>sampleRate</code>), by time
+ * (at most <code>maxPerSecond</code> requests a second, enforced by a
+ * {@link TokenBucket}), or both, in which case a request is only profiled
+ * if it passes both tests. Either way, the amount of profiling data sent to
+ * the appenders stays bounded however heavy the traffic gets.
+ * <p>
+ * An optional "force" condition, such as a {@link ParamProfilerCondition},
+ * allows requests to be profiled regardless of the sampling. This class is
+ * thread-safe and lock-free.
+ */
+public class SamplingProfilerCondition implements RequestProfilerCondition {
+	private ProfilerCondition forceCondition;
+	private volatile int sampleRate;
+	private volatile TokenBucket tokenBucket;
+	private volatile int burst = 1;
+
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong sampledCount = new AtomicLong();
+
+	/**
+	 * Sets a condition that, if satisfied, means the current request is
+	 * profiled regardless of the sampling. Forced requests don't use up
+	 * any of the sampling allowance.
+	 * @param forceCondition the condition
+	 */
+	public void setForceCondition(ProfilerCondition forceCondition) {
+		this.forceCondition = forceCondition;
+	}
+
+	/**
+	 * @return the condition that forces profiling, or <code>null</code>
+	 */
+	public ProfilerCondition getForceCondition() {
+		return forceCondition;
+	}
+
+	/**
+	 * Returns how many requests there are for each one sampled, or 0 if
+	 * requests aren't sampled by count.
+	 * @return the sample rate
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Sets how many requests there are for each one sampled, e.g. 1000
+	 * means one request in a thousand is profiled. A value of 0 switches
+	 * off sampling by count. This may be changed at any time.
+	 * @param sampleRate the sample rate
+	 */
+	public void setSampleRate(int sampleRate) {
+		if (sampleRate < 0) {
+			throw new IllegalArgumentException("Sample rate cannot be negative, but was " + sampleRate);
+		}
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * Returns the maximum number of requests sampled each second, or 0 if
+	 * there is no limit.
+	 * @return the rate
+	 */
+	public double getMaxPerSecond() {
+		TokenBucket bucket = tokenBucket;
+		return bucket == null ? 0 : bucket.getPermitsPerSecond();
+	}
+
+	/**
+	 * Sets the maximum number of requests sampled each second. A value of 0
+	 * removes the limit. This may be changed at any time.
+	 * @param maxPerSecond the rate
+	 */
+	public void setMaxPerSecond(double maxPerSecond) {
+		if (maxPerSecond < 0) {
+			throw new IllegalArgumentException("Rate cannot be negative, but was " + maxPerSecond);
+		}
+		tokenBucket = maxPerSecond == 0 ? null : new TokenBucket(maxPerSecond, burst);
+	}
+
+	/**
+	 * Sets how many requests may be sampled at once when limiting the
+	 * number sampled per second. Defaults to 1.
+	 * @param burst the burst size
+	 */
+	public void setBurst(int burst) {
+		this.burst = burst;
+
+		TokenBucket bucket = tokenBucket;
+		if (bucket != null) {
+			tokenBucket = new TokenBucket(bucket.getPermitsPerSecond(), burst);
+		}
+	}
+
+	/**
+	 * @return the number of requests this condition has been asked about
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * @return the number of requests that have been sampled, not including forced ones
+	 */
+	public long getSampledCount() {
+		return sampledCount.get();
+	}
+
+	/**
+	 * Returns <code>true</code> if the force condition is satisfied or if the
+	 * current request has been picked by the sampling.
+	 */
+	public boolean doProfiling() {
+		if (forceCondition != null && forceCondition.doProfiling()) {
+			return true;
+		}
+		return sample();
+	}
+
+	/**
+	 * Returns <code>true</code> if the force condition is satisfied by the
+	 * given request or if the request has been picked by the sampling.
+	 */
+	public boolean doProfiling(HttpServletRequest request) {
+		if (forceCondition != null && AbstractRequestProfilerCondition.doProfiling(forceCondition, request)) {
+			return true;
+		}
+		return sample();
+	}
+
+	private boolean sample() {
+		// Sample by count first, so that the token bucket is only
+		// consulted for the requests that pass.
+		long count = requestCount.incrementAndGet();
+		int rate = sampleRate;
+		if (rate > 0 && count % rate != 0) {
+			return false;
+		}
+
+		TokenBucket bucket = tokenBucket;
+		if (bucket != null && !bucket.tryAcquire()) {
+			return false;
+		}
+
+		// With neither kind of sampling configured, nothing is sampled.
+		if (rate == 0 && bucket == null) {
+			return false;
+		}
+
+		sampledCount.incrementAndGet();
+		return true;
+	}
+}
@@ -0,0 +1,126 @@
+package com.linkedin.grails.profiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * The profiles of a chain of requests (redirects, errors), carried over in
+ * the session so that they can be shown along with the profile of the
+ * request that finally renders a page. Each request's trace is held in the
+ * binary format written by {@link TraceEncoder}, which is far smaller than
+ * the rendered text, and only turned into text by {@link #render(StringBuilder)}.
+ * <p>
+ * A saved profile never holds more than a given number of bytes: when
+ * adding a trace would go over the limit, the oldest traces are dropped.
+ * Instances are immutable.
+ */
+public class SavedProfile implements Serializable {
+	private static final long serialVersionUID = 1;
+
+	/** Encoded traces, oldest first. Each one is a complete stream. */
+	private final byte[][] traces;
+	private final int omittedTraces;
+
+	private SavedProfile(byte[][] traces, int omittedTraces) {
+		this.traces = traces;
+		this.omittedTraces = omittedTraces;
+	}
+
+	/**
+	 * Returns a saved profile holding the traces of the given profile, if
+	 * any, followed by the given trace.
+	 * @param previous the profile saved by the previous request, or <code>null</code>
+	 * @param trace the trace of the current request
+	 * @param recordedAt when the trace was recorded, in milliseconds since the epoch
+	 * @param maxBytes the maximum size of the encoded traces
+	 * @return the new profile
+	 */
+	public static SavedProfile add(SavedProfile previous, RequestTrace trace, long recordedAt, int maxBytes) {
+		TraceEncoder.Buffer buffer = new TraceEncoder.Buffer(trace.size() * 4 + 64);
+		try {
+			TraceEncoder.writeHeader(buffer);
+			new TraceEncoder().encode(trace, recordedAt, buffer);
+		}
+		catch (IOException e) {
+			// Can't happen with an in-memory stream.
+			throw new IllegalStateException(e);
+		}
+		byte[] encoded = buffer.toByteArray();
+
+		byte[][] previousTraces = previous == null ? new byte[0][] : previous.traces;
+		int omitted = previous == null ? 0 : previous.omittedTraces;
+
+		// Keep as many of the most recent traces as will fit.
+		int total = 0;
+		int first = previousTraces.length + 1;
+		for (int i = previousTraces.length; i >= 0; i--) {
+			byte[] candidate = i == previousTraces.length ? encoded : previousTraces[i];
+			if (total + candidate.length > maxBytes) {
+				break;
+			}
+			total += candidate.length;
+			first = i;
+		}
+
+		byte[][] traces = new byte[previousTraces.length + 1 - first][];
+		for (int i = first; i < previousTraces.length; i++) {
+			traces[i - first] = previousTraces[i];
+		}
+		if (first <= previousTraces.length) {
+			traces[traces.length - 1] = encoded;
+		}
+
+		return new SavedProfile(traces, omitted + first);
+	}
+
+	/**
+	 * @return the number of bytes taken up by the encoded traces
+	 */
+	public int getSize() {
+		int size = 0;
+		for (byte[] trace : traces) {
+			size += trace.length;
+		}
+		return size;
+	}
+
+	/**
+	 * Passes the traces to the given visitor, oldest first.
+	 * @param visitor the visitor
+	 * @throws IOException if a trace can't be decoded
+	 */
+	public void accept(TraceVisitor visitor) throws IOException {
+		for (byte[] trace : traces) {
+			TraceFileReader reader = new TraceFileReader(new ByteArrayInputStream(trace));
+			while (reader.readTrace(visitor)) {
+				// The visitor does the work.
+			}
+		}
+	}
+
+	/**
+	 * Renders the traces as the indented text that {@link RequestBufferedAppender}
+	 * produces, oldest first, each followed by a blank line.
+	 * @param out the buffer to append to
+	 */
+	public void render(StringBuilder out) {
+		if (omittedTraces > 0) {
+			out.append('(').append(omittedTraces).append(" earlier requests not shown: saved profile too large)\n\n");
+		}
+
+		TraceFormatter formatter = new TraceFormatter(out, "  ");
+		for (byte[] trace : traces) {
+			try {
+				TraceFileReader reader = new TraceFileReader(new ByteArrayInputStream(trace));
+				while (reader.readTrace(formatter)) {
+					// The formatter does the work.
+				}
+			}
+			catch (IOException e) {
+				out.append("(saved profile unreadable: ").append(e.getMessage()).append(")\n");
+			}
+			out.append('\n');
+		}
+	}
+}
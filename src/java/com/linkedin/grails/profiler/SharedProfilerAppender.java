@@ -0,0 +1,64 @@
+package com.linkedin.grails.profiler;
+
+/**
+ * An appender that is thread-safe and shared by all threads, and so can be
+ * a singleton bean. Whatever state it keeps for a request lives in a
+ * separate context object instead, which {@link DefaultProfilerLog} hands
+ * in with every event. The log takes a context from a pool when profiling
+ * starts, and resets it and returns it to the pool when profiling stops,
+ * so in the common case a profiled request neither looks up nor creates
+ * any beans, and the contexts themselves are reused.
+ * <p>
+ * The appender is told about each frame as a {@link Span}, which says what
+ * was entered when and inside which other span. The log keeps the spans
+ * balanced, so the appender needn't keep a stack or map of its own to work
+ * out how long a frame took, even when frames for the same call site nest.
+ * <p>
+ * A context is only ever used by one thread at a time, so it needn't be
+ * thread-safe. The methods inherited from {@link ProfilerAppender} are
+ * for other logs, which know nothing of contexts.
+ *
+ * @param <C> the type of the context
+ */
+public interface SharedProfilerAppender<C> extends ProfilerAppender {
+	/**
+	 * Creates a context for the state of one request.
+	 * @return the new context, never <code>null</code>
+	 */
+	C createContext();
+
+	/**
+	 * Called on entry to a method, action, or whatever.
+	 * @param context The context of the current request.
+	 * @param label An identifier for the current profiling hierarchy,
+	 * e.g. the name of the current thread.
+	 * @param span The span that has started, with its call site, parent,
+	 * start time, and the thread's CPU time and allocated bytes at the
+	 * start, which are -1 if they weren't sampled.
+	 */
+	void logEntry(C context, String label, Span span);
+
+	/**
+	 * Called on exit from a method, action, or whatever. Spans always end
+	 * in the reverse order that they start.
+	 * @param context The context of the current request.
+	 * @param label An identifier for the current profiling hierarchy,
+	 * e.g. the name of the current thread.
+	 * @param span The span that has ended, as given to {@link #logEntry(Object, String, Span)}.
+	 * @param exitNanos The exit time in nanoseconds, as returned by
+	 * System.nanoTime().
+	 * @param cpuNanos The CPU time used by the current thread so far in
+	 * nanoseconds, or -1 if it wasn't sampled.
+	 * @param allocatedBytes The number of bytes allocated by the current
+	 * thread so far, or -1 if it wasn't sampled.
+	 */
+	void logExit(C context, String label, Span span, long exitNanos, long cpuNanos, long allocatedBytes);
+
+	/**
+	 * Called when profiling stops. Any state left over from the request,
+	 * e.g. because some frames were never exited, must be cleared so that
+	 * the context can be used for another request.
+	 * @param context the context of the request that has finished
+	 */
+	void reset(C context);
+}
@@ -0,0 +1,64 @@
+package com.linkedin.grails.profiler;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A request kept by a {@link SlowRequestStore} because it was slow, along
+ * with its full trace. Each one is given a unique id, so that it can be
+ * looked up again. Instances are immutable.
+ */
+public class SlowRequest {
+	private static final AtomicLong nextId = new AtomicLong(1);
+
+	private final long id = nextId.getAndIncrement();
+	private final RequestTrace trace;
+	private final long recordedAt;
+	private final long duration;
+
+	/**
+	 * Creates a new instance.
+	 * @param trace the request's trace, which must no longer be written to
+	 * @param recordedAt when the request started, in milliseconds since the epoch
+	 * @param duration how long the request took, in nanoseconds
+	 */
+	public SlowRequest(RequestTrace trace, long recordedAt, long duration) {
+		this.trace = trace;
+		this.recordedAt = recordedAt;
+		this.duration = duration;
+	}
+
+	/**
+	 * @return the id of the request
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @return the request's trace
+	 */
+	public RequestTrace getTrace() {
+		return trace;
+	}
+
+	/**
+	 * @return the label of the request
+	 */
+	public String getLabel() {
+		return trace.getLabel();
+	}
+
+	/**
+	 * @return when the request started, in milliseconds since the epoch
+	 */
+	public long getRecordedAt() {
+		return recordedAt;
+	}
+
+	/**
+	 * @return how long the request took, in nanoseconds
+	 */
+	public long getDuration() {
+		return duration;
+	}
+}
@@ -0,0 +1,262 @@
+package com.linkedin.grails.profiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the full traces of the slowest requests profiled, so that tail
+ * latency can be investigated without anyone having to ask for a profile.
+ * When it is given to {@link DefaultProfilerLog}, every request profiled is
+ * recorded into the thread's ring buffer as usual, and at the end of the
+ * request its duration is checked against this store's threshold. Only if
+ * the request is slow enough is its trace copied out of the buffer, kept,
+ * and passed to the appenders; the buffer is reused either way, so fast
+ * requests cost nothing more.
+ * <p>
+ * The threshold is either fixed, or, by default, a percentile (the 99th)
+ * of the durations seen during the previous time window, one minute by
+ * default. At most a given number of traces is kept: once the store is
+ * full, a new trace only gets in by pushing out the fastest one. This class
+ * is thread-safe. Checking a request's duration only takes a lock once per
+ * window; keeping a trace takes a lock.
+ */
+public class SlowRequestStore {
+	/** How often the threshold is recomputed while the first window fills up. */
+	private static final int WARM_UP_INTERVAL = 64;
+
+	private static final Comparator<SlowRequest> FASTEST_FIRST = new Comparator<SlowRequest>() {
+		public int compare(SlowRequest a, SlowRequest b) {
+			long diff = a.getDuration() - b.getDuration();
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+	};
+
+	private int capacity = 50;
+	private volatile long fixedThreshold;
+	private volatile double percentile = 99;
+	private int minSamples = 100;
+	private long windowNanos = 60L * 1000000000L;
+
+	/** The durations of the current window. */
+	private volatile LatencyHistogram window = new LatencyHistogram();
+	private volatile long windowStart = System.nanoTime();
+	private volatile boolean warmedUp;
+	private final AtomicLong windowCount = new AtomicLong();
+
+	/** The dynamic threshold, or {@link Long#MAX_VALUE} until there are enough samples. */
+	private volatile long dynamicThreshold = Long.MAX_VALUE;
+
+	/** The duration a trace must beat to get in once the store is full. */
+	private volatile long minKept;
+
+	private final PriorityQueue<SlowRequest> requests = new PriorityQueue<SlowRequest>(16, FASTEST_FIRST);
+
+	/**
+	 * Sets the maximum number of traces kept. Defaults to 50. This should not
+	 * be called once the store is in use.
+	 * @param capacity the number of traces
+	 */
+	public void setCapacity(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1, but was " + capacity);
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the fixed threshold, or 0 if the threshold is a percentile.
+	 * @return the threshold in milliseconds
+	 */
+	public long getThresholdMillis() {
+		return fixedThreshold / 1000000L;
+	}
+
+	/**
+	 * Sets a fixed threshold: requests that take at least this long are
+	 * kept. A value of 0, the default, makes the threshold a percentile of
+	 * recent durations instead. This may be changed at any time.
+	 * @param thresholdMillis the threshold in milliseconds
+	 */
+	public void setThresholdMillis(long thresholdMillis) {
+		fixedThreshold = thresholdMillis * 1000000L;
+	}
+
+	/**
+	 * Sets the percentile of recent request durations that a request must
+	 * reach to be kept, when there is no fixed threshold. Defaults to 99.
+	 * This may be changed at any time.
+	 * @param percentile the percentile, between 0 and 100
+	 */
+	public void setPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("Percentile must be between 0 and 100, but was " + percentile);
+		}
+		this.percentile = percentile;
+	}
+
+	/**
+	 * Sets how many durations must have been seen before the percentile is
+	 * trusted. Until then, no request is kept unless there's a fixed
+	 * threshold. Defaults to 100. This should not be called once the store
+	 * is in use.
+	 * @param minSamples the number of durations
+	 */
+	public void setMinSamples(int minSamples) {
+		this.minSamples = minSamples;
+	}
+
+	/**
+	 * Sets the length of the window over which the percentile is computed.
+	 * Defaults to 60 seconds. This should not be called once the store is in use.
+	 * @param windowSeconds the window length in seconds
+	 */
+	public void setWindowSeconds(int windowSeconds) {
+		windowNanos = windowSeconds * 1000000000L;
+	}
+
+	/**
+	 * Returns the duration that a request must currently reach to be kept.
+	 * @return the threshold in nanoseconds, or {@link Long#MAX_VALUE} if
+	 * there are not enough samples yet
+	 */
+	public long getCurrentThreshold() {
+		long fixed = fixedThreshold;
+		return fixed > 0 ? fixed : dynamicThreshold;
+	}
+
+	/**
+	 * Records the duration of a finished request and returns whether its
+	 * trace should be kept, i.e. whether it reached the threshold and is
+	 * slower than the traces already kept. This is cheap enough to call for
+	 * every request: it only takes a lock when a window has gone by, and
+	 * only allocates then, and every 64 requests while the first window
+	 * fills up, to work out the threshold.
+	 * @param duration the duration in nanoseconds
+	 * @return <code>true</code> if the trace should be passed to {@link #add(SlowRequest)}
+	 */
+	public boolean isSlow(long duration) {
+		recordDuration(duration);
+		return duration >= getCurrentThreshold() && duration > minKept;
+	}
+
+	/**
+	 * Keeps the given request, if it's slower than the fastest one kept or
+	 * the store isn't full yet.
+	 * @param request the request
+	 */
+	public synchronized void add(SlowRequest request) {
+		if (requests.size() >= capacity) {
+			if (request.getDuration() <= requests.peek().getDuration()) {
+				return;
+			}
+			requests.poll();
+		}
+		requests.add(request);
+
+		if (requests.size() >= capacity) {
+			minKept = requests.peek().getDuration();
+		}
+	}
+
+	/**
+	 * @return the requests kept, slowest first
+	 */
+	public synchronized List<SlowRequest> getRequests() {
+		List<SlowRequest> result = new ArrayList<SlowRequest>(requests);
+		Collections.sort(result, Collections.reverseOrder(FASTEST_FIRST));
+		return result;
+	}
+
+	/**
+	 * Returns the request with the given id, if it's still kept.
+	 * @param id the id
+	 * @return the request, or <code>null</code>
+	 */
+	public synchronized SlowRequest getRequest(long id) {
+		for (SlowRequest request : requests) {
+			if (request.getId() == id) {
+				return request;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Discards the requests kept so far. The threshold is left alone.
+	 */
+	public synchronized void clear() {
+		requests.clear();
+		minKept = 0;
+	}
+
+	/**
+	 * Returns the traces of the requests kept, slowest first, as indented text.
+	 * @return the report
+	 */
+	public String getReport() {
+		List<SlowRequest> slowest = getRequests();
+		StringBuilder out = new StringBuilder();
+		TraceFormatter formatter = new TraceFormatter(out, "  ");
+		for (SlowRequest request : slowest) {
+			out.append("Slow request [").append(request.getLabel()).append("] at ")
+					.append(new Date(request.getRecordedAt())).append(": ");
+			TimeUtil.appendNanos(out, request.getDuration()).append('\n');
+			request.getTrace().accept(formatter, request.getRecordedAt());
+			out.append('\n');
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Passes the traces of the requests kept to the given visitor, slowest
+	 * first, e.g. to export them with a {@link ChromeTraceWriter}.
+	 * @param visitor the visitor
+	 */
+	public void exportTraces(TraceVisitor visitor) {
+		for (SlowRequest request : getRequests()) {
+			request.getTrace().accept(visitor, request.getRecordedAt());
+		}
+	}
+
+	private void recordDuration(long duration) {
+		long now = System.nanoTime();
+		if (now - windowStart >= windowNanos) {
+			rotate(now);
+		}
+
+		LatencyHistogram current = window;
+		current.record(duration);
+
+		// Until a whole window has gone by, the threshold is worked out from
+		// the current one every so often.
+		long count = windowCount.incrementAndGet();
+		if (!warmedUp && count >= minSamples && count % WARM_UP_INTERVAL == 0) {
+			dynamicThreshold = current.getValueAtPercentile(percentile);
+		}
+	}
+
+	/**
+	 * Starts a new window, basing the threshold on the one just finished.
+	 */
+	private synchronized void rotate(long now) {
+		if (now - windowStart < windowNanos) {
+			return;
+		}
+
+		LatencyHistogram finished = window;
+		window = new LatencyHistogram();
+		windowStart = now;
+		windowCount.set(0);
+
+		if (finished.getCount() >= minSamples) {
+			dynamicThreshold = finished.getValueAtPercentile(percentile);
+			warmedUp = true;
+		}
+		// Otherwise there were too few requests to go on: keep the old threshold.
+	}
+}
@@ -0,0 +1,110 @@
+package com.linkedin.grails.profiler;
+
+/**
+ * A frame of a profiled request: a call site that was entered at a given
+ * time, inside a parent span. {@link SpanProfilerLog#startSpan(CallSite)}
+ * returns a span as a handle, to be ended with {@link #end()}; appenders
+ * that implement {@link SharedProfilerAppender} are given spans too, and so
+ * don't need to keep their own record of what was entered when.
+ * <p>
+ * Spans are pooled: each thread has a stack of span objects that is reused
+ * from one frame to the next and from one request to the next, so starting
+ * a span allocates nothing. A span must therefore only be used by the
+ * thread that started it, and must not be used at all once it has ended.
+ * The same goes for the spans given to appenders, which must copy anything
+ * they want to keep.
+ * <p>
+ * Within a request, spans are numbered from 1 in the order they start; a
+ * parent ID of 0 means there is no parent. The spans given to appenders
+ * are numbered as the appenders see them, which includes the spans of
+ * work done on other threads as part of the request, so their IDs needn't
+ * match those of the handles.
+ */
+public final class Span {
+	/**
+	 * The span returned when the current thread isn't being profiled.
+	 * Ending it does nothing.
+	 */
+	public static final Span NONE = new Span(null);
+
+	/** The log to end the span with, or <code>null</code> if the span isn't a handle. */
+	private final DefaultProfilerLog log;
+
+	CallSite site;
+	Span parent;
+	long id;
+	int depth;
+	long startNanos;
+	long startCpuNanos;
+	long startAllocatedBytes;
+
+	Span(DefaultProfilerLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * Ends the span, and any spans started inside it that haven't ended
+	 * yet. Ending {@link #NONE}, or a span given to an appender, does nothing.
+	 */
+	public void end() {
+		if (log != null) {
+			log.endSpan(this);
+		}
+	}
+
+	/**
+	 * @return the call site that was entered
+	 */
+	public CallSite getSite() {
+		return site;
+	}
+
+	/**
+	 * @return the span that this one started in, or <code>null</code> if it is outermost
+	 */
+	public Span getParent() {
+		return parent;
+	}
+
+	/**
+	 * @return the ID of the span within its request, starting at 1
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @return the ID of the parent span, or 0 if there is none
+	 */
+	public long getParentId() {
+		return parent == null ? 0 : parent.id;
+	}
+
+	/**
+	 * @return the number of spans that enclose this one, i.e. 0 for the outermost
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return the start time in nanoseconds, as returned by System.nanoTime()
+	 */
+	public long getStartNanos() {
+		return startNanos;
+	}
+
+	/**
+	 * @return the thread CPU time at the start in nanoseconds, or -1 if it wasn't sampled
+	 */
+	public long getStartCpuNanos() {
+		return startCpuNanos;
+	}
+
+	/**
+	 * @return the bytes allocated by the thread at the start, or -1 if they weren't sampled
+	 */
+	public long getStartAllocatedBytes() {
+		return startAllocatedBytes;
+	}
+}
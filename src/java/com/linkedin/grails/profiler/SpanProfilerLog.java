@@ -0,0 +1,44 @@
+package com.linkedin.grails.profiler;
+
+/**
+ * A {@link ProfilerLog} that records each entry as a {@link Span} inside the
+ * current one, and each exit as the end of one. Entries and exits can be
+ * logged as pairs, with the exit ending the innermost open span for the
+ * same class and name, or a span can be started as a handle and ended with
+ * {@link Span#end()}. Callers that are given a plain {@link ProfilerLog}
+ * should check for this interface before using the call site methods.
+ */
+public interface SpanProfilerLog extends ProfilerLog {
+
+	/**
+	 * Logs an entry event for a call site that the caller has already
+	 * looked up, which saves looking it up on every call.
+	 * @param site The call site that the event relates to.
+	 */
+	void logEntry(CallSite site);
+
+	/**
+	 * Logs an exit event for a call site that the caller has already
+	 * looked up, which saves looking it up on every call.
+	 * @param site The call site that the event relates to.
+	 */
+	void logExit(CallSite site);
+
+	/**
+	 * Starts a span for a call site, logging an entry event, and returns it
+	 * as a handle. End it with {@link Span#end()}, which ends exactly that
+	 * span even if the same call site has been entered again inside it.
+	 * @param site The call site that the event relates to.
+	 * @return the span, or {@link Span#NONE} if profiling is off
+	 */
+	Span startSpan(CallSite site);
+
+	/**
+	 * Starts a span for the given class and name, like {@link #startSpan(CallSite)}.
+	 * @param clazz The class that the event relates to.
+	 * @param name A name identifying the element within the class that
+	 * the event relates to.
+	 * @return the span, or {@link Span#NONE} if profiling is off
+	 */
+	Span startSpan(Class<?> clazz, String name);
+}
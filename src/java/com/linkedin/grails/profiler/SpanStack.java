@@ -0,0 +1,101 @@
+package com.linkedin.grails.profiler;
+
+/**
+ * The stack of open spans of one thread. The span objects are kept when
+ * they are popped and reused by later pushes, so once the stack has grown
+ * as deep as a thread's requests go, it never allocates again. This class
+ * is not thread-safe.
+ */
+final class SpanStack {
+	private final DefaultProfilerLog log;
+	private Span[] spans = new Span[16];
+	private int size;
+	private long lastId;
+
+	/**
+	 * @param log the log that the spans are handles for, or <code>null</code>
+	 */
+	SpanStack(DefaultProfilerLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * Starts a span as a child of the current one.
+	 */
+	Span push(CallSite site, long nanos, long cpuNanos, long allocatedBytes) {
+		if (size == spans.length) {
+			Span[] newSpans = new Span[size * 2];
+			System.arraycopy(spans, 0, newSpans, 0, size);
+			spans = newSpans;
+		}
+
+		Span span = spans[size];
+		if (span == null) {
+			span = new Span(log);
+			spans[size] = span;
+		}
+
+		span.site = site;
+		span.parent = size == 0 ? null : spans[size - 1];
+		span.id = ++lastId;
+		span.depth = size;
+		span.startNanos = nanos;
+		span.startCpuNanos = cpuNanos;
+		span.startAllocatedBytes = allocatedBytes;
+		size++;
+		return span;
+	}
+
+	/**
+	 * Removes the current span.
+	 */
+	Span pop() {
+		return spans[--size];
+	}
+
+	/**
+	 * @return the current span, or <code>null</code> if there is none
+	 */
+	Span peek() {
+		return size == 0 ? null : spans[size - 1];
+	}
+
+	/**
+	 * Returns whether the given span is open on this stack.
+	 */
+	boolean contains(Span span) {
+		return span.depth < size && spans[span.depth] == span;
+	}
+
+	/**
+	 * Returns the depth of the innermost open span for the given call site.
+	 * @return the depth, or -1 if no open span is for the site
+	 */
+	int find(CallSite site) {
+		for (int i = size - 1; i >= 0; i--) {
+			if (spans[i].site == site) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the number of open spans
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Empties the stack and starts numbering spans from 1 again.
+	 */
+	void clear() {
+		for (int i = 0; i < size; i++) {
+			spans[i].parent = null;
+			spans[i].site = null;
+		}
+		size = 0;
+		lastId = 0;
+	}
+}
@@ -0,0 +1,112 @@
+package com.linkedin.grails.profiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The JDBC statements executed during a single request, added up per SQL
+ * fingerprint: how many times each was executed, how long that took and
+ * how many rows were read or updated. {@link ProfilingDataSource} keeps one
+ * of these per profiled web request. This class is not thread-safe.
+ */
+public class SqlRequestStats {
+	private final Map<String, long[]> stats = new LinkedHashMap<String, long[]>();
+	private final int repeatedQueryThreshold;
+
+	/**
+	 * Creates empty statistics.
+	 * @param repeatedQueryThreshold the number of executions of the same
+	 * statement at which it is flagged as a possible N+1 query
+	 */
+	public SqlRequestStats(int repeatedQueryThreshold) {
+		this.repeatedQueryThreshold = repeatedQueryThreshold;
+	}
+
+	/**
+	 * Records an execution of a statement.
+	 * @param fingerprint the statement's fingerprint
+	 * @param nanos the time taken
+	 * @return the number of times the statement has now been executed
+	 */
+	public long recordExecution(String fingerprint, long nanos) {
+		long[] entry = getEntry(fingerprint);
+		entry[0]++;
+		entry[1] += nanos;
+		return entry[0];
+	}
+
+	/**
+	 * Records the rows read or updated by an execution of a statement.
+	 * @param fingerprint the statement's fingerprint
+	 * @param rows the number of rows
+	 */
+	public void recordRows(String fingerprint, long rows) {
+		getEntry(fingerprint)[2] += rows;
+	}
+
+	private long[] getEntry(String fingerprint) {
+		long[] entry = stats.get(fingerprint);
+		if (entry == null) {
+			entry = new long[3];
+			stats.put(fingerprint, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * @return whether any statements have been recorded
+	 */
+	public boolean isEmpty() {
+		return stats.isEmpty();
+	}
+
+	/**
+	 * @param fingerprint the statement's fingerprint
+	 * @return whether the statement was executed often enough to be a possible N+1 query
+	 */
+	public boolean isNPlusOne(String fingerprint) {
+		long[] entry = stats.get(fingerprint);
+		return entry != null && entry[0] >= repeatedQueryThreshold;
+	}
+
+	/**
+	 * Appends one line per statement, slowest in total first, e.g.
+	 * <pre>
+	 * 12 x select * from book where author_id=?   (Time: 3.456 ms, Rows: 40) [N+1?]
+	 * </pre>
+	 * @param out the buffer to append to
+	 * @return the buffer
+	 */
+	public StringBuilder appendReport(StringBuilder out) {
+		List<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>(stats.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+			public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+				long diff = b.getValue()[1] - a.getValue()[1];
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+
+		for (Map.Entry<String, long[]> entry : entries) {
+			long[] values = entry.getValue();
+			out.append(values[0]).append(" x ").append(ProfilingDataSource.abbreviate(entry.getKey())).append("   (Time: ");
+			TimeUtil.appendNanos(out, values[1]).append(", Rows: ").append(values[2]).append(')');
+			if (values[0] >= repeatedQueryThreshold) {
+				out.append(" [N+1?]");
+			}
+			out.append('\n');
+		}
+		return out;
+	}
+
+	/**
+	 * @return the report
+	 * @see #appendReport(StringBuilder)
+	 */
+	public String getReport() {
+		return appendReport(new StringBuilder()).toString();
+	}
+}
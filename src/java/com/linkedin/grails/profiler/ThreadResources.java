@@ -0,0 +1,92 @@
+package com.linkedin.grails.profiler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads the CPU time and allocated bytes of the current thread from the
+ * platform's ThreadMXBean. Both methods return -1 if the JVM doesn't
+ * support the corresponding measurement. Allocated bytes are only
+ * available on HotSpot-derived JVMs.
+ */
+public class ThreadResources {
+	private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	private static final boolean cpuTimeSupported = initCpuTime();
+	private static final boolean allocatedBytesSupported = initAllocatedBytes();
+
+	/**
+	 * @return the CPU time used by the current thread in nanoseconds, or -1
+	 */
+	public static long currentCpuNanos() {
+		return cpuTimeSupported ? threadBean.getCurrentThreadCpuTime() : -1L;
+	}
+
+	/**
+	 * @return the number of bytes allocated by the current thread so far, or -1
+	 */
+	public static long currentAllocatedBytes() {
+		return allocatedBytesSupported ? AllocatedBytes.get() : -1L;
+	}
+
+	private static boolean initCpuTime() {
+		try {
+			if (!threadBean.isCurrentThreadCpuTimeSupported()) {
+				return false;
+			}
+			if (!threadBean.isThreadCpuTimeEnabled()) {
+				threadBean.setThreadCpuTimeEnabled(true);
+			}
+			return true;
+		}
+		catch (UnsupportedOperationException e) {
+			return false;
+		}
+		catch (SecurityException e) {
+			return false;
+		}
+	}
+
+	private static boolean initAllocatedBytes() {
+		try {
+			return AllocatedBytes.init();
+		}
+		catch (LinkageError e) {
+			// Not a HotSpot JVM, so com.sun.management isn't there.
+			return false;
+		}
+	}
+
+	/**
+	 * Isolates the references to com.sun.management so that this class
+	 * still loads on JVMs that don't have it.
+	 */
+	private static class AllocatedBytes {
+		static boolean init() {
+			if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+				return false;
+			}
+
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) threadBean;
+			try {
+				if (!sunBean.isThreadAllocatedMemorySupported()) {
+					return false;
+				}
+				if (!sunBean.isThreadAllocatedMemoryEnabled()) {
+					sunBean.setThreadAllocatedMemoryEnabled(true);
+				}
+				return true;
+			}
+			catch (UnsupportedOperationException e) {
+				return false;
+			}
+			catch (SecurityException e) {
+				return false;
+			}
+		}
+
+		static long get() {
+			return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(
+					Thread.currentThread().getId());
+		}
+	}
+}
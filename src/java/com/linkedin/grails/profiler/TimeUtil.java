@@ -0,0 +1,54 @@
+package com.linkedin.grails.profiler;
+
+public class TimeUtil {
+	/**
+	 * Formats a duration given in nanoseconds as milliseconds with
+	 * microsecond precision, e.g. "12.345 ms".
+	 */
+	public static String formatNanos(long nanos) {
+		StringBuilder buffer = new StringBuilder(16);
+		appendNanos(buffer, nanos);
+		return buffer.toString();
+	}
+
+	/**
+	 * Appends a duration given in nanoseconds to the buffer as milliseconds
+	 * with microsecond precision, e.g. "12.345 ms".
+	 */
+	public static StringBuilder appendNanos(StringBuilder buffer, long nanos) {
+		if (nanos < 0) {
+			buffer.append('-');
+			nanos = -nanos;
+		}
+
+		long micros = nanos / 1000L;
+		long fraction = micros % 1000L;
+		buffer.append(micros / 1000L).append('.');
+		if (fraction < 100) {
+			buffer.append('0');
+		}
+		if (fraction < 10) {
+			buffer.append('0');
+		}
+		return buffer.append(fraction).append(" ms");
+	}
+
+	/**
+	 * Appends the timings of a frame to the buffer in the form
+	 * "(Time: 1.234 ms, CPU: 0.800 ms, Allocated: 2048 bytes)". The CPU
+	 * time and allocated bytes are left out if they are negative, i.e.
+	 * they weren't sampled.
+	 */
+	public static StringBuilder appendFrameTimes(StringBuilder buffer, long nanos, long cpuNanos, long bytes) {
+		buffer.append("(Time: ");
+		appendNanos(buffer, nanos);
+		if (cpuNanos >= 0) {
+			buffer.append(", CPU: ");
+			appendNanos(buffer, cpuNanos);
+		}
+		if (bytes >= 0) {
+			buffer.append(", Allocated: ").append(bytes).append(" bytes");
+		}
+		return buffer.append(')');
+	}
+}
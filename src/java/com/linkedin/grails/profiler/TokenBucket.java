@@ -0,0 +1,66 @@
+package com.linkedin.grails.profiler;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket that hands out at most a fixed number of permits
+ * per second, with an allowance for short bursts. It is implemented as a
+ * "generic cell rate algorithm", so the whole state of the bucket is a
+ * single timestamp that is updated with compare-and-set: acquiring a permit
+ * never blocks and never allocates.
+ */
+public class TokenBucket {
+	private final long intervalNanos;
+	private final long toleranceNanos;
+
+	/** The time at which the bucket will next be full, give or take the burst. */
+	private final AtomicLong theoreticalArrival;
+
+	/**
+	 * Creates a bucket that hands out <code>permitsPerSecond</code> permits a
+	 * second on average, and at most <code>burst</code> permits at once.
+	 * @param permitsPerSecond the rate, which must be positive
+	 * @param burst the maximum burst size, which must be at least 1
+	 */
+	public TokenBucket(double permitsPerSecond, int burst) {
+		if (permitsPerSecond <= 0) {
+			throw new IllegalArgumentException("Rate must be positive, but was " + permitsPerSecond);
+		}
+		if (burst < 1) {
+			throw new IllegalArgumentException("Burst must be at least 1, but was " + burst);
+		}
+
+		intervalNanos = Math.max(1L, (long) (1000000000L / permitsPerSecond));
+		toleranceNanos = intervalNanos * (burst - 1);
+		theoreticalArrival = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Takes a permit if one is available.
+	 * @return <code>true</code> if a permit was taken
+	 */
+	public boolean tryAcquire() {
+		long now = System.nanoTime();
+		while (true) {
+			long arrival = theoreticalArrival.get();
+
+			// Too early: the bucket is empty.
+			if (arrival - now > toleranceNanos) {
+				return false;
+			}
+
+			// If the bucket has been idle, it doesn't accumulate more than the burst.
+			long next = (arrival - now < 0 ? now : arrival) + intervalNanos;
+			if (theoreticalArrival.compareAndSet(arrival, next)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return the average rate of this bucket in permits per second
+	 */
+	public double getPermitsPerSecond() {
+		return 1000000000.0 / intervalNanos;
+	}
+}
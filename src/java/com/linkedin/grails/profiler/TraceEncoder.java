@@ -0,0 +1,200 @@
+package com.linkedin.grails.profiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Encodes {@link RequestTrace}s in the profiler's compact binary trace
+ * format, which {@link TraceFileReader} decodes. A stream starts with a
+ * header (the magic bytes "GPTF" and a version byte) followed by records,
+ * each starting with a tag byte. A zero tag, or the end of the stream,
+ * marks the end of the records.
+ * <ul>
+ * <li>A site record (tag 1) adds a class name and element name to the
+ * stream's dictionary, under the next id. Each call site is only written
+ * once per stream; events refer to it by id.</li>
+ * <li>A trace record (tag 2) holds the label, recording time, number of
+ * events, flags and dropped frame count of a trace, followed by its events.
+ * Each event is the site id shifted left by one with the low bit set for
+ * entries, then the time since the previous event. If the resources flag is
+ * set, the change in thread CPU time and allocated bytes follow.</li>
+ * </ul>
+ * All integers are LEB128 varints, zig-zag encoded where they may be
+ * negative, and strings are a varint length followed by UTF-8 bytes.
+ * <p>
+ * An encoder keeps the dictionary of the stream it writes to, so it must
+ * be {@link #reset()} when starting a new stream. This class is not
+ * thread-safe.
+ */
+public class TraceEncoder {
+	static final byte[] MAGIC = { 'G', 'P', 'T', 'F' };
+	static final int VERSION = 1;
+
+	/** The size of the stream header in bytes. */
+	static final int HEADER_SIZE = MAGIC.length + 1;
+
+	static final int RECORD_END = 0;
+	static final int RECORD_SITE = 1;
+	static final int RECORD_TRACE = 2;
+
+	static final int FLAG_RESOURCES = 1;
+
+	private final Map<CallSite, Integer> siteIds = new HashMap<CallSite, Integer>();
+
+	/**
+	 * Writes the stream header.
+	 * @param out the stream
+	 */
+	public static void writeHeader(OutputStream out) throws IOException {
+		out.write(MAGIC);
+		out.write(VERSION);
+	}
+
+	/**
+	 * Forgets the dictionary, ready for a new stream.
+	 */
+	public void reset() {
+		siteIds.clear();
+	}
+
+	/**
+	 * @return the number of call sites in the dictionary
+	 */
+	int getSiteCount() {
+		return siteIds.size();
+	}
+
+	/**
+	 * Forgets the call sites added to the dictionary since it held the given
+	 * number, e.g. because the trace that added them was never written.
+	 * @param siteCount the number of call sites to keep
+	 */
+	void truncate(int siteCount) {
+		Iterator<Integer> ids = siteIds.values().iterator();
+		while (ids.hasNext()) {
+			if (ids.next() >= siteCount) {
+				ids.remove();
+			}
+		}
+	}
+
+	/**
+	 * Writes a trace record, preceded by site records for any call sites
+	 * that haven't been written to the stream yet.
+	 * @param trace the trace
+	 * @param recordedAt when the trace was recorded, in milliseconds since the epoch
+	 * @param out the stream
+	 */
+	public void encode(RequestTrace trace, long recordedAt, OutputStream out) throws IOException {
+		boolean resources = false;
+		for (int i = 0, n = trace.size(); i < n; i++) {
+			CallSite site = trace.getSite(i);
+			if (!siteIds.containsKey(site)) {
+				int id = siteIds.size();
+				siteIds.put(site, id);
+
+				out.write(RECORD_SITE);
+				writeVarLong(out, id);
+				writeString(out, site.getTargetClass().getName());
+				writeString(out, site.getName());
+			}
+			resources |= trace.getCpuTime(i) >= 0 || trace.getAllocatedBytes(i) >= 0;
+		}
+
+		out.write(RECORD_TRACE);
+		writeString(out, trace.getLabel());
+		writeVarLong(out, recordedAt);
+		writeVarLong(out, trace.size());
+		out.write(resources ? FLAG_RESOURCES : 0);
+		writeVarLong(out, trace.getDroppedFrames());
+
+		long previousTime = trace.size() == 0 ? 0 : trace.getTime(0);
+		long previousCpu = 0;
+		long previousBytes = 0;
+		for (int i = 0, n = trace.size(); i < n; i++) {
+			int id = siteIds.get(trace.getSite(i));
+			writeVarLong(out, ((long) id << 1) | (trace.isEntry(i) ? 1 : 0));
+			writeSignedVarLong(out, trace.getTime(i) - previousTime);
+			previousTime = trace.getTime(i);
+
+			if (resources) {
+				writeSignedVarLong(out, trace.getCpuTime(i) - previousCpu);
+				writeSignedVarLong(out, trace.getAllocatedBytes(i) - previousBytes);
+				previousCpu = trace.getCpuTime(i);
+				previousBytes = trace.getAllocatedBytes(i);
+			}
+		}
+	}
+
+	static void writeVarLong(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	static void writeSignedVarLong(OutputStream out, long value) throws IOException {
+		writeVarLong(out, (value << 1) ^ (value >> 63));
+	}
+
+	static void writeString(OutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		writeVarLong(out, bytes.length);
+		out.write(bytes);
+	}
+
+	static long readVarLong(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new IOException("Unexpected end of trace data");
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint in trace data");
+	}
+
+	static long readSignedVarLong(InputStream in) throws IOException {
+		long value = readVarLong(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static String readString(InputStream in) throws IOException {
+		int length = (int) readVarLong(in);
+		byte[] bytes = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int n = in.read(bytes, read, length - read);
+			if (n < 0) {
+				throw new IOException("Unexpected end of trace data");
+			}
+			read += n;
+		}
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * A byte array output stream that can copy its contents without
+	 * making an intermediate copy.
+	 */
+	static class Buffer extends ByteArrayOutputStream {
+		Buffer(int size) {
+			super(size);
+		}
+
+		void copyTo(ByteBuffer target) {
+			target.put(buf, 0, count);
+		}
+	}
+}
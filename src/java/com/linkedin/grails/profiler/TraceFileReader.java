@@ -0,0 +1,372 @@
+package com.linkedin.grails.profiler;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the binary trace format written by {@link TraceEncoder}, one
+ * trace at a time, so that files of any size can be read in constant
+ * memory. This class also works as a command line tool:
+ * <pre>
+ * java -cp ... com.linkedin.grails.profiler.TraceFileReader [-s | -f chrome|collapsed] file...
+ * </pre>
+ * which prints each trace as the same indented text that
+ * {@link RequestBufferedAppender} produces, followed by summary statistics
+ * for each call site. With <code>-s</code>, only the summary is printed.
+ * With <code>-f</code>, the traces are converted to the Chrome Trace Event
+ * format or to collapsed stacks for flame graphs instead.
+ */
+public class TraceFileReader {
+	/** The dictionary entry of the frame that wraps each branch. */
+	private static final String[] BRANCH = {
+			ProfilingContext.BRANCH_SITE.getTargetClass().getName(), ProfilingContext.BRANCH_NAME };
+
+	private final InputStream in;
+	private final List<String[]> sites = new ArrayList<String[]>();
+	private boolean finished;
+
+	/**
+	 * Creates a reader for the given stream and checks the header.
+	 * @param in the stream, which should be buffered
+	 * @throws IOException if the stream isn't in the trace format
+	 */
+	public TraceFileReader(InputStream in) throws IOException {
+		this.in = in;
+
+		for (byte b : TraceEncoder.MAGIC) {
+			if (in.read() != b) {
+				throw new IOException("Not a profiler trace file");
+			}
+		}
+		int version = in.read();
+		if (version != TraceEncoder.VERSION) {
+			throw new IOException("Unsupported profiler trace file version: " + version);
+		}
+	}
+
+	/**
+	 * Reads the next trace, passing its events to the visitor.
+	 * @param visitor the visitor
+	 * @return <code>false</code> if there are no more traces
+	 */
+	public boolean readTrace(TraceVisitor visitor) throws IOException {
+		while (!finished) {
+			int tag = in.read();
+			switch (tag) {
+			case TraceEncoder.RECORD_SITE:
+				int id = (int) TraceEncoder.readVarLong(in);
+				String className = TraceEncoder.readString(in);
+				String name = TraceEncoder.readString(in);
+				while (sites.size() <= id) {
+					sites.add(null);
+				}
+				boolean branch = className.equals(BRANCH[0]) && name.equals(BRANCH[1]);
+				sites.set(id, branch ? BRANCH : new String[] { className, name });
+				break;
+
+			case TraceEncoder.RECORD_TRACE:
+				readTraceRecord(visitor);
+				return true;
+
+			case TraceEncoder.RECORD_END:
+			case -1:
+				finished = true;
+				break;
+
+			default:
+				throw new IOException("Unknown record type in trace data: " + tag);
+			}
+		}
+		return false;
+	}
+
+	private void readTraceRecord(TraceVisitor visitor) throws IOException {
+		String label = TraceEncoder.readString(in);
+		long recordedAt = TraceEncoder.readVarLong(in);
+		long eventCount = TraceEncoder.readVarLong(in);
+		int flags = in.read();
+		int droppedFrames = (int) TraceEncoder.readVarLong(in);
+		boolean resources = (flags & TraceEncoder.FLAG_RESOURCES) != 0;
+
+		visitor.startTrace(label, recordedAt);
+
+		long time = 0;
+		long cpuTime = -1L;
+		long bytes = -1L;
+		if (resources) {
+			cpuTime = 0;
+			bytes = 0;
+		}
+		for (long i = 0; i < eventCount; i++) {
+			long siteAndKind = TraceEncoder.readVarLong(in);
+			time += TraceEncoder.readSignedVarLong(in);
+			if (resources) {
+				cpuTime += TraceEncoder.readSignedVarLong(in);
+				bytes += TraceEncoder.readSignedVarLong(in);
+			}
+
+			int id = (int) (siteAndKind >>> 1);
+			String[] site = id < sites.size() ? sites.get(id) : null;
+			if (site == null) {
+				throw new IOException("Undefined call site in trace data: " + id);
+			}
+
+			if (site == BRANCH) {
+				if ((siteAndKind & 1) != 0) {
+					visitor.startBranch(time, cpuTime, bytes);
+				}
+				else {
+					visitor.endBranch(time, cpuTime, bytes);
+				}
+			}
+			else if ((siteAndKind & 1) != 0) {
+				visitor.entry(site[0], site[1], time, cpuTime, bytes);
+			}
+			else {
+				visitor.exit(site[0], site[1], time, cpuTime, bytes);
+			}
+		}
+
+		visitor.endTrace(droppedFrames);
+	}
+
+	/**
+	 * Prints the traces in the given files, and/or a summary of them.
+	 */
+	public static void main(String[] args) throws IOException {
+		boolean summaryOnly = false;
+		String format = null;
+		List<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-s")) {
+				summaryOnly = true;
+			}
+			else if (args[i].equals("-f") && i + 1 < args.length) {
+				format = args[++i];
+			}
+			else {
+				files.add(args[i]);
+			}
+		}
+
+		if (files.isEmpty() || (format != null && !format.equals("chrome") && !format.equals("collapsed"))) {
+			System.err.println("Usage: TraceFileReader [-s | -f chrome|collapsed] file...");
+			System.exit(1);
+		}
+
+		if (format != null) {
+			export(files, format);
+			return;
+		}
+
+		Summary summary = new Summary();
+		StringBuilder buffer = new StringBuilder();
+		TraceFormatter formatter = new TraceFormatter(buffer, "  ");
+
+		for (String file : files) {
+			InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+			try {
+				TraceFileReader reader = new TraceFileReader(in);
+				while (reader.readTrace(summaryOnly ? summary : new TeeVisitor(formatter, summary))) {
+					if (!summaryOnly) {
+						System.out.print(buffer);
+						System.out.println();
+						buffer.setLength(0);
+					}
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		System.out.print(summary.getReport());
+	}
+
+	/**
+	 * Writes the traces in the given files to standard output in the given format.
+	 */
+	private static void export(List<String> files, String format) throws IOException {
+		Writer out = new OutputStreamWriter(System.out, "UTF-8");
+		ChromeTraceWriter chromeWriter = null;
+		CollapsedStackWriter collapsedWriter = null;
+		TraceVisitor visitor;
+		if (format.equals("chrome")) {
+			visitor = chromeWriter = new ChromeTraceWriter(out);
+		}
+		else {
+			visitor = collapsedWriter = new CollapsedStackWriter(out);
+		}
+
+		for (String file : files) {
+			InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+			try {
+				TraceFileReader reader = new TraceFileReader(in);
+				while (reader.readTrace(visitor)) {
+					// The writer does the work.
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		if (chromeWriter != null) {
+			chromeWriter.finish();
+		}
+		else {
+			collapsedWriter.finish();
+		}
+	}
+
+	/**
+	 * Passes each event to two visitors.
+	 */
+	private static class TeeVisitor implements TraceVisitor {
+		private final TraceVisitor first;
+		private final TraceVisitor second;
+
+		TeeVisitor(TraceVisitor first, TraceVisitor second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		public void startTrace(String label, long recordedAt) {
+			first.startTrace(label, recordedAt);
+			second.startTrace(label, recordedAt);
+		}
+
+		public void entry(String className, String name, long nanos, long cpuNanos, long allocatedBytes) {
+			first.entry(className, name, nanos, cpuNanos, allocatedBytes);
+			second.entry(className, name, nanos, cpuNanos, allocatedBytes);
+		}
+
+		public void exit(String className, String name, long nanos, long cpuNanos, long allocatedBytes) {
+			first.exit(className, name, nanos, cpuNanos, allocatedBytes);
+			second.exit(className, name, nanos, cpuNanos, allocatedBytes);
+		}
+
+		public void startBranch(long nanos, long cpuNanos, long allocatedBytes) {
+			first.startBranch(nanos, cpuNanos, allocatedBytes);
+			second.startBranch(nanos, cpuNanos, allocatedBytes);
+		}
+
+		public void endBranch(long nanos, long cpuNanos, long allocatedBytes) {
+			first.endBranch(nanos, cpuNanos, allocatedBytes);
+			second.endBranch(nanos, cpuNanos, allocatedBytes);
+		}
+
+		public void endTrace(int droppedFrames) {
+			first.endTrace(droppedFrames);
+			second.endTrace(droppedFrames);
+		}
+	}
+
+	/**
+	 * Collects the number of calls and the total and maximum time of each
+	 * call site, across all traces.
+	 */
+	static class Summary implements TraceVisitor {
+		private final Map<String, long[]> stats = new HashMap<String, long[]>();
+		private long[] starts = new long[32];
+		private int depth;
+		private long traceCount;
+		private long eventCount;
+		private long droppedFrames;
+		private long slowestTrace = -1L;
+		private String slowestLabel;
+		private String currentLabel;
+		private long traceStart;
+
+		public void startTrace(String label, long recordedAt) {
+			traceCount++;
+			depth = 0;
+			currentLabel = label;
+		}
+
+		public void entry(String className, String name, long nanos, long cpuNanos, long allocatedBytes) {
+			eventCount++;
+			if (depth == 0) {
+				traceStart = nanos;
+			}
+			if (depth == starts.length) {
+				long[] newStarts = new long[depth * 2];
+				System.arraycopy(starts, 0, newStarts, 0, depth);
+				starts = newStarts;
+			}
+			starts[depth++] = nanos;
+		}
+
+		public void exit(String className, String name, long nanos, long cpuNanos, long allocatedBytes) {
+			eventCount++;
+			if (depth == 0) {
+				return;
+			}
+
+			long duration = nanos - starts[--depth];
+			String identity = className + ":" + name;
+			long[] siteStats = stats.get(identity);
+			if (siteStats == null) {
+				siteStats = new long[3];
+				stats.put(identity, siteStats);
+			}
+			siteStats[0]++;
+			siteStats[1] += duration;
+			siteStats[2] = Math.max(siteStats[2], duration);
+
+			if (depth == 0 && nanos - traceStart > slowestTrace) {
+				slowestTrace = nanos - traceStart;
+				slowestLabel = currentLabel;
+			}
+		}
+
+		public void startBranch(long nanos, long cpuNanos, long allocatedBytes) {
+			// The frames in the branch are counted as they are.
+		}
+
+		public void endBranch(long nanos, long cpuNanos, long allocatedBytes) {
+		}
+
+		public void endTrace(int dropped) {
+			droppedFrames += dropped;
+		}
+
+		String getReport() {
+			StringBuilder report = new StringBuilder();
+			report.append("Traces: ").append(traceCount).append(", events: ").append(eventCount)
+					.append(", dropped frames: ").append(droppedFrames).append('\n');
+			if (slowestTrace >= 0) {
+				TimeUtil.appendNanos(report.append("Slowest: [").append(slowestLabel).append("] "), slowestTrace)
+						.append('\n');
+			}
+
+			List<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>(stats.entrySet());
+			Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+				public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+					long totalA = a.getValue()[1];
+					long totalB = b.getValue()[1];
+					return totalA < totalB ? 1 : (totalA == totalB ? 0 : -1);
+				}
+			});
+			for (Map.Entry<String, long[]> entry : entries) {
+				long[] siteStats = entry.getValue();
+				report.append(entry.getKey()).append("   (Count: ").append(siteStats[0]);
+				TimeUtil.appendNanos(report.append(", Total: "), siteStats[1]);
+				TimeUtil.appendNanos(report.append(", Mean: "), siteStats[1] / siteStats[0]);
+				TimeUtil.appendNanos(report.append(", Max: "), siteStats[2]);
+				report.append(")\n");
+			}
+			return report.toString();
+		}
+	}
+}
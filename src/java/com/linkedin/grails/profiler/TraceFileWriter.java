@@ -0,0 +1,387 @@
+package com.linkedin.grails.profiler;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Writes request traces to a rotating set of files in the binary trace
+ * format (see {@link TraceEncoder}), on a background thread. Request
+ * threads hand finished traces over through a bounded queue and never
+ * block: if the queue is full, a trace is dropped according to the
+ * overflow policy and counted, as with {@link AsyncLogWriter}.
+ * <p>
+ * Each file is preallocated and memory mapped, so writing a trace is
+ * little more than a memory copy. When a trace doesn't fit in the current
+ * file, a new file is started, and the oldest files, including any left in
+ * the directory by earlier runs, are deleted so that there are never more
+ * than <code>maxFiles</code>. A trace too big for even an empty file is
+ * dropped without touching the files. Unused space at the end of a file
+ * reads as an end marker. Files are only forced to disk on shutdown; until
+ * then, the operating system writes them back.
+ * <p>
+ * Each file has its own call site dictionary, so files can be read on
+ * their own by {@link TraceFileReader}. This class is thread-safe and
+ * should be a singleton.
+ */
+public class TraceFileWriter implements InitializingBean, DisposableBean {
+	private static final Logger log = LoggerFactory.getLogger(TraceFileWriter.class);
+
+	private File directory = new File(System.getProperty("java.io.tmpdir"), "profiler-traces");
+	private String prefix = "profiler";
+	private int fileSize = 16 * 1024 * 1024;
+	private int maxFiles = 10;
+	private int queueSize = 256;
+	private AsyncLogWriter.OverflowPolicy overflowPolicy = AsyncLogWriter.OverflowPolicy.DROP_NEWEST;
+
+	private BlockingQueue<QueuedTrace> queue;
+	private Thread writerThread;
+	private volatile boolean running;
+
+	/** The encoder for the current file, and one to size traces for an empty file. */
+	private final TraceEncoder encoder = new TraceEncoder();
+	private final TraceEncoder emptyFileEncoder = new TraceEncoder();
+	private final TraceEncoder.Buffer scratch = new TraceEncoder.Buffer(8192);
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd-HHmmss");
+	private final LinkedList<File> files = new LinkedList<File>();
+	private int sequence;
+	private boolean scanned;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+
+	private final AtomicLong submittedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong writtenCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+
+	/**
+	 * Sets the directory that trace files are written to. It is created if necessary.
+	 * @param directory the directory
+	 */
+	public void setDirectory(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Sets the prefix of the trace file names. Defaults to "profiler".
+	 * @param prefix the prefix
+	 */
+	public void setPrefix(String prefix) {
+		this.prefix = prefix;
+	}
+
+	/**
+	 * Sets the size of each trace file in bytes. Defaults to 16MB.
+	 * @param fileSize the size
+	 */
+	public void setFileSize(int fileSize) {
+		this.fileSize = fileSize;
+	}
+
+	/**
+	 * Sets the number of trace files to keep. Defaults to 10.
+	 * @param maxFiles the number of files
+	 */
+	public void setMaxFiles(int maxFiles) {
+		this.maxFiles = maxFiles;
+	}
+
+	/**
+	 * Sets the maximum number of traces waiting to be written. Defaults to
+	 * 256. This should not be called once the bean has been initialised.
+	 * @param queueSize the queue size
+	 */
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Sets what happens to a trace when the queue is full.
+	 * @param overflowPolicy the policy
+	 */
+	public void setOverflowPolicy(AsyncLogWriter.OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Creates the queue and starts the writer thread.
+	 */
+	public void afterPropertiesSet() {
+		queue = new ArrayBlockingQueue<QueuedTrace>(queueSize);
+		running = true;
+
+		writerThread = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "profiler-trace-file-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Stops the writer thread once it has written whatever is in the queue,
+	 * then flushes and closes the current file.
+	 */
+	public void destroy() throws InterruptedException {
+		running = false;
+		if (writerThread != null) {
+			writerThread.interrupt();
+			writerThread.join(5000);
+		}
+
+		synchronized (this) {
+			if (buffer != null) {
+				buffer.force();
+			}
+			closeFile();
+		}
+	}
+
+	/**
+	 * Queues a finished trace for writing. This never blocks. The trace
+	 * must not be changed afterwards.
+	 * @param trace the trace
+	 * @return <code>true</code> if the trace was queued, <code>false</code> if it was dropped
+	 */
+	public boolean submit(RequestTrace trace) {
+		submittedCount.incrementAndGet();
+		QueuedTrace queued = new QueuedTrace(trace, System.currentTimeMillis());
+		if (queue.offer(queued)) {
+			return true;
+		}
+
+		if (overflowPolicy == AsyncLogWriter.OverflowPolicy.DROP_OLDEST) {
+			// Make room by discarding the oldest trace. Another thread may
+			// take the space first, in which case we give up.
+			if (queue.poll() != null) {
+				droppedCount.incrementAndGet();
+			}
+			if (queue.offer(queued)) {
+				return true;
+			}
+		}
+
+		droppedCount.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * @return the number of traces submitted
+	 */
+	public long getSubmittedCount() {
+		return submittedCount.get();
+	}
+
+	/**
+	 * @return the number of traces dropped because the queue was full
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * @return the number of traces written
+	 */
+	public long getWrittenCount() {
+		return writtenCount.get();
+	}
+
+	/**
+	 * @return the number of traces that were too big for a file or couldn't be written
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * @return the number of traces waiting to be written
+	 */
+	public int getQueuedCount() {
+		return queue == null ? 0 : queue.size();
+	}
+
+	private void writeLoop() {
+		while (running || !queue.isEmpty()) {
+			try {
+				QueuedTrace queued = queue.poll(1, TimeUnit.SECONDS);
+				if (queued != null) {
+					write(queued.trace, queued.recordedAt);
+				}
+			}
+			catch (InterruptedException e) {
+				// Shutting down: loop round to write whatever is left.
+				running = false;
+			}
+			catch (RuntimeException e) {
+				failedCount.incrementAndGet();
+				log.error("Unable to write profiler trace", e);
+			}
+		}
+	}
+
+	/**
+	 * Writes a trace to the current file, starting a new file if necessary.
+	 * This is called on the writer thread. Errors are logged rather than
+	 * thrown.
+	 * @param trace the trace
+	 * @param recordedAt when the trace was recorded, in milliseconds since the epoch
+	 * @return <code>true</code> if the trace was written
+	 */
+	synchronized boolean write(RequestTrace trace, long recordedAt) {
+		try {
+			if (buffer == null) {
+				openFile(recordedAt);
+			}
+
+			int siteCount = encoder.getSiteCount();
+			scratch.reset();
+			encoder.encode(trace, recordedAt, scratch);
+
+			// Leave room for the end marker.
+			if (scratch.size() >= buffer.remaining()) {
+				// The sites the trace added to the dictionary weren't written.
+				encoder.truncate(siteCount);
+
+				// Only start a new file if the current one has something in
+				// it and the trace would fit in an empty one. Otherwise the
+				// trace can never be written, and rotating would just throw
+				// away the oldest file.
+				boolean empty = buffer.position() == TraceEncoder.HEADER_SIZE;
+				if (!empty) {
+					scratch.reset();
+					emptyFileEncoder.reset();
+					emptyFileEncoder.encode(trace, recordedAt, scratch);
+				}
+				if (empty || scratch.size() >= fileSize - TraceEncoder.HEADER_SIZE) {
+					failedCount.incrementAndGet();
+					log.warn("Profiler trace for [" + trace.getLabel() + "] is too big for a trace file (" +
+							scratch.size() + " bytes)");
+					return false;
+				}
+
+				openFile(recordedAt);
+				encoder.encode(trace, recordedAt, scratch);
+			}
+
+			scratch.copyTo(buffer);
+			writtenCount.incrementAndGet();
+			return true;
+		}
+		catch (IOException e) {
+			failedCount.incrementAndGet();
+			log.error("Unable to write profiler trace", e);
+			closeFile();
+			return false;
+		}
+	}
+
+	private void openFile(long now) throws IOException {
+		closeFile();
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create directory " + directory);
+		}
+		if (!scanned) {
+			findExistingFiles();
+			scanned = true;
+		}
+
+		File newFile = new File(directory, prefix + "-" + dateFormat.format(new Date(now)) + "-" +
+				(sequence++) + ".gpt");
+		file = new RandomAccessFile(newFile, "rw");
+		file.setLength(fileSize);
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+
+		// The scratch buffer may still hold the trace that didn't fit.
+		scratch.reset();
+		TraceEncoder.writeHeader(scratch);
+		scratch.copyTo(buffer);
+		scratch.reset();
+		encoder.reset();
+
+		// Rotate out the oldest files. An earlier run may have used the
+		// same name, in which case the file has just been overwritten.
+		files.remove(newFile);
+		files.add(newFile);
+		while (files.size() > maxFiles) {
+			File oldFile = files.removeFirst();
+			if (!oldFile.delete()) {
+				log.warn("Unable to delete old profiler trace file " + oldFile);
+			}
+		}
+	}
+
+	/**
+	 * Adds the files left by earlier runs to the files to rotate out,
+	 * oldest first, so that they don't stay on disk for ever.
+	 */
+	private void findExistingFiles() {
+		File[] existing = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				String name = file.getName();
+				return file.isFile() && name.startsWith(prefix + "-") && name.endsWith(".gpt");
+			}
+		});
+		if (existing == null) {
+			return;
+		}
+
+		Arrays.sort(existing, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : a.getName().compareTo(b.getName()));
+			}
+		});
+		files.addAll(Arrays.asList(existing));
+	}
+
+	/**
+	 * Closes the current file. The mapped pages are left to the operating
+	 * system to write back rather than forced to disk, which would hold up
+	 * the traces queued behind.
+	 */
+	private void closeFile() {
+		buffer = null;
+		if (file != null) {
+			try {
+				file.close();
+			}
+			catch (IOException e) {
+				log.warn("Unable to close profiler trace file", e);
+			}
+			file = null;
+		}
+	}
+
+	/**
+	 * A trace waiting to be written, with the time it was submitted.
+	 */
+	private static class QueuedTrace {
+		final RequestTrace trace;
+		final long recordedAt;
+
+		QueuedTrace(RequestTrace trace, long recordedAt) {
+			this.trace = trace;
+			this.recordedAt = recordedAt;
+		}
+	}
+}
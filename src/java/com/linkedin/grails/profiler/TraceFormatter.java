@@ -0,0 +1,162 @@
+package com.linkedin.grails.profiler;
+
+/**
+ * Renders profiling events as the indented text that {@link LoggingAppender}
+ * and {@link RequestBufferedAppender} produce, e.g.
+ * <pre>
+ * Entering [uri: /book/list] com.linkedin.grails.profiler.ProfilerFilter:Web Request
+ *   Entering [uri: /book/list] BookService:list
+ *   Exiting [uri: /book/list] BookService:list   (Time: 1.234 ms)
+ * Exiting [uri: /book/list] com.linkedin.grails.profiler.ProfilerFilter:Web Request   (Time: 5.678 ms)
+ * </pre>
+ * It is an appender in its own right, so a {@link RequestTrace} can be
+ * formatted by replaying it into an instance, and it is also a trace
+ * visitor, so it can format traces read back from files. This class is not
+ * thread-safe.
+ */
+public class TraceFormatter implements NanoProfilerAppender, TraceVisitor {
+	private final StringBuilder out;
+	private final String padding;
+
+	private long[] starts = new long[48];
+	private int depth;
+
+	/** The label of the trace being visited. */
+	private String label;
+
+	/**
+	 * Creates a formatter that appends to the given buffer, indenting
+	 * nested frames with the given padding.
+	 * @param out the buffer
+	 * @param padding the padding, e.g. two spaces
+	 */
+	public TraceFormatter(StringBuilder out, String padding) {
+		this.out = out;
+		this.padding = padding;
+	}
+
+	/**
+	 * Formats a complete trace.
+	 * @param trace the trace
+	 * @param padding the padding used to indent nested frames
+	 * @return the text
+	 */
+	public static String format(RequestTrace trace, String padding) {
+		StringBuilder buffer = new StringBuilder(trace.size() * 80);
+		TraceFormatter formatter = new TraceFormatter(buffer, padding);
+		trace.replay(formatter);
+		formatter.endTrace(trace.getDroppedFrames());
+		return buffer.toString();
+	}
+
+	/**
+	 * Same as the nanosecond version, but with the entry time in milliseconds.
+	 */
+	public void logEntry(String label, Class<?> clazz, String name, long entryTime) {
+		logEntry(label, CallSiteRegistry.intern(clazz, name), entryTime * 1000000L, -1L, -1L);
+	}
+
+	/**
+	 * Same as the nanosecond version, but with the exit time in milliseconds.
+	 */
+	public void logExit(String label, Class<?> clazz, String name, long exitTime) {
+		logExit(label, CallSiteRegistry.intern(clazz, name), exitTime * 1000000L, -1L, -1L);
+	}
+
+	/**
+	 * Appends an "Entering" line and increases the indent.
+	 */
+	public void logEntry(String label, CallSite site, long entryNanos, long cpuNanos, long allocatedBytes) {
+		appendEntry(label, site.getIdentity(), entryNanos, cpuNanos, allocatedBytes);
+	}
+
+	/**
+	 * Decreases the indent and appends an "Exiting" line, including the time
+	 * taken and, if sampled, the CPU time and allocated bytes.
+	 */
+	public void logExit(String label, CallSite site, long exitNanos, long cpuNanos, long allocatedBytes) {
+		appendExit(label, site.getIdentity(), exitNanos, cpuNanos, allocatedBytes);
+	}
+
+	/**
+	 * Remembers the label for the events that follow.
+	 */
+	public void startTrace(String label, long recordedAt) {
+		this.label = label;
+		depth = 0;
+	}
+
+	/**
+	 * Appends an "Entering" line and increases the indent.
+	 */
+	public void entry(String className, String name, long nanos, long cpuNanos, long allocatedBytes) {
+		appendEntry(label, className + ":" + name, nanos, cpuNanos, allocatedBytes);
+	}
+
+	/**
+	 * Decreases the indent and appends an "Exiting" line.
+	 */
+	public void exit(String className, String name, long nanos, long cpuNanos, long allocatedBytes) {
+		appendExit(label, className + ":" + name, nanos, cpuNanos, allocatedBytes);
+	}
+
+	/**
+	 * Appends an "Entering" line for the branch, as when formatting the
+	 * frame that wraps it, and increases the indent.
+	 */
+	public void startBranch(long nanos, long cpuNanos, long allocatedBytes) {
+		appendEntry(label, ProfilingContext.BRANCH_SITE.getIdentity(), nanos, cpuNanos, allocatedBytes);
+	}
+
+	/**
+	 * Decreases the indent and appends an "Exiting" line for the branch.
+	 */
+	public void endBranch(long nanos, long cpuNanos, long allocatedBytes) {
+		appendExit(label, ProfilingContext.BRANCH_SITE.getIdentity(), nanos, cpuNanos, allocatedBytes);
+	}
+
+	/**
+	 * Notes any frames that were dropped from the trace.
+	 */
+	public void endTrace(int droppedFrames) {
+		if (droppedFrames > 0) {
+			out.append('(').append(droppedFrames).append(" frames dropped)\n");
+		}
+	}
+
+	private void appendEntry(String label, String identity, long entryNanos, long cpuNanos, long allocatedBytes) {
+		if (starts.length < depth + 3) {
+			long[] newStarts = new long[starts.length * 2];
+			System.arraycopy(starts, 0, newStarts, 0, depth);
+			starts = newStarts;
+		}
+		appendIndent();
+		out.append("Entering [").append(label).append("] ").append(identity).append('\n');
+
+		starts[depth++] = entryNanos;
+		starts[depth++] = cpuNanos;
+		starts[depth++] = allocatedBytes;
+	}
+
+	private void appendExit(String label, String identity, long exitNanos, long cpuNanos, long allocatedBytes) {
+		long totalTime = -1L;
+		long cpuTime = -1L;
+		long bytes = -1L;
+		if (depth >= 3) {
+			depth -= 3;
+			totalTime = exitNanos - starts[depth];
+			cpuTime = cpuNanos >= 0 && starts[depth + 1] >= 0 ? cpuNanos - starts[depth + 1] : -1L;
+			bytes = allocatedBytes >= 0 && starts[depth + 2] >= 0 ? allocatedBytes - starts[depth + 2] : -1L;
+		}
+
+		appendIndent();
+		out.append("Exiting [").append(label).append("] ").append(identity).append("   ");
+		TimeUtil.appendFrameTimes(out, totalTime, cpuTime, bytes).append('\n');
+	}
+
+	private void appendIndent() {
+		for (int i = 0, n = depth / 3; i < n; i++) {
+			out.append(padding);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package com.linkedin.grails.profiler;
+
+/**
+ * Receives the events of recorded traces, identifying call sites by class
+ * and element name rather than by {@link CallSite}, so that traces can be
+ * processed where the profiled classes aren't available, e.g. when reading
+ * trace files offline with {@link TraceFileReader}. Times are relative to
+ * the start of the trace; CPU times and allocated bytes are -1 if they
+ * weren't sampled.
+ * <p>
+ * Work that the request handed off to other threads is visited as
+ * branches, between {@link #startBranch} and {@link #endBranch}. A branch's
+ * events ran on a thread of their own, at the same time as the frames
+ * around them and as other branches, so they overlap those frames' children
+ * rather than being part of them.
+ */
+public interface TraceVisitor {
+	/**
+	 * Called at the start of each trace.
+	 * @param label the label of the profiled request
+	 * @param recordedAt when the trace was recorded, in milliseconds since the epoch
+	 */
+	void startTrace(String label, long recordedAt);
+
+	/**
+	 * Called for each entry event.
+	 * @param className the name of the class hosting the element
+	 * @param name the name of the element (method, action, ...)
+	 * @param nanos the time of the event in nanoseconds since the start of the trace
+	 * @param cpuNanos the thread CPU time at the event, or -1
+	 * @param allocatedBytes the bytes allocated by the thread at the event, or -1
+	 */
+	void entry(String className, String name, long nanos, long cpuNanos, long allocatedBytes);
+
+	/**
+	 * Called for each exit event.
+	 * @param className the name of the class hosting the element
+	 * @param name the name of the element (method, action, ...)
+	 * @param nanos the time of the event in nanoseconds since the start of the trace
+	 * @param cpuNanos the thread CPU time at the event, or -1
+	 * @param allocatedBytes the bytes allocated by the thread at the event, or -1
+	 */
+	void exit(String className, String name, long nanos, long cpuNanos, long allocatedBytes);
+
+	/**
+	 * Called at the start of a branch, before its events. Branches are
+	 * visited inside the frame that was open when they were collected,
+	 * usually the request's outermost frame.
+	 * @param nanos the time of the branch's first event
+	 * @param cpuNanos the branch thread's CPU time at that event, or -1
+	 * @param allocatedBytes the bytes allocated by the branch thread at that event, or -1
+	 */
+	void startBranch(long nanos, long cpuNanos, long allocatedBytes);
+
+	/**
+	 * Called at the end of a branch, after its events.
+	 * @param nanos the time of the branch's last event
+	 * @param cpuNanos the branch thread's CPU time at that event, or -1
+	 * @param allocatedBytes the bytes allocated by the branch thread at that event, or -1
+	 */
+	void endBranch(long nanos, long cpuNanos, long allocatedBytes);
+
+	/**
+	 * Called at the end of each trace.
+	 * @param droppedFrames the number of frames that didn't fit in the trace
+	 */
+	void endTrace(int droppedFrames);
+}
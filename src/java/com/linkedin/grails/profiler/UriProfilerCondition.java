@@ -0,0 +1,159 @@
+package com.linkedin.grails.profiler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A profiler condition that profiles requests whose URI, without the
+ * context path, matches one of a set of patterns. A pattern is a path in
+ * which <code>*</code> matches any characters except <code>/</code> and
+ * <code>**</code> matches any characters at all, e.g. "/api/orders/**",
+ * "/book/show/*" or "/**&#47;*.json". Anything else must match exactly.
+ * <p>
+ * The patterns are compiled when they are set, and matching them doesn't
+ * allocate anything. They may be changed at any time.
+ */
+public class UriProfilerCondition extends AbstractRequestProfilerCondition {
+	private volatile List<String> patternStrings = Collections.emptyList();
+	private volatile UriPattern[] patterns = new UriPattern[0];
+
+	/**
+	 * @return the patterns
+	 */
+	public List<String> getPatterns() {
+		return patternStrings;
+	}
+
+	/**
+	 * Sets the patterns that the request URI is matched against.
+	 * @param patterns the patterns
+	 */
+	public void setPatterns(Collection<String> patterns) {
+		List<String> strings = new ArrayList<String>(patterns);
+		UriPattern[] compiled = new UriPattern[strings.size()];
+		for (int i = 0; i < compiled.length; i++) {
+			compiled[i] = new UriPattern(strings.get(i));
+		}
+
+		this.patterns = compiled;
+		patternStrings = Collections.unmodifiableList(strings);
+	}
+
+	/**
+	 * Returns <code>true</code> if the request URI matches any of the patterns.
+	 */
+	public boolean doProfiling(HttpServletRequest request) {
+		String uri = request.getRequestURI();
+		String contextPath = request.getContextPath();
+
+		// Match from the end of the context path rather than taking a substring.
+		int start = contextPath != null && uri.startsWith(contextPath) ? contextPath.length() : 0;
+		for (UriPattern pattern : patterns) {
+			if (pattern.matches(uri, start)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A compiled pattern: a sequence of literal parts and wildcards.
+	 */
+	static final class UriPattern {
+		private static final int LITERAL = 0;
+		private static final int STAR = 1;
+		private static final int DOUBLE_STAR = 2;
+
+		private final int[] kinds;
+		private final String[] literals;
+
+		UriPattern(String pattern) {
+			List<Integer> kindList = new ArrayList<Integer>();
+			List<String> literalList = new ArrayList<String>();
+
+			int i = 0;
+			while (i < pattern.length()) {
+				if (pattern.startsWith("**", i)) {
+					// A run of stars is one wildcard.
+					while (i < pattern.length() && pattern.charAt(i) == '*') {
+						i++;
+					}
+					kindList.add(DOUBLE_STAR);
+					literalList.add(null);
+				}
+				else if (pattern.charAt(i) == '*') {
+					i++;
+					kindList.add(STAR);
+					literalList.add(null);
+				}
+				else {
+					int end = pattern.indexOf('*', i);
+					if (end < 0) {
+						end = pattern.length();
+					}
+					kindList.add(LITERAL);
+					literalList.add(pattern.substring(i, end));
+					i = end;
+				}
+			}
+
+			kinds = new int[kindList.size()];
+			for (int k = 0; k < kinds.length; k++) {
+				kinds[k] = kindList.get(k);
+			}
+			literals = literalList.toArray(new String[literalList.size()]);
+		}
+
+		/**
+		 * @param uri the URI
+		 * @param start where the path to match starts in the URI
+		 * @return <code>true</code> if the rest of the URI matches the pattern
+		 */
+		boolean matches(String uri, int start) {
+			return matches(uri, start, 0);
+		}
+
+		private boolean matches(String uri, int pos, int part) {
+			int length = uri.length();
+			for (; part < kinds.length; part++) {
+				switch (kinds[part]) {
+				case LITERAL:
+					String literal = literals[part];
+					if (!uri.startsWith(literal, pos)) {
+						return false;
+					}
+					pos += literal.length();
+					break;
+
+				case STAR:
+					// Try each possible end within the current path segment.
+					for (int end = pos; ; end++) {
+						if (matches(uri, end, part + 1)) {
+							return true;
+						}
+						if (end == length || uri.charAt(end) == '/') {
+							return false;
+						}
+					}
+
+				default:
+					// A trailing "**" matches whatever is left.
+					if (part == kinds.length - 1) {
+						return true;
+					}
+					for (int end = pos; end <= length; end++) {
+						if (matches(uri, end, part + 1)) {
+							return true;
+						}
+					}
+					return false;
+				}
+			}
+			return pos == length;
+		}
+	}
+}
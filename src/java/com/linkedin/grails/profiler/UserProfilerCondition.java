@@ -0,0 +1,41 @@
+package com.linkedin.grails.profiler;
+
+import java.util.Collection;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A profiler condition that profiles the requests of particular users,
+ * as given by {@link HttpServletRequest#getRemoteUser()}. That means the
+ * user must be known by the time {@link ProfilerFilter} runs: either the
+ * container authenticates users, or the security filters are mapped before
+ * the profiler filter. The user names may be changed at any time.
+ */
+public class UserProfilerCondition extends AbstractRequestProfilerCondition {
+	private volatile Set<String> userNames;
+
+	/**
+	 * @return the names of the users whose requests are profiled
+	 */
+	public Set<String> getUserNames() {
+		return userNames;
+	}
+
+	/**
+	 * Sets the names of the users whose requests are profiled.
+	 * @param userNames the user names
+	 */
+	public void setUserNames(Collection<String> userNames) {
+		this.userNames = copyValues(userNames);
+	}
+
+	/**
+	 * Returns <code>true</code> if the request was made by one of the users.
+	 */
+	public boolean doProfiling(HttpServletRequest request) {
+		String user = request.getRemoteUser();
+		Set<String> names = userNames;
+		return user != null && names != null && names.contains(user);
+	}
+}
@@ -0,0 +1,102 @@
+package com.linkedin.grails.profiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+/**
+ * The templates and layouts rendered during a single web request, with the
+ * number of times each was rendered and the total time taken. The
+ * statistics are kept in a request attribute. This class is not thread-safe.
+ */
+public class ViewRequestStats {
+	/** Attribute name for the request's view statistics. */
+	private static final String STATS_ATTR = "com.linkedin.grails.profiler.ViewRequestStats";
+
+	private final Map<String, long[]> stats = new LinkedHashMap<String, long[]>();
+
+	/**
+	 * Adds a rendering of a template or layout to the current request's
+	 * statistics. Does nothing outside of a web request.
+	 * @param view the template or layout, e.g. "template: /book/row"
+	 * @param nanos the time taken
+	 */
+	public static void record(String view, long nanos) {
+		RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+		if (attributes == null) {
+			return;
+		}
+
+		ViewRequestStats stats = (ViewRequestStats) attributes.getAttribute(STATS_ATTR, RequestAttributes.SCOPE_REQUEST);
+		if (stats == null) {
+			stats = new ViewRequestStats();
+			attributes.setAttribute(STATS_ATTR, stats, RequestAttributes.SCOPE_REQUEST);
+		}
+
+		long[] entry = stats.stats.get(view);
+		if (entry == null) {
+			entry = new long[2];
+			stats.stats.put(view, entry);
+		}
+		entry[0]++;
+		entry[1] += nanos;
+	}
+
+	/**
+	 * Returns the view statistics of the current web request.
+	 * @return the statistics, or <code>null</code> if this is called outside
+	 * of a web request or nothing has been rendered
+	 */
+	public static ViewRequestStats getRequestStats() {
+		RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+		return attributes == null ? null :
+				(ViewRequestStats) attributes.getAttribute(STATS_ATTR, RequestAttributes.SCOPE_REQUEST);
+	}
+
+	/**
+	 * @return whether any templates or layouts have been recorded
+	 */
+	public boolean isEmpty() {
+		return stats.isEmpty();
+	}
+
+	/**
+	 * Appends one line per template or layout, slowest in total first, e.g.
+	 * <pre>
+	 * 25 x template: /book/row   (Time: 12.345 ms)
+	 * </pre>
+	 * Nested templates are included in the times of the templates that
+	 * render them.
+	 * @param out the buffer to append to
+	 * @return the buffer
+	 */
+	public StringBuilder appendReport(StringBuilder out) {
+		List<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>(stats.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+			public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+				long diff = b.getValue()[1] - a.getValue()[1];
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+
+		for (Map.Entry<String, long[]> entry : entries) {
+			out.append(entry.getValue()[0]).append(" x ").append(entry.getKey()).append("   (Time: ");
+			TimeUtil.appendNanos(out, entry.getValue()[1]).append(")\n");
+		}
+		return out;
+	}
+
+	/**
+	 * @return the report
+	 * @see #appendReport(StringBuilder)
+	 */
+	public String getReport() {
+		return appendReport(new StringBuilder()).toString();
+	}
+}
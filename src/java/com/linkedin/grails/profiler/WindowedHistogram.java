@@ -0,0 +1,210 @@
+package com.linkedin.grails.profiler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations over sliding time windows of up to an hour, for
+ * showing recent latency percentiles. Durations are counted in time slices:
+ * 30 slices of 10 seconds for windows of up to five minutes, and 12 slices
+ * of five minutes for longer windows. A window is made up of the slices that
+ * cover it, so it slides in steps of one slice. The slices are reused in
+ * rotation, and each one is only allocated once something is recorded in it.
+ * <p>
+ * Values are counted in {@link LogLinearBuckets}, from about 8
+ * microseconds to about a minute, so percentiles are accurate to
+ * within 12.5%. Recording is lock-free and allocates nothing, except when a
+ * slice is used for the first time. Counts recorded while a slice is being
+ * recycled for a new period may be lost. This class is thread-safe.
+ */
+public class WindowedHistogram {
+	/** Buckets for durations from 2^13 ns up to 2^36 ns. */
+	private static final LogLinearBuckets BUCKETS = new LogLinearBuckets(13, 36);
+	private static final int BUCKET_COUNT = BUCKETS.size();
+
+	private static final long FINE_SLICE_NANOS = 10L * 1000000000L;
+	private static final long COARSE_SLICE_NANOS = 300L * 1000000000L;
+
+	/** The clock that slice periods are counted from. */
+	private static final long EPOCH = System.nanoTime();
+
+	private final Slice[] fineSlices = new Slice[30];
+	private final Slice[] coarseSlices = new Slice[12];
+
+	/**
+	 * Creates an empty histogram.
+	 */
+	public WindowedHistogram() {
+		for (int i = 0; i < fineSlices.length; i++) {
+			fineSlices[i] = new Slice();
+		}
+		for (int i = 0; i < coarseSlices.length; i++) {
+			coarseSlices[i] = new Slice();
+		}
+	}
+
+	/**
+	 * Records a duration.
+	 * @param nanos the duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		int bucket = BUCKETS.indexOf(nanos);
+		long now = System.nanoTime() - EPOCH;
+		record(fineSlices, now / FINE_SLICE_NANOS, bucket, nanos);
+		record(coarseSlices, now / COARSE_SLICE_NANOS, bucket, nanos);
+	}
+
+	private static void record(Slice[] slices, long period, int bucket, long nanos) {
+		Slice slice = slices[(int) (period % slices.length)];
+		if (slice.period != period) {
+			slice.recycle(period);
+		}
+		slice.record(bucket, nanos);
+	}
+
+	/**
+	 * Returns the statistics of the durations recorded over the last given
+	 * number of seconds, rounded up to whole slices.
+	 * @param seconds the length of the window, up to an hour
+	 * @return the statistics
+	 */
+	public Snapshot getSnapshot(int seconds) {
+		long windowNanos = seconds * 1000000000L;
+		Slice[] slices = windowNanos <= fineSlices.length * FINE_SLICE_NANOS ? fineSlices : coarseSlices;
+		long sliceNanos = slices == fineSlices ? FINE_SLICE_NANOS : COARSE_SLICE_NANOS;
+		long newest = (System.nanoTime() - EPOCH) / sliceNanos;
+		long oldest = newest - Math.min(slices.length, (windowNanos + sliceNanos - 1) / sliceNanos) + 1;
+
+		long[] counts = new long[BUCKET_COUNT];
+		long count = 0;
+		long total = 0;
+		long max = 0;
+		for (Slice slice : slices) {
+			long period = slice.period;
+			if (period >= oldest && period <= newest) {
+				count += slice.addBucketsTo(counts);
+				total += slice.total.get();
+				max = Math.max(max, slice.max.get());
+			}
+		}
+		return new Snapshot(counts, count, total, max);
+	}
+
+	/**
+	 * The durations recorded during one period of time.
+	 */
+	private static class Slice {
+		volatile long period = -1;
+		volatile AtomicLongArray buckets;
+		final AtomicLong total = new AtomicLong();
+		final AtomicLong max = new AtomicLong();
+
+		void record(int bucket, long nanos) {
+			AtomicLongArray counts = buckets;
+			if (counts == null) {
+				counts = allocate();
+			}
+			counts.incrementAndGet(bucket);
+			total.addAndGet(nanos);
+
+			long currentMax = max.get();
+			while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+				currentMax = max.get();
+			}
+		}
+
+		/**
+		 * Clears the slice for a new period, unless another thread has
+		 * already done so.
+		 */
+		synchronized void recycle(long newPeriod) {
+			if (period == newPeriod) {
+				return;
+			}
+
+			AtomicLongArray counts = buckets;
+			if (counts != null) {
+				for (int i = 0; i < counts.length(); i++) {
+					counts.set(i, 0);
+				}
+			}
+			total.set(0);
+			max.set(0);
+			period = newPeriod;
+		}
+
+		private synchronized AtomicLongArray allocate() {
+			if (buckets == null) {
+				buckets = new AtomicLongArray(BUCKET_COUNT);
+			}
+			return buckets;
+		}
+
+		long addBucketsTo(long[] target) {
+			AtomicLongArray counts = buckets;
+			if (counts == null) {
+				return 0;
+			}
+
+			long count = 0;
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				long value = counts.get(i);
+				target[i] += value;
+				count += value;
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * The statistics of the durations recorded over a window of time.
+	 * Instances are immutable.
+	 */
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long total;
+		private final long max;
+
+		Snapshot(long[] counts, long count, long total, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.total = total;
+			this.max = max;
+		}
+
+		/**
+		 * @return the number of durations recorded
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the mean duration in nanoseconds, or 0 if nothing was recorded
+		 */
+		public long getMean() {
+			return count == 0 ? 0 : total / count;
+		}
+
+		/**
+		 * @return the longest duration in nanoseconds
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Returns an upper bound for the given percentile of the durations.
+		 * @param percentile the percentile, between 0 and 100
+		 * @return the duration in nanoseconds, or 0 if nothing was recorded
+		 */
+		public long getValueAtPercentile(double percentile) {
+			return BUCKETS.valueAtPercentile(counts, count, percentile, max);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.linkedin.grails.profiler
+
+/**
+ * Round trips of the binary trace format, through {@link TraceEncoder} and
+ * {@link TraceFileWriter} to {@link TraceFileReader}.
+ */
+class TraceFileTests extends GroovyTestCase {
+	private File directory
+
+	protected void setUp() {
+		super.setUp()
+		directory = File.createTempFile("profiler-traces", "")
+		directory.delete()
+		directory.mkdirs()
+	}
+
+	protected void tearDown() {
+		directory.deleteDir()
+		super.tearDown()
+	}
+
+	void testEncodedTraceReadsBackUnchanged() {
+		// Large and negative resource deltas need several varint bytes
+		// and zig-zag encoding; the nested site comes back as the same id.
+		RequestTrace trace = new RequestTrace("uri: /book/list", 100)
+		CallSite action = CallSiteRegistry.intern(TraceFileTests, "list")
+		CallSite query = CallSiteRegistry.intern(TraceFileTests, "query")
+		trace.addEntry(action, 1000000000L, 5000000L, 1L << 40)
+		trace.addEntry(query, 1000000100L, 4000000L, 1024L)
+		trace.addExit(query, 1000300000L, 9000000L, 0L)
+		trace.addEntry(query, 1000300001L, 9000000L, 0L)
+		trace.addExit(query, 1000300002L, 9000000L, 0L)
+		trace.addExit(action, 5000000000L, 123456789L, 1L << 50)
+
+		def out = new TraceEncoder.Buffer(256)
+		TraceEncoder.writeHeader(out)
+		def encoder = new TraceEncoder()
+		encoder.encode(trace, 1234567890123L, out)
+		encoder.encode(trace, 1234567890124L, out)
+
+		// The end marker stops the reader before whatever follows it.
+		out.write(TraceEncoder.RECORD_END)
+		out.write([ 99, 99, 99 ] as byte[])
+
+		def reader = new TraceFileReader(new ByteArrayInputStream(out.toByteArray()))
+		def read = new RecordingVisitor()
+		assertTrue reader.readTrace(read)
+		assertTrue reader.readTrace(read)
+		assertFalse reader.readTrace(read)
+
+		def expected = new RecordingVisitor()
+		trace.accept(expected, 1234567890123L)
+		trace.accept(expected, 1234567890124L)
+		assertEquals expected.events, read.events
+	}
+
+	void testEachRotatedFileReadsOnItsOwn() {
+		def writer = new TraceFileWriter(directory: directory, fileSize: 512, maxFiles: 100)
+		CallSite[] sites = (0..<5).collect { CallSiteRegistry.intern(TraceFileTests, "site" + it) } as CallSite[]
+
+		int count = 40
+		for (int i = 0; i < count; i++) {
+			RequestTrace trace = new RequestTrace("request " + i, 100)
+			trace.addEntry(sites[i % 5], i * 1000L, -1L, -1L)
+			trace.addEntry(sites[(i + 1) % 5], i * 1000L + 10, -1L, -1L)
+			trace.addExit(sites[(i + 1) % 5], i * 1000L + 20, -1L, -1L)
+			trace.addExit(sites[i % 5], i * 1000L + 30, -1L, -1L)
+			assertTrue writer.write(trace, 1000L + i)
+		}
+		writer.destroy()
+
+		// Every file starts a new dictionary, so each one reads on its own.
+		File[] files = directory.listFiles()
+		assertTrue files.length > 1
+		def read = new RecordingVisitor()
+		for (File file : files) {
+			file.withInputStream { stream ->
+				def reader = new TraceFileReader(new BufferedInputStream(stream))
+				while (reader.readTrace(read)) {
+				}
+			}
+		}
+		assertEquals count, read.events.count { it.startsWith("start") }
+		assertEquals count * 2, read.events.count { it.startsWith("entry") }
+	}
+
+	void testTraceTooBigForAnyFileIsDroppedWithoutRotating() {
+		def writer = new TraceFileWriter(directory: directory, fileSize: 256, maxFiles: 2)
+		CallSite site = CallSiteRegistry.intern(TraceFileTests, "small")
+
+		RequestTrace small = new RequestTrace("small", 10)
+		small.addEntry(site, 0L, -1L, -1L)
+		small.addExit(site, 10L, -1L, -1L)
+		assertTrue writer.write(small, 1000L)
+
+		RequestTrace big = new RequestTrace("big", 1000)
+		for (int i = 0; i < 100; i++) {
+			CallSite bigSite = CallSiteRegistry.intern(TraceFileTests, "big" + i)
+			big.addEntry(bigSite, i * 2L, -1L, -1L)
+			big.addExit(bigSite, i * 2L + 1, -1L, -1L)
+		}
+		for (int i = 0; i < 5; i++) {
+			assertFalse writer.write(big, 2000L)
+		}
+		assertTrue writer.write(small, 3000L)
+		writer.destroy()
+
+		assertEquals 5, writer.failedCount
+		assertEquals 1, directory.listFiles().length
+
+		def read = new RecordingVisitor()
+		directory.listFiles()[0].withInputStream { stream ->
+			def reader = new TraceFileReader(new BufferedInputStream(stream))
+			while (reader.readTrace(read)) {
+			}
+		}
+		assertEquals(["start small 1000", "start small 3000"], read.events.findAll { it.startsWith("start") })
+	}
+
+	void testSubmittedTracesAreWrittenByTheTimeTheWriterStops() {
+		def writer = new TraceFileWriter(directory: directory, fileSize: 4096, maxFiles: 100)
+		writer.afterPropertiesSet()
+		CallSite site = CallSiteRegistry.intern(TraceFileTests, "submitted")
+
+		for (int i = 0; i < 50; i++) {
+			RequestTrace trace = new RequestTrace("request " + i, 10)
+			trace.addEntry(site, 0L, -1L, -1L)
+			trace.addExit(site, 10L, -1L, -1L)
+			assertTrue writer.submit(trace)
+		}
+		writer.destroy()
+
+		assertEquals 50, writer.submittedCount
+		assertEquals 50, writer.writtenCount
+		assertEquals 0, writer.droppedCount
+	}
+
+	/**
+	 * Records the events it's given as strings.
+	 */
+	private static class RecordingVisitor implements TraceVisitor {
+		List<String> events = []
+
+		void startTrace(String label, long recordedAt) {
+			events << "start " + label + " " + recordedAt
+		}
+
+		void entry(String className, String name, long nanos, long cpuNanos, long allocatedBytes) {
+			events << "entry " + className + ":" + name + " " + nanos + " " + cpuNanos + " " + allocatedBytes
+		}
+
+		void exit(String className, String name, long nanos, long cpuNanos, long allocatedBytes) {
+			events << "exit " + className + ":" + name + " " + nanos + " " + cpuNanos + " " + allocatedBytes
+		}
+
+		void startBranch(long nanos, long cpuNanos, long allocatedBytes) {
+			events << "branch " + nanos
+		}
+
+		void endBranch(long nanos, long cpuNanos, long allocatedBytes) {
+			events << "end branch " + nanos
+		}
+
+		void endTrace(int droppedFrames) {
+			events << "end " + droppedFrames
+		}
+	}
+}